@@ -125,6 +125,10 @@ public class Application implements WebMvcConfigurer {
         Jdbi jdbi = Jdbi.create(dataSource);
         jdbi.registerRowMapper(BeanMapper.factory(Location.class));
         jdbi.registerRowMapper(BeanMapper.factory(DbFile.class));
+        // ID arrays, e.g. from the tag index, are bound as a single array parameter
+        jdbi.registerArrayType(Long.class, "BIGINT");
+        // Path arrays, e.g. when looking up the IDs of a batch of written files
+        jdbi.registerArrayType(String.class, "VARCHAR");
         return jdbi;
     }
 
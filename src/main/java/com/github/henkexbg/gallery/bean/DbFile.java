@@ -21,6 +21,8 @@ public class DbFile {
     private Instant dateTaken;
     @ColumnName("last_modified")
     private Instant lastModified;
+    @ColumnName("file_size")
+    private Long fileSize;
 
     public long getId() {
         return id;
@@ -85,4 +87,12 @@ public class DbFile {
     public void setLastModified(Instant lastModified) {
         this.lastModified = lastModified;
     }
+
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
 }
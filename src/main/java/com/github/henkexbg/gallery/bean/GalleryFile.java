@@ -37,6 +37,8 @@ public class GalleryFile {
         IMAGE, VIDEO;
     }
 
+    private Long id;
+
     private String publicPath;
 
     private File actualFile;
@@ -47,6 +49,16 @@ public class GalleryFile {
 
     private Instant dateTaken;
 
+    private String version;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public String getPublicPath() {
         return publicPath;
     }
@@ -88,14 +100,24 @@ public class GalleryFile {
         this.dateTaken = dateTaken;
     }
 
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return "GalleryFile{" +
-                "publicPath='" + publicPath + '\'' +
+                "id=" + id +
+                ", publicPath='" + publicPath + '\'' +
                 ", actualFile=" + actualFile +
                 ", type=" + type +
                 ", contentType='" + contentType + '\'' +
                 ", dateTaken=" + dateTaken +
+                ", version='" + version + '\'' +
                 '}';
     }
 }
@@ -0,0 +1,12 @@
+package com.github.henkexbg.gallery.bean;
+
+/**
+ * Media with a location within one cell of a map grid.
+ *
+ * @param lon            Average longitude of the media in the cell
+ * @param lat            Average latitude of the media in the cell
+ * @param count          Number of media in the cell
+ * @param representative One of the media in the cell, for display
+ */
+public record GeoCluster(double lon, double lat, long count, GalleryFile representative) {
+}
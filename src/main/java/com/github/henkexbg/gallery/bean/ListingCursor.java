@@ -0,0 +1,53 @@
+package com.github.henkexbg.gallery.bean;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Position in a listing of media or directories sorted on date taken and ID, used for keyset pagination. The next page starts right after
+ * the row with the given date taken and ID. To clients, the cursor is an opaque string.
+ *
+ * @param descending Whether the listing is sorted descending. A cursor is only valid for the sort order it was created for
+ * @param dateTaken  Date taken of the last row of the previous page. May be null
+ * @param id         ID of the last row of the previous page
+ */
+public record ListingCursor(boolean descending, Instant dateTaken, long id) {
+
+    private static final String SEPARATOR = ",";
+
+    private static final String NULL_VALUE = "-";
+
+    /**
+     * Encodes this cursor as an opaque, URL safe string.
+     *
+     * @return The encoded cursor
+     */
+    public String encode() {
+        String raw = (descending ? "D" : "A") + SEPARATOR + (dateTaken != null ? dateTaken.toString() : NULL_VALUE) + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor as created by {@link #encode()}.
+     *
+     * @param encoded Encoded cursor
+     * @return The cursor
+     * @throws IllegalArgumentException If the cursor is not valid
+     */
+    public static ListingCursor decode(String encoded) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            String[] parts = raw.split(SEPARATOR);
+            if (parts.length != 3 || !(parts[0].equals("D") || parts[0].equals("A"))) {
+                throw new IllegalArgumentException("Invalid cursor: " + encoded);
+            }
+            Instant dateTaken = NULL_VALUE.equals(parts[1]) ? null : Instant.parse(parts[1]);
+            return new ListingCursor(parts[0].equals("D"), dateTaken, Long.parseLong(parts[2]));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + encoded, e);
+        }
+    }
+
+}
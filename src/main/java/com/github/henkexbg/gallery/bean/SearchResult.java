@@ -2,5 +2,13 @@ package com.github.henkexbg.gallery.bean;
 
 import java.util.List;
 
-public record SearchResult(List<GalleryDirectory> directories, List<GalleryFile> files) {
+/**
+ * Result of a search.
+ *
+ * @param directories         One page of matching directories
+ * @param files               One page of matching media
+ * @param nextCursor          Cursor to the next page of media, or null if this is the last page
+ * @param nextDirectoryCursor Cursor to the next page of directories, or null if this is the last page
+ */
+public record SearchResult(List<GalleryDirectory> directories, List<GalleryFile> files, String nextCursor, String nextDirectoryCursor) {
 }
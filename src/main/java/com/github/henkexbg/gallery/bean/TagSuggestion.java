@@ -0,0 +1,10 @@
+package com.github.henkexbg.gallery.bean;
+
+/**
+ * Suggested completion of a search term.
+ *
+ * @param text  Tag text
+ * @param count Number of files and directories visible to the user having the tag
+ */
+public record TagSuggestion(String text, int count) {
+}
@@ -0,0 +1,13 @@
+package com.github.henkexbg.gallery.bean;
+
+import java.time.Instant;
+
+/**
+ * Number of media taken within one period, such as a month.
+ *
+ * @param start  Start of the period
+ * @param count  Number of media taken within the period
+ * @param cursor Cursor for listing media from the period onwards, in the sort order the timeline was requested for
+ */
+public record TimelineEntry(Instant start, long count, String cursor) {
+}
@@ -47,6 +47,33 @@ public class DbTableSetup {
                 handle.execute("CREATE INDEX IF NOT EXISTS path_index ON gallery_file (path_on_disk)");
                 handle.execute("CREATE INDEX IF NOT EXISTS date_taken_index ON gallery_file (date_taken)");
                 handle.execute("CREATE INDEX IF NOT EXISTS last_modified_index ON gallery_file (last_modified)");
+                // Added after the initial schema. Altered rather than part of CREATE TABLE so that existing databases get it too
+                handle.execute("ALTER TABLE gallery_file ADD COLUMN IF NOT EXISTS file_size BIGINT");
+                // Supports keyset pagination of media, which seeks and sorts on date_taken and id
+                handle.execute("CREATE INDEX IF NOT EXISTS date_taken_id_index ON gallery_file (date_taken, id)");
+                // Supports bounding box queries on the location of media
+                handle.execute("CREATE SPATIAL INDEX IF NOT EXISTS file_location_index ON gallery_file (location)");
+                // Month and day taken as MMDD, for finding media taken on a given day in any year. Generated, so it is always in sync with
+                // date_taken, also for rows written before the column existed
+                handle.execute("""
+                        ALTER TABLE gallery_file ADD COLUMN IF NOT EXISTS month_day SMALLINT
+                        GENERATED ALWAYS AS (EXTRACT(MONTH FROM date_taken) * 100 + EXTRACT(DAY FROM date_taken))
+                        """);
+                handle.execute("CREATE INDEX IF NOT EXISTS month_day_index ON gallery_file (month_day, date_taken, id)");
+
+                // Closure table with one row per file or directory and each of its ancestors, including itself at depth 0. Makes subtree
+                // queries integer lookups rather than prefix scans on paths
+                handle.execute("""
+                        CREATE TABLE IF NOT EXISTS gallery_file_ancestor (
+                            ancestor_id BIGINT NOT NULL,
+                            descendant_id BIGINT NOT NULL,
+                            depth INT NOT NULL,
+                            PRIMARY KEY (ancestor_id, descendant_id),
+                            FOREIGN KEY (ancestor_id) REFERENCES gallery_file(id) ON DELETE CASCADE,
+                            FOREIGN KEY (descendant_id) REFERENCES gallery_file(id) ON DELETE CASCADE
+                        )
+                        """);
+                handle.execute("CREATE INDEX IF NOT EXISTS ancestor_descendant_index ON gallery_file_ancestor (descendant_id, depth)");
 
                 handle.execute("""
                         CREATE TABLE IF NOT EXISTS tag (
@@ -61,10 +88,44 @@ public class DbTableSetup {
                 handle.execute("CREATE INDEX IF NOT EXISTS tag_index ON tag (text)");
                 handle.execute("CREATE INDEX IF NOT EXISTS tag_type_index ON tag (type)");
             });
+            backfillAncestry();
         } catch (Exception e) {
             LOG.error("Error when setting up database tables!", e);
             throw e;
         }
     }
 
+    /**
+     * Builds the ancestry table from the parent IDs if any file or directory lacks ancestry, which is the case for databases created before
+     * the table existed. Built one level at a time, each level adding the parent of the previous level's ancestors.
+     */
+    void backfillAncestry() {
+        final String missingAncestryQuery = """
+                SELECT COUNT(*) FROM gallery_file f
+                WHERE NOT EXISTS (SELECT 1 FROM gallery_file_ancestor a WHERE a.descendant_id = f.id AND a.depth = 0)
+                """;
+        final String insertSelfQuery =
+                "INSERT INTO gallery_file_ancestor (ancestor_id, descendant_id, depth) SELECT id, id, 0 FROM gallery_file";
+        final String insertNextLevelQuery = """
+                INSERT INTO gallery_file_ancestor (ancestor_id, descendant_id, depth)
+                SELECT f.parent_id, a.descendant_id, a.depth + 1 FROM gallery_file_ancestor a
+                JOIN gallery_file f ON f.id = a.ancestor_id
+                WHERE a.depth = :depth AND f.parent_id IS NOT NULL
+                """;
+        jdbi.useTransaction(handle -> {
+            long missingCount = handle.createQuery(missingAncestryQuery).mapTo(Long.class).one();
+            if (missingCount == 0) {
+                return;
+            }
+            LOG.info("{} files and directories lack ancestry. Rebuilding ancestry table", missingCount);
+            handle.execute("DELETE FROM gallery_file_ancestor");
+            handle.execute(insertSelfQuery);
+            int depth = 0;
+            while (handle.createUpdate(insertNextLevelQuery).bind("depth", depth).execute() > 0) {
+                depth++;
+            }
+            LOG.info("Rebuilt ancestry table with max depth {}", depth);
+        });
+    }
+
 }
@@ -1,5 +1,6 @@
 package com.github.henkexbg.gallery.config;
 
+import com.github.henkexbg.gallery.security.CachingAuthenticationProvider;
 import com.github.henkexbg.gallery.security.CustomAuthenticationEntryPoint;
 import com.github.henkexbg.gallery.security.CustomCsrfSecurityFilter;
 import com.github.henkexbg.gallery.security.CustomSuccessHandler;
@@ -7,11 +8,10 @@ import jakarta.annotation.Priority;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.AuthenticationProvider;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
-import org.springframework.security.core.userdetails.UserDetailsService;
-import org.springframework.security.provisioning.InMemoryUserDetailsManager;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.security.web.authentication.logout.HttpStatusReturningLogoutSuccessHandler;
 import org.springframework.security.web.csrf.CsrfFilter;
@@ -19,11 +19,9 @@ import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Properties;
 import java.util.Set;
 
 /**
@@ -32,6 +30,7 @@ import java.util.Set;
  *     <li>Basic auth OR session-based authentication allowed</li>
  *     <li>Session-based auth uses standard form-based /login and /logout endpoints with empty response bodies</li>
  *     <li>CORS and CSRF use a simplified config based on whitelisted hosts. All origin ports are allowed, CSRF token is not required</li>
+ *     <li>Signed media URLs (/signed/**) fall under the public chain. Their signatures are verified by the controller instead</li>
  * </ul>
  */
 @Configuration
@@ -40,17 +39,14 @@ public class SecurityConfiguration {
     @Value("#{'${gallery.web.crossOrigin.allowedHosts}'.split(',')}")
     Set<String> allowedHosts;
 
-    private Properties usersProperties;
-
     @Value("${gallery.users.propertiesFile}")
-    public void setUsersPropertiesFile(String usersPropertiesFile) {
-        try {
-            usersProperties = new Properties();
-            usersProperties.load(new FileInputStream(usersPropertiesFile));
-        } catch (IOException ioe) {
-            throw new IllegalArgumentException("No valid user properties file given!");
-        }
-    }
+    File usersPropertiesFile;
+
+    @Value("${gallery.auth.cacheTtlSeconds:300}")
+    long authenticationCacheTtlSeconds;
+
+    @Value("${gallery.auth.cacheMaxEntries:1000}")
+    int authenticationCacheMaxEntries;
 
     @Bean
     public CustomCsrfSecurityFilter customCsrfSecurityFilter() {
@@ -67,9 +63,15 @@ public class SecurityConfiguration {
         return new CustomAuthenticationEntryPoint();
     }
 
+    /**
+     * Authenticates the users in the users properties file. Successful authentications are cached, see
+     * {@link CachingAuthenticationProvider}.
+     *
+     * @return An authentication provider
+     */
     @Bean
-    public UserDetailsService userDetailsService() {
-        return new InMemoryUserDetailsManager(usersProperties);
+    public AuthenticationProvider authenticationProvider() {
+        return new CachingAuthenticationProvider(usersPropertiesFile, authenticationCacheTtlSeconds, authenticationCacheMaxEntries);
     }
 
     /**
@@ -82,8 +84,8 @@ public class SecurityConfiguration {
     @Bean
     @Priority(3)
     public SecurityFilterChain serviceFilterChain(HttpSecurity http) throws Exception {
-        return commonSecuredFilterChain(http, "/service/**", "/image/**", "/customImage/**", "/video/**").httpBasic(
-                Customizer.withDefaults()).build();
+        return commonSecuredFilterChain(http, "/service/**", "/suggest", "/geo", "/timeline/**", "/onthisday", "/image/**",
+                "/customImage/**", "/video/**").httpBasic(Customizer.withDefaults()).build();
     }
 
     /**
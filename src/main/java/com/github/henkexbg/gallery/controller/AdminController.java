@@ -2,17 +2,21 @@ package com.github.henkexbg.gallery.controller;
 
 import com.github.henkexbg.gallery.service.GalleryAuthorizationService;
 import com.github.henkexbg.gallery.service.GallerySearchService;
+import com.github.henkexbg.gallery.service.IndexingPipeline;
 import com.github.henkexbg.gallery.service.LocationLoader;
+import com.github.henkexbg.gallery.service.SearchResultCache;
 import com.github.henkexbg.gallery.service.exception.NotAllowedException;
 import jakarta.annotation.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.net.URI;
+import java.util.List;
 
 @RestController
 @RequestMapping("/admin")
@@ -29,6 +33,9 @@ public class AdminController {
     @Resource
     private LocationLoader locationLoader;
 
+    @Resource
+    private SearchResultCache searchResultCache;
+
     @PostMapping("/db/full")
     public void updateDatabase(@RequestParam(required = false, defaultValue = "false") Boolean removeAll) throws Exception {
         if (!galleryAuthorizationService.isAdmin()) {
@@ -56,4 +63,20 @@ public class AdminController {
         }
     }
 
+    @GetMapping("/stats/searchCache")
+    public SearchResultCache.Stats getSearchCacheStats() throws Exception {
+        if (!galleryAuthorizationService.isAdmin()) {
+            throw new NotAllowedException("Not allowed");
+        }
+        return searchResultCache.getStats();
+    }
+
+    @GetMapping("/stats/indexing")
+    public List<IndexingPipeline.StageStats> getIndexingStats() throws Exception {
+        if (!galleryAuthorizationService.isAdmin()) {
+            throw new NotAllowedException("Not allowed");
+        }
+        return gallerySearchService.getIndexingStats();
+    }
+
 }
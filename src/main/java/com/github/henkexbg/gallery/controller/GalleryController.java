@@ -19,17 +19,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.MonthDay;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.henkexbg.gallery.bean.SearchResult;
+import com.github.henkexbg.gallery.bean.TagSuggestion;
+import com.github.henkexbg.gallery.bean.TimelineEntry;
 import com.github.henkexbg.gallery.bean.UserInfo;
 import com.github.henkexbg.gallery.service.GalleryAuthorizationService;
 import com.github.henkexbg.gallery.service.GallerySearchService;
+import com.github.henkexbg.gallery.service.UrlSigningService;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Strings;
@@ -51,6 +63,7 @@ import com.github.henkexbg.gallery.controller.exception.RangeException;
 import com.github.henkexbg.gallery.controller.exception.ResourceNotFoundException;
 import com.github.henkexbg.gallery.controller.model.GalleryDirectoryHolder;
 import com.github.henkexbg.gallery.controller.model.GalleryFileHolder;
+import com.github.henkexbg.gallery.controller.model.GeoClusterHolder;
 import com.github.henkexbg.gallery.controller.model.ImageFormat;
 import com.github.henkexbg.gallery.controller.model.ListingContext;
 import com.github.henkexbg.gallery.service.GalleryService;
@@ -73,6 +86,10 @@ public class GalleryController {
 
     private static final String SERVICE_PATH = "/service/";
 
+    private static final String SIGNED_IMAGE_PATH = "/signed/image/";
+
+    private static final String SIGNED_VIDEO_PATH = "/signed/video/";
+
     @Resource
     private List<ImageFormat> imageFormats;
 
@@ -85,12 +102,24 @@ public class GalleryController {
     @Resource
     private GalleryAuthorizationService galleryAuthorizationService;
 
+    @Resource
+    private MediaOffloadHandler mediaOffloadHandler;
+
+    @Resource
+    private UrlSigningService urlSigningService;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
     @Value("${gallery.allowCustomImageSizes}")
     private boolean allowCustomImageSizes = false;
 
     @Value("${gallery.mediaResourcesCacheHeader}")
     private String mediaResourcesCacheHeader;
 
+    @Value("${gallery.mediaResourcesVersionedCacheHeader:private, max-age=31536000, immutable}")
+    private String mediaResourcesVersionedCacheHeader;
+
     @Resource
     private Map<String, String> videoConversionModes;
 
@@ -107,9 +136,111 @@ public class GalleryController {
         return galleryAuthorizationService.getCurrentUserInfo();
     }
 
+    /**
+     * Suggests completions of a search term while it is being typed, from tags of the files and directories the user has access to.
+     * Answered from memory, so that it can be called for each keystroke.
+     *
+     * @param prefix Start of the search term
+     * @param limit  Max number of suggestions
+     * @return Suggestions, most common first
+     */
+    @GetMapping("/suggest")
+    public List<TagSuggestion> suggest(@RequestParam(value = "prefix") String prefix,
+                                       @RequestParam(required = false, value = "limit") Integer limit) {
+        return gallerySearchService.suggest(prefix, limit);
+    }
+
+    /**
+     * Clusters the media of the user within a bounding box, for display on a map. The number of clusters is bounded, no matter how many
+     * media there are within the box.
+     *
+     * @param servletRequest Servlet request
+     * @param minLon         Western edge of the box
+     * @param minLat         Southern edge of the box
+     * @param maxLon         Eastern edge of the box
+     * @param maxLat         Northern edge of the box
+     * @param zoom           Zoom level of the map, as for map tiles
+     * @return The clusters, largest first
+     * @throws IOException If the clusters cannot be determined
+     */
+    @GetMapping("/geo")
+    public List<GeoClusterHolder> geo(HttpServletRequest servletRequest,
+                                      @RequestParam(value = "minLon") double minLon,
+                                      @RequestParam(value = "minLat") double minLat,
+                                      @RequestParam(value = "maxLon") double maxLon,
+                                      @RequestParam(value = "maxLat") double maxLat,
+                                      @RequestParam(value = "zoom") int zoom) throws IOException {
+        String contextPath = servletRequest.getContextPath();
+        return gallerySearchService.findGeoClusters(minLon, minLat, maxLon, maxLat, zoom).stream().map(c -> new GeoClusterHolder(c.lon(),
+                c.lat(), c.count(), convertToGalleryFileHolder(contextPath, c.representative(), true))).toList();
+    }
+
+    /**
+     * Counts the media for a given path (which can be empty) and search term per year, month or day, for displaying a timeline. Each entry
+     * has a cursor that can be passed to {@link #query(HttpServletRequest, String, String, boolean, Integer, Integer,
+     * GallerySearchService.SortOrder, String, Integer, String)} with the same path, search term and sort order to list media from that
+     * period onwards.
+     *
+     * @param resolution Length of the periods. Defaults to months
+     * @return One entry per period having media, in the given sort order
+     * @throws IOException Subtypes of this exception are thrown for different scenarios, and the {@link IOException} itself for generic
+     *                     errors.
+     */
+    @GetMapping("/timeline/{*filePath}")
+    public List<TimelineEntry> timeline(@PathVariable String filePath,
+                                        @RequestParam(required = false, value = "searchTerm") String searchTerm,
+                                        @RequestParam(required = false, value = "fuzzy") boolean fuzzy,
+                                        @RequestParam(required = false, value = "sortOrder") GallerySearchService.SortOrder sortOrder,
+                                        @RequestParam(required = false, value = "resolution")
+                                        GallerySearchService.TimelineResolution resolution) throws Exception {
+        String publicPath = extractPublicPath(filePath);
+        LOG.debug("Entering timeline(path={}, resolution={})", publicPath, resolution);
+        GallerySearchService.SearchQuery query =
+                new GallerySearchService.SearchQuery(publicPath, searchTerm, fuzzy, null, null, sortOrder, null, null, null);
+        return gallerySearchService.findTimeline(query, resolution != null ? resolution : GallerySearchService.TimelineResolution.MONTH);
+    }
+
+    /**
+     * Lists media taken on a given day of the year in any year, such as today in previous years, within all root directories of the user.
+     * Paginated via pageSize and cursor, as the media of {@link #query(HttpServletRequest, String, String, boolean, Integer, Integer,
+     * GallerySearchService.SortOrder, String, Integer, String)}.
+     *
+     * @param servletRequest Servlet request
+     * @param month          Month, 1-12. Defaults to the current month
+     * @param day            Day of month. Defaults to the current day
+     * @return A {@link ListingContext} instance with media only
+     * @throws IOException Subtypes of this exception are thrown for different scenarios, and the {@link IOException} itself for generic
+     *                     errors.
+     */
+    @GetMapping("/onthisday")
+    public ListingContext onThisDay(HttpServletRequest servletRequest,
+                                    @RequestParam(required = false, value = "month") Integer month,
+                                    @RequestParam(required = false, value = "day") Integer day,
+                                    @RequestParam(required = false, value = "pageSize") Integer pageSize,
+                                    @RequestParam(required = false, value = "sortOrder") GallerySearchService.SortOrder sortOrder,
+                                    @RequestParam(required = false, value = "cursor") String cursor) throws Exception {
+        MonthDay today = MonthDay.now();
+        MonthDay monthDay;
+        try {
+            monthDay = MonthDay.of(month != null ? month : today.getMonthValue(), day != null ? day : today.getDayOfMonth());
+        } catch (DateTimeException dte) {
+            throw new IllegalArgumentException("Invalid month or day", dte);
+        }
+        String contextPath = servletRequest.getContextPath();
+        SearchResult searchResult = gallerySearchService.findOnThisDay(monthDay, pageSize, sortOrder, cursor);
+        ListingContext listingContext = createListingContext();
+        listingContext.setMedia(convertToGalleryFileHolders(contextPath, searchResult.files()));
+        listingContext.setNextCursor(searchResult.nextCursor());
+        return listingContext;
+    }
+
     /**
      * Retrieves the listing for a given path (which can be empty). The response can contain media in the shape of {@link GalleryFileHolder}
      * instances as well as subdirectories.
+     * <p>
+     * Media is paginated, either via page and pageSize, or by passing the nextCursor of the previous response as cursor. The latter is
+     * preferable when paging deep into large results. Directories are paginated separately, via directoryPageSize and by passing the
+     * nextDirectoryCursor of the previous response as directoryCursor.
      *
      * @param servletRequest Servlet request
      * @return A {@link ListingContext} instance.
@@ -119,48 +250,139 @@ public class GalleryController {
     @GetMapping("/service/{*filePath}")
     public ListingContext query(HttpServletRequest servletRequest, @PathVariable String filePath,
                                 @RequestParam(required = false, value = "searchTerm") String searchTerm,
+                                @RequestParam(required = false, value = "fuzzy") boolean fuzzy,
                                 @RequestParam(required = false, value = "page") Integer page,
                                 @RequestParam(required = false, value = "pageSize") Integer pageSize,
-                                @RequestParam(required = false, value = "sortOrder") GallerySearchService.SortOrder sortOrder) throws Exception {
+                                @RequestParam(required = false, value = "sortOrder") GallerySearchService.SortOrder sortOrder,
+                                @RequestParam(required = false, value = "cursor") String cursor,
+                                @RequestParam(required = false, value = "directoryPageSize") Integer directoryPageSize,
+                                @RequestParam(required = false, value = "directoryCursor") String directoryCursor) throws Exception {
         long startTime = System.currentTimeMillis();
         // Extracted public path starts with '/', public path does not
         String publicPath = extractPublicPath(filePath);
         String contextPath = servletRequest.getContextPath();
         LOG.debug("Entering getListing(path={})", publicPath);
-        ListingContext listingContext = new ListingContext();
-        listingContext.setAllowCustomImageSizes(allowCustomImageSizes);
-        listingContext.setImageFormats(imageFormats);
-        listingContext.setVideoFormats(videoFormats);
-        GallerySearchService.SearchQuery query = new GallerySearchService.SearchQuery(publicPath, searchTerm, page, pageSize, sortOrder);
+        ListingContext listingContext = createListingContext();
+        GallerySearchService.SearchQuery query =
+                new GallerySearchService.SearchQuery(publicPath, searchTerm, fuzzy, page, pageSize, sortOrder, cursor,
+                        directoryPageSize, directoryCursor);
         SearchResult searchResult = gallerySearchService.search(query);
         listingContext.setMedia(convertToGalleryFileHolders(contextPath, searchResult.files()));
         listingContext.setDirectories(convertToGalleryDirectoryHolders(contextPath, searchResult.directories()));
+        listingContext.setNextCursor(searchResult.nextCursor());
+        listingContext.setNextDirectoryCursor(searchResult.nextDirectoryCursor());
         LOG.debug("Found {} media files, {} directories in {} milliseconds", searchResult.files().size(), searchResult.directories().size(),
                 System.currentTimeMillis() - startTime);
         return listingContext;
     }
 
+    /**
+     * Streaming variant of {@link #query(HttpServletRequest, String, String, boolean, Integer, Integer, GallerySearchService.SortOrder,
+     * String, Integer, String)}, used when the request has the parameter stream=true. The response has the same JSON fields, but
+     * directories and media are converted and written one at a time, so converted listings are never held in memory as a whole. Each page
+     * is read from the database before anything of it is written, so that no database connection is held while writing to the client. The
+     * next cursors are written after the arrays. Results are not cached.
+     * <p>
+     * Authorization and validation of the query are done before anything is written, so those errors get the normal error responses.
+     *
+     * @param servletRequest  Servlet request
+     * @param servletResponse Servlet response, to which the listing is written
+     * @throws IOException Subtypes of this exception are thrown for different scenarios, and the {@link IOException} itself for generic
+     *                     errors.
+     */
+    @GetMapping(value = "/service/{*filePath}", params = "stream=true")
+    public void queryStreaming(HttpServletRequest servletRequest, HttpServletResponse servletResponse, @PathVariable String filePath,
+                               @RequestParam(required = false, value = "searchTerm") String searchTerm,
+                               @RequestParam(required = false, value = "fuzzy") boolean fuzzy,
+                               @RequestParam(required = false, value = "page") Integer page,
+                               @RequestParam(required = false, value = "pageSize") Integer pageSize,
+                               @RequestParam(required = false, value = "sortOrder") GallerySearchService.SortOrder sortOrder,
+                               @RequestParam(required = false, value = "cursor") String cursor,
+                               @RequestParam(required = false, value = "directoryPageSize") Integer directoryPageSize,
+                               @RequestParam(required = false, value = "directoryCursor") String directoryCursor) throws Exception {
+        long startTime = System.currentTimeMillis();
+        String publicPath = extractPublicPath(filePath);
+        String contextPath = servletRequest.getContextPath();
+        LOG.debug("Entering queryStreaming(path={})", publicPath);
+        GallerySearchService.SearchQuery query =
+                new GallerySearchService.SearchQuery(publicPath, searchTerm, fuzzy, page, pageSize, sortOrder, cursor,
+                        directoryPageSize, directoryCursor);
+        GallerySearchService.PreparedSearch preparedSearch = gallerySearchService.prepareSearch(query);
+        servletResponse.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        servletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        // The fields other than the directories, media and cursors, serialized exactly as in the regular response
+        ObjectNode listingFields = objectMapper.valueToTree(createListingContext());
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(servletResponse.getOutputStream())) {
+            generator.writeStartObject();
+            for (Map.Entry<String, JsonNode> listingField : listingFields.properties()) {
+                generator.writeFieldName(listingField.getKey());
+                generator.writeTree(listingField.getValue());
+            }
+            generator.writeArrayFieldStart("directories");
+            String nextDirectoryCursor = gallerySearchService.streamDirectories(preparedSearch,
+                    galleryDirectory -> writeElement(generator, convertToGalleryDirectoryHolder(contextPath, galleryDirectory)));
+            generator.writeEndArray();
+            generator.writeArrayFieldStart("media");
+            String nextCursor = gallerySearchService.streamMedia(preparedSearch,
+                    galleryFile -> writeElement(generator, convertToGalleryFileHolder(contextPath, galleryFile, true)));
+            generator.writeEndArray();
+            if (nextCursor != null) {
+                generator.writeStringField("nextCursor", nextCursor);
+            }
+            if (nextDirectoryCursor != null) {
+                generator.writeStringField("nextDirectoryCursor", nextDirectoryCursor);
+            }
+            generator.writeEndObject();
+        }
+        LOG.debug("Streamed listing in {} milliseconds", System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Creates a listing with the fields that are the same for all listings.
+     *
+     * @return A listing without directories and media
+     */
+    private ListingContext createListingContext() {
+        ListingContext listingContext = new ListingContext();
+        listingContext.setAllowCustomImageSizes(allowCustomImageSizes);
+        listingContext.setImageFormats(imageFormats);
+        listingContext.setVideoFormats(videoFormats);
+        return listingContext;
+    }
+
+    private void writeElement(JsonGenerator generator, Object element) {
+        try {
+            generator.writeObject(element);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
     /**
      * Requests an image with the given {@link ImageFormat}.
      *
      * @param request         Spring request
      * @param imageFormatCode Image format.
+     * @param version         Optional version of the original, as emitted in the listing. If it matches the current version, the
+     *                        response may be cached as immutable
      * @return The image as a stream with the appropriate response headers set or a not-modified response, (see
-     * {@link #returnResource(WebRequest, GalleryFile)}).
+     * {@link #returnResource(WebRequest, GalleryFile, String)}).
      * @throws IOException Sub-types of this exception are thrown for different scenarios, and the {@link IOException} itself for generic
      *                     errors.
      */
     @RequestMapping(value = "/image/{imageFormat}/{*filePath}", method = RequestMethod.GET)
     public ResponseEntity<InputStreamResource> getImage(WebRequest request, @PathVariable(value = "imageFormat") String imageFormatCode,
-                                                        @PathVariable String filePath) throws IOException, NotAllowedException {
+                                                        @PathVariable String filePath,
+                                                        @RequestParam(required = false, value = "v") String version)
+            throws IOException, NotAllowedException {
         String path = filePath.substring(1);
-        LOG.debug("getImage(imageFormatCode={}, path={})", imageFormatCode, path);
+        LOG.debug("getImage(imageFormatCode={}, path={}, version={})", imageFormatCode, path, version);
         ImageFormat imageFormat = getImageFormatForCode(imageFormatCode);
         if (imageFormat == null) {
             throw new ResourceNotFoundException();
         }
         GalleryFile galleryFile = galleryService.getImage(path, imageFormat.getWidth(), imageFormat.getHeight());
-        return returnResource(request, galleryFile);
+        return returnResource(request, galleryFile, getImageCacheHeader(version, galleryFile));
     }
 
     /**
@@ -169,14 +391,16 @@ public class GalleryController {
      * @param request Spring request
      * @param width   Width in pixels
      * @param height  Height in pixels
+     * @param version Optional version of the original, see {@link #getImage(WebRequest, String, String, String)}
      * @return The image as a stream with the appropriate response headers set or a not-modified response, (see
-     * {@link #returnResource(WebRequest, GalleryFile)}).
+     * {@link #returnResource(WebRequest, GalleryFile, String)}).
      * @throws IOException Sub-types of this exception are thrown for different scenarios, and the {@link IOException} itself for generic
      *                     errors.
      */
     @RequestMapping(value = "/customImage/{width}/{height}/{*filePath}", method = RequestMethod.GET)
     public ResponseEntity<InputStreamResource> getCustomImage(WebRequest request, @PathVariable(value = "width") String width,
-                                                              @PathVariable(value = "height") String height, @PathVariable String filePath)
+                                                              @PathVariable(value = "height") String height, @PathVariable String filePath,
+                                                              @RequestParam(required = false, value = "v") String version)
             throws IOException, NotAllowedException {
         if (!allowCustomImageSizes) {
             LOG.debug("Request for custom image was made despite allowCustomImageSizes being false.");
@@ -193,7 +417,7 @@ public class GalleryController {
                 throw new IllegalArgumentException(errorMessage);
             }
             GalleryFile galleryFile = galleryService.getImage(path, widthInt, heightInt);
-            return returnResource(request, galleryFile);
+            return returnResource(request, galleryFile, getImageCacheHeader(version, galleryFile));
         } catch (NumberFormatException nfe) {
             String errorMessage = "Could not parse image dimensions %s".formatted(path);
             LOG.warn(errorMessage);
@@ -207,7 +431,7 @@ public class GalleryController {
      * @param request          Spring request
      * @param conversionFormat Video format
      * @return The image as a stream with the appropriate response headers set or a not-modified response, (see
-     * {@link #returnResource(WebRequest, GalleryFile)}).
+     * {@link #returnResource(WebRequest, GalleryFile, String)}).
      * @throws IOException Sub-types of this exception are thrown for different scenarios, and the {@link IOException} itself for generic
      *                     errors.
      */
@@ -223,7 +447,75 @@ public class GalleryController {
             LOG.warn("File {} was not a video but {}. Throwing ResourceNotFoundException.", path, galleryFile.getType());
             throw new ResourceNotFoundException();
         }
-        return returnResource(request, galleryFile);
+        return returnResource(request, galleryFile, mediaResourcesCacheHeader);
+    }
+
+    /**
+     * Requests an image with the given {@link ImageFormat} via a signed URL, as emitted in the listing when signed URLs are enabled. The
+     * request is not authenticated; access is granted by the signature alone. The image format is not part of the signature, as it's a
+     * placeholder filled in by the client.
+     *
+     * @param request         Spring request
+     * @param imageFormatCode Image format
+     * @param id              ID of file or directory
+     * @param expires         Expiry time of the URL in epoch seconds
+     * @param signature       Signature of the URL
+     * @param version         Optional version of the original, see {@link #getImage(WebRequest, String, String, String)}
+     * @return The image as a stream with the appropriate response headers set or a not-modified response, (see
+     * {@link #returnResource(WebRequest, GalleryFile, String)}).
+     * @throws IOException         Sub-types of this exception are thrown for different scenarios, and the {@link IOException} itself for
+     *                             generic errors.
+     * @throws NotAllowedException If the signature is not valid or has expired
+     */
+    @RequestMapping(value = SIGNED_IMAGE_PATH + "{imageFormat}/{id}", method = RequestMethod.GET)
+    public ResponseEntity<InputStreamResource> getSignedImage(WebRequest request,
+                                                              @PathVariable(value = "imageFormat") String imageFormatCode,
+                                                              @PathVariable(value = "id") String id,
+                                                              @RequestParam(required = false, value = "expires") String expires,
+                                                              @RequestParam(required = false, value = "signature") String signature,
+                                                              @RequestParam(required = false, value = "v") String version)
+            throws IOException, NotAllowedException {
+        LOG.debug("getSignedImage(imageFormatCode={}, id={}, expires={})", imageFormatCode, id, expires);
+        ImageFormat imageFormat = getImageFormatForCode(imageFormatCode);
+        if (imageFormat == null) {
+            throw new ResourceNotFoundException();
+        }
+        long expiresLong = verifySignature(SIGNED_IMAGE_PATH + id, expires, signature);
+        File realFile = gallerySearchService.findFileById(Long.parseLong(id)).orElseThrow(ResourceNotFoundException::new);
+        GalleryFile galleryFile = galleryService.getImageForRealFile(realFile, imageFormat.getWidth(), imageFormat.getHeight());
+        return returnResource(request, galleryFile, getSignedCacheHeader(expiresLong, version, galleryFile));
+    }
+
+    /**
+     * Requests a video via a signed URL. See {@link #getSignedImage(WebRequest, String, String, String, String, String)}.
+     *
+     * @param request          Spring request
+     * @param conversionFormat Conversion format
+     * @param id               ID of video
+     * @param expires          Expiry time of the URL in epoch seconds
+     * @param signature        Signature of the URL
+     * @return The video as a stream with the appropriate response headers set or a not-modified response, (see
+     * {@link #returnResource(WebRequest, GalleryFile, String)}).
+     * @throws IOException         Sub-types of this exception are thrown for different scenarios, and the {@link IOException} itself for
+     *                             generic errors.
+     * @throws NotAllowedException If the signature is not valid or has expired
+     */
+    @RequestMapping(value = SIGNED_VIDEO_PATH + "{conversionFormat}/{id}", method = RequestMethod.GET)
+    public ResponseEntity<InputStreamResource> getSignedVideo(WebRequest request,
+                                                              @PathVariable(value = "conversionFormat") String conversionFormat,
+                                                              @PathVariable(value = "id") String id,
+                                                              @RequestParam(required = false, value = "expires") String expires,
+                                                              @RequestParam(required = false, value = "signature") String signature)
+            throws IOException, NotAllowedException {
+        LOG.debug("getSignedVideo(conversionFormat={}, id={}, expires={})", conversionFormat, id, expires);
+        long expiresLong = verifySignature(SIGNED_VIDEO_PATH + id, expires, signature);
+        File realFile = gallerySearchService.findFileById(Long.parseLong(id)).orElseThrow(ResourceNotFoundException::new);
+        GalleryFile galleryFile = galleryService.getVideoForRealFile(realFile, conversionFormat);
+        if (!GalleryFileType.VIDEO.equals(galleryFile.getType())) {
+            LOG.warn("File with ID {} was not a video but {}. Throwing ResourceNotFoundException.", id, galleryFile.getType());
+            throw new ResourceNotFoundException();
+        }
+        return returnResource(request, galleryFile, getSignedCacheHeader(expiresLong, null, galleryFile));
     }
 
     /**
@@ -245,6 +537,62 @@ public class GalleryController {
         return publicPath;
     }
 
+    /**
+     * Verifies the signature of a signed URL.
+     *
+     * @param resourceKey Key of the resource, as used when signing
+     * @param expires     Expiry time as given in the request
+     * @param signature   Signature as given in the request
+     * @return The parsed expiry time
+     * @throws ResourceNotFoundException If signed URLs are not enabled
+     * @throws NotAllowedException       If the signature is missing, not valid or has expired
+     */
+    private long verifySignature(String resourceKey, String expires, String signature) throws NotAllowedException {
+        if (!urlSigningService.isEnabled()) {
+            throw new ResourceNotFoundException();
+        }
+        if (expires == null || signature == null) {
+            throw new NotAllowedException("Missing signature");
+        }
+        long expiresLong = Long.parseLong(expires);
+        if (!urlSigningService.isValid(resourceKey, expiresLong, signature)) {
+            throw new NotAllowedException("Invalid or expired signature");
+        }
+        return expiresLong;
+    }
+
+    /**
+     * Determines the cache header for a signed resource. As access is granted by the URL alone, the response may be cached by shared
+     * caches, but never beyond the expiry of the URL.
+     *
+     * @param expires          Expiry time of the URL in epoch seconds
+     * @param requestedVersion Version as given in the request. May be null
+     * @param galleryFile      Requested file
+     * @return The cache header value
+     */
+    private String getSignedCacheHeader(long expires, String requestedVersion, GalleryFile galleryFile) {
+        String cacheHeader = "public, max-age=" + urlSigningService.getRemainingSeconds(expires);
+        if (requestedVersion != null && requestedVersion.equals(galleryFile.getVersion())) {
+            cacheHeader += ", immutable";
+        }
+        return cacheHeader;
+    }
+
+    /**
+     * Determines the cache header for a resized image. Only if the requested version matches the current version of the original can the
+     * response be cached as immutable, since the URL then uniquely identifies the content.
+     *
+     * @param requestedVersion Version as given in the request. May be null
+     * @param galleryFile      Resized image, carrying the current version of its original
+     * @return The cache header value
+     */
+    private String getImageCacheHeader(String requestedVersion, GalleryFile galleryFile) {
+        if (requestedVersion != null && requestedVersion.equals(galleryFile.getVersion())) {
+            return mediaResourcesVersionedCacheHeader;
+        }
+        return mediaResourcesCacheHeader;
+    }
+
     /**
      * Method used to return the binary of a gallery file ( {@link GalleryFile#getActualFile()} ). This method handles 304 redirects (if
      * file has not changed) and range headers if requested by browser. The range parts is particularly important for videos. The correct
@@ -252,19 +600,28 @@ public class GalleryController {
      * <p>
      * NOTE: the range logic should NOT be considered a complete implementation - it's a bare minimum for making requests for byte ranges
      * work.
+     * <p>
+     * If offloading to a reverse proxy is enabled (see {@link MediaOffloadHandler}), only the headers are returned and the proxy streams
+     * the file, including any ranges.
      *
      * @param request     Request
      * @param galleryFile Gallery file
+     * @param cacheHeader Value of the Cache-Control header
      * @return The binary of the gallery file, or a 304 redirect, or a part of the file.
      * @throws IOException If there is an issue accessing the binary file.
      */
-    private ResponseEntity<InputStreamResource> returnResource(WebRequest request, GalleryFile galleryFile) throws IOException {
+    private ResponseEntity<InputStreamResource> returnResource(WebRequest request, GalleryFile galleryFile, String cacheHeader)
+            throws IOException {
         LOG.debug("Entering returnResource()");
         if (request.checkNotModified(galleryFile.getActualFile().lastModified())) {
             return null;
         }
         File file = galleryFile.getActualFile();
         String contentType = galleryFile.getContentType();
+        ResponseEntity<InputStreamResource> offloadResponse = mediaOffloadHandler.createOffloadResponse(file, contentType, cacheHeader);
+        if (offloadResponse != null) {
+            return offloadResponse;
+        }
         String rangeHeader = request.getHeader(HttpHeaders.RANGE);
         long[] ranges = getRangesFromHeader(rangeHeader);
         long startPosition = ranges[0];
@@ -279,7 +636,7 @@ public class GalleryController {
         InputStream is = new BufferedInputStream(boundedInputStream, 65536);
         InputStreamResource inputStreamResource = new InputStreamResource(is);
         HttpHeaders responseHeaders = new HttpHeaders();
-        responseHeaders.setCacheControl(mediaResourcesCacheHeader);
+        responseHeaders.setCacheControl(cacheHeader);
         responseHeaders.setContentLength(contentLength);
         responseHeaders.setContentType(MediaType.valueOf(contentType));
         responseHeaders.add(HttpHeaders.ACCEPT_RANGES, "bytes");
@@ -357,9 +714,12 @@ public class GalleryController {
         if (allowCustomImageSizes) {
             galleryFileHolder.setFreeSizePath(generateCustomImageUrlTemplate(contextPath, galleryFile));
         }
-        galleryFileHolder.setFormatPath(generateDynamicImageUrl(contextPath, galleryFile));
+        boolean signUrls = urlSigningService.isEnabled() && galleryFile.getId() != null;
+        galleryFileHolder.setFormatPath(signUrls ? generateSignedImageUrl(contextPath, galleryFile) :
+                generateDynamicImageUrl(contextPath, galleryFile));
         if (GalleryFileType.VIDEO.equals(galleryFile.getType())) {
-            galleryFileHolder.setVideoPath(contextPath + "/video/{conversionFormat}/" + publicPath);
+            galleryFileHolder.setVideoPath(signUrls ? generateSignedVideoUrl(contextPath, galleryFile) :
+                    contextPath + "/video/{conversionFormat}/" + publicPath);
         }
         galleryFileHolder.setContentType(galleryFile.getContentType());
         galleryFileHolder.setDateTaken(galleryFile.getDateTaken());
@@ -374,28 +734,39 @@ public class GalleryController {
      * @return A list of gallery directory holders
      */
     private List<GalleryDirectoryHolder> convertToGalleryDirectoryHolders(String contextPath, List<GalleryDirectory> galleryDirectories) {
-        return galleryDirectories.stream().map(oneGalleryDirectory -> {
-            GalleryDirectoryHolder oneGalleryDirectoryHolder = new GalleryDirectoryHolder();
-            String onePublicPath = oneGalleryDirectory.getPublicPath();
-            oneGalleryDirectoryHolder.setName(oneGalleryDirectory.getName());
-            oneGalleryDirectoryHolder.setPath(contextPath + SERVICE_PATH + onePublicPath);
-            oneGalleryDirectoryHolder.setParentPath(generateParentPath(contextPath, onePublicPath));
-            if (oneGalleryDirectory.getImage() != null) {
-                oneGalleryDirectoryHolder.setImage(convertToGalleryFileHolder(contextPath, oneGalleryDirectory.getImage(), false));
-            }
-            return oneGalleryDirectoryHolder;
-        }).toList();
+        return galleryDirectories.stream().map(oneGalleryDirectory -> convertToGalleryDirectoryHolder(contextPath, oneGalleryDirectory))
+                .toList();
+    }
+
+    /**
+     * Converts the provided service layer {@link GalleryDirectory} to a web model {@link GalleryDirectoryHolder} object.
+     *
+     * @param contextPath      Webapp context path.
+     * @param galleryDirectory Service layer directory.
+     * @return A gallery directory holder
+     */
+    private GalleryDirectoryHolder convertToGalleryDirectoryHolder(String contextPath, GalleryDirectory galleryDirectory) {
+        GalleryDirectoryHolder galleryDirectoryHolder = new GalleryDirectoryHolder();
+        String publicPath = galleryDirectory.getPublicPath();
+        galleryDirectoryHolder.setName(galleryDirectory.getName());
+        galleryDirectoryHolder.setPath(contextPath + SERVICE_PATH + publicPath);
+        galleryDirectoryHolder.setParentPath(generateParentPath(contextPath, publicPath));
+        if (galleryDirectory.getImage() != null) {
+            galleryDirectoryHolder.setImage(convertToGalleryFileHolder(contextPath, galleryDirectory.getImage(), false));
+        }
+        return galleryDirectoryHolder;
     }
 
     /**
-     * Generates the URL template for a certain image format.
+     * Generates the URL template for a certain image format. If the version of the file is known it is added to the URL, so that any change
+     * of the original results in a new URL.
      *
      * @param contextPath Webapp context path.
      * @param file        Image.
      * @return The URL for the image at the given image format code.
      */
     private String generateDynamicImageUrl(String contextPath, GalleryFile file) {
-        return contextPath + "/image/{imageFormat}/" + file.getPublicPath();
+        return contextPath + "/image/{imageFormat}/" + file.getPublicPath() + generateVersionParameter(file);
     }
 
     /**
@@ -407,7 +778,44 @@ public class GalleryController {
      * The idea with these is that a calling entitiy should swap those values for the actual width/height.
      */
     private String generateCustomImageUrlTemplate(String contextPath, GalleryFile file) {
-        return contextPath + "/customImage/{width}/{height}/" + file.getPublicPath();
+        return contextPath + "/customImage/{width}/{height}/" + file.getPublicPath() + generateVersionParameter(file);
+    }
+
+    /**
+     * Generates a signed URL template for a certain image format. See {@link UrlSigningService}.
+     *
+     * @param contextPath Webapp context path.
+     * @param file        Image. Must have an ID
+     * @return The signed URL for the image at the given image format code.
+     */
+    private String generateSignedImageUrl(String contextPath, GalleryFile file) {
+        String resourceKey = SIGNED_IMAGE_PATH + file.getId();
+        String versionParameter = file.getVersion() != null ? "&v=" + file.getVersion() : "";
+        return contextPath + SIGNED_IMAGE_PATH + "{imageFormat}/" + file.getId() + "?" + urlSigningService.createSignedQuery(resourceKey) +
+                versionParameter;
+    }
+
+    /**
+     * Generates a signed URL template for a video. See {@link UrlSigningService}.
+     *
+     * @param contextPath Webapp context path.
+     * @param file        Video. Must have an ID
+     * @return The signed URL for the video. The URL will contain the placeholder {conversionFormat}.
+     */
+    private String generateSignedVideoUrl(String contextPath, GalleryFile file) {
+        String resourceKey = SIGNED_VIDEO_PATH + file.getId();
+        return contextPath + SIGNED_VIDEO_PATH + "{conversionFormat}/" + file.getId() + "?" +
+                urlSigningService.createSignedQuery(resourceKey);
+    }
+
+    /**
+     * Generates the version query parameter for an image URL.
+     *
+     * @param file Image
+     * @return The query string including the leading '?', or an empty string if the version of the file is not known
+     */
+    private String generateVersionParameter(GalleryFile file) {
+        return file.getVersion() != null ? "?v=" + file.getVersion() : "";
     }
 
     /**
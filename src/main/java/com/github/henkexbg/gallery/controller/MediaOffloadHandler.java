@@ -0,0 +1,160 @@
+package com.github.henkexbg.gallery.controller;
+
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UriUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Handles offloading of media responses to a reverse proxy. When enabled, the binary is not streamed by the application. Instead, a
+ * response containing only headers is returned, with a header telling the proxy which internal location or file to serve. Authorization and
+ * generation of derivatives still happen before this, so the proxy locations must be marked as internal and not be reachable directly.
+ * <p>
+ * Files are mapped via {@code gallery.offload.mappings}, a comma-separated list of {@code <directory>=<location>} pairs, typically one per
+ * originals root and one for the resize directory. With X-Accel-Redirect, a file not under any mapped directory is streamed by the
+ * application as usual. With X-Sendfile, such a file is passed to the proxy by its own path.
+ * <p>
+ * The path in the header is percent-encoded as UTF-8 in both modes. Header values are sent as ISO-8859-1, so names with other characters
+ * would otherwise be garbled, and a proxy unescaping the value, as mod_xsendfile does by default, would misread names containing '%'.
+ *
+ * @author Henrik Bjerne
+ */
+@Component
+public class MediaOffloadHandler {
+
+    /**
+     * Supported offload modes.
+     */
+    public enum OffloadMode {
+        /**
+         * No offloading, the application streams all media.
+         */
+        NONE,
+        /**
+         * Nginx style. The header contains a URI of an internal location.
+         */
+        X_ACCEL_REDIRECT,
+        /**
+         * Apache (mod_xsendfile) and lighttpd style. The header contains a file path.
+         */
+        X_SENDFILE
+    }
+
+    static final String X_ACCEL_REDIRECT_HEADER = "X-Accel-Redirect";
+
+    static final String X_SENDFILE_HEADER = "X-Sendfile";
+
+    private static final String MAPPING_SEPARATOR = ",";
+
+    private static final String MAPPING_KEY_VALUE_SEPARATOR = "=";
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    @Value("${gallery.offload.mode:NONE}")
+    private OffloadMode offloadMode = OffloadMode.NONE;
+
+    @Value("${gallery.offload.mappings:}")
+    private String mappingsString;
+
+    /**
+     * Canonical directory path (ending with a separator) to the location it is exposed at by the proxy (ending with a '/').
+     */
+    private final Map<String, String> mappings = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() throws IOException {
+        mappings.clear();
+        if (StringUtils.isNotBlank(mappingsString)) {
+            for (String oneMapping : mappingsString.split(MAPPING_SEPARATOR)) {
+                String[] keyValue = oneMapping.split(MAPPING_KEY_VALUE_SEPARATOR, 2);
+                if (keyValue.length != 2 || StringUtils.isAnyBlank(keyValue)) {
+                    throw new IllegalArgumentException("Invalid offload mapping: " + oneMapping);
+                }
+                String dir = new File(keyValue[0].trim()).getCanonicalPath();
+                String location = keyValue[1].trim();
+                mappings.put(Strings.CS.appendIfMissing(dir, File.separator), Strings.CS.appendIfMissing(location, "/"));
+            }
+        }
+        if (offloadMode == OffloadMode.X_ACCEL_REDIRECT && mappings.isEmpty()) {
+            LOG.warn("Offload mode {} is enabled but no mappings have been configured. All media will be streamed by the application",
+                    offloadMode);
+        }
+        LOG.info("Offload mode: {}, mappings: {}", offloadMode, mappings);
+    }
+
+    /**
+     * Whether offloading is enabled at all.
+     *
+     * @return true if media responses may be offloaded.
+     */
+    public boolean isEnabled() {
+        return offloadMode != OffloadMode.NONE;
+    }
+
+    /**
+     * Creates an offloaded response for the given file. The response has no body; content length and ranges are handled by the proxy.
+     *
+     * @param file        File to be served. Must already have been authorized
+     * @param contentType Content type of the file
+     * @param cacheHeader Value of the Cache-Control header
+     * @return A response with headers only, or null if offloading is disabled or the file is not under any mapped directory, in which case
+     * the caller should stream the file itself.
+     * @throws IOException If the canonical path of the file cannot be determined
+     */
+    public ResponseEntity<InputStreamResource> createOffloadResponse(File file, String contentType, String cacheHeader)
+            throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        String canonicalPath = file.getCanonicalPath();
+        String offloadLocation = getOffloadLocation(canonicalPath);
+        if (offloadLocation == null) {
+            LOG.debug("No offload mapping for {}. Streaming it from the application", canonicalPath);
+            return null;
+        }
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.setCacheControl(cacheHeader);
+        responseHeaders.setContentType(MediaType.valueOf(contentType));
+        responseHeaders.add(getHeaderName(), offloadLocation);
+        LOG.debug("Offloading {} via {}: {}", canonicalPath, getHeaderName(), offloadLocation);
+        return new ResponseEntity<>(responseHeaders, HttpStatus.OK);
+    }
+
+    /**
+     * Maps a canonical path to the value of the offload header. The path is percent-encoded, the configured location is not.
+     *
+     * @param canonicalPath Canonical path of file
+     * @return The header value, or null if the file cannot be offloaded.
+     */
+    private String getOffloadLocation(String canonicalPath) {
+        for (Map.Entry<String, String> oneMapping : mappings.entrySet()) {
+            if (canonicalPath.startsWith(oneMapping.getKey())) {
+                String relativePath = canonicalPath.substring(oneMapping.getKey().length()).replace(File.separatorChar, '/');
+                return oneMapping.getValue() + UriUtils.encodePath(relativePath, StandardCharsets.UTF_8);
+            }
+        }
+        // X-Sendfile takes a file path, so unmapped files can be passed by their own path. The proxy is responsible for whitelisting
+        // directories
+        return offloadMode == OffloadMode.X_SENDFILE ? UriUtils.encodePath(canonicalPath, StandardCharsets.UTF_8) : null;
+    }
+
+    private String getHeaderName() {
+        return offloadMode == OffloadMode.X_ACCEL_REDIRECT ? X_ACCEL_REDIRECT_HEADER : X_SENDFILE_HEADER;
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.github.henkexbg.gallery.controller.model;
+
+/**
+ * Web model of a cluster of media on a map.
+ *
+ * @param lon            Average longitude of the media in the cluster
+ * @param lat            Average latitude of the media in the cluster
+ * @param count          Number of media in the cluster
+ * @param representative One of the media in the cluster, for display
+ */
+public record GeoClusterHolder(double lon, double lat, long count, GalleryFileHolder representative) {
+}
@@ -52,6 +52,10 @@ public class ListingContext {
     
     private List<ImageFormat> imageFormats;
 
+    private String nextCursor;
+
+    private String nextDirectoryCursor;
+
     public String getCurrentPathDisplay() {
         return currentPathDisplay;
     }
@@ -123,5 +127,21 @@ public class ListingContext {
     public void setImageFormats(List<ImageFormat> imageFormats) {
         this.imageFormats = imageFormats;
     }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public String getNextDirectoryCursor() {
+        return nextDirectoryCursor;
+    }
+
+    public void setNextDirectoryCursor(String nextDirectoryCursor) {
+        this.nextDirectoryCursor = nextDirectoryCursor;
+    }
     
 }
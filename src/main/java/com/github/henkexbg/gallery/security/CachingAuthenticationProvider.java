@@ -0,0 +1,174 @@
+package com.github.henkexbg.gallery.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Authentication provider for the users in the users properties file, which caches successful authentications for a short while. With
+ * basic auth every request carries the credentials, and verifying a bcrypt password takes a noticeable amount of CPU. This provider only
+ * pays that cost for the first request within the TTL, and after that looks up the result via a keyed hash of the credentials. Plain
+ * passwords are never kept in memory. Failed authentications are never cached.
+ * <p>
+ * The users file is checked for modifications at most once per TTL, though never more than once per second, so that a short or no TTL does
+ * not mean a file system call per request. If it has changed, the users are reloaded and all cached authentications are dropped. This
+ * also means that users can be changed without restarting the application.
+ */
+public class CachingAuthenticationProvider implements AuthenticationProvider {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final long MIN_USERS_FILE_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    private final File usersPropertiesFile;
+
+    private final long ttlMillis;
+
+    private final int maxEntries;
+
+    private final SecretKeySpec cacheKeySecret;
+
+    private final Map<String, CachedAuthentication> authenticationCache = new ConcurrentHashMap<>();
+
+    private volatile DaoAuthenticationProvider delegate;
+
+    private volatile long usersFileLastModified;
+
+    private volatile long nextUsersFileCheck;
+
+    /**
+     * Source of the current time. Replaceable for tests.
+     */
+    LongSupplier currentTimeMillis = System::currentTimeMillis;
+
+    /**
+     * Creates the provider and loads the users.
+     *
+     * @param usersPropertiesFile Users properties file, in the format supported by {@link InMemoryUserDetailsManager}
+     * @param ttlSeconds          How long a successful authentication is cached. 0 disables caching
+     * @param maxEntries          Max number of cached authentications
+     * @throws IllegalArgumentException If the users file cannot be loaded
+     */
+    public CachingAuthenticationProvider(File usersPropertiesFile, long ttlSeconds, int maxEntries) {
+        this.usersPropertiesFile = usersPropertiesFile;
+        this.ttlMillis = Math.max(0, ttlSeconds) * 1000;
+        this.maxEntries = maxEntries;
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.cacheKeySecret = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+        loadUsers();
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        reloadUsersIfModified();
+        if (ttlMillis == 0 || authentication.getCredentials() == null) {
+            return delegate.authenticate(authentication);
+        }
+        String cacheKey = createCacheKey(authentication.getName(), authentication.getCredentials().toString());
+        long now = currentTimeMillis.getAsLong();
+        CachedAuthentication cachedAuthentication = authenticationCache.get(cacheKey);
+        if (cachedAuthentication != null && cachedAuthentication.expires() > now) {
+            LOG.trace("Returning cached authentication for {}", authentication.getName());
+            Authentication result = cachedAuthentication.authentication();
+            // New token per request, as the caller may add request specific details to it
+            return UsernamePasswordAuthenticationToken.authenticated(result.getPrincipal(), null, result.getAuthorities());
+        }
+        DaoAuthenticationProvider currentDelegate = delegate;
+        Authentication result = currentDelegate.authenticate(authentication);
+        // If the users were reloaded meanwhile, the result may be based on the previous users and must not be cached
+        if (result != null && result.isAuthenticated() && currentDelegate == delegate) {
+            if (authenticationCache.size() >= maxEntries) {
+                authenticationCache.values().removeIf(ca -> ca.expires() <= now);
+                if (authenticationCache.size() >= maxEntries) {
+                    LOG.debug("Authentication cache full. Clearing it");
+                    authenticationCache.clear();
+                }
+            }
+            authenticationCache.put(cacheKey, new CachedAuthentication(result, now + ttlMillis));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean supports(Class<?> authentication) {
+        return UsernamePasswordAuthenticationToken.class.isAssignableFrom(authentication);
+    }
+
+    /**
+     * Checks whether the users file has been modified, at most once per TTL or check interval, whichever is longer, and reloads the users
+     * if so.
+     */
+    private void reloadUsersIfModified() {
+        long now = currentTimeMillis.getAsLong();
+        if (now < nextUsersFileCheck) {
+            return;
+        }
+        synchronized (this) {
+            if (now < nextUsersFileCheck) {
+                return;
+            }
+            nextUsersFileCheck = now + Math.max(ttlMillis, MIN_USERS_FILE_CHECK_INTERVAL_MILLIS);
+            if (usersPropertiesFile.lastModified() != usersFileLastModified) {
+                LOG.info("Users file {} has been modified. Reloading users", usersPropertiesFile);
+                try {
+                    loadUsers();
+                } catch (IllegalArgumentException iae) {
+                    LOG.error("Could not reload users file. Keeping the previous users", iae);
+                }
+            }
+        }
+    }
+
+    private synchronized void loadUsers() {
+        long lastModified = usersPropertiesFile.lastModified();
+        Properties usersProperties = new Properties();
+        try (InputStream is = new FileInputStream(usersPropertiesFile)) {
+            usersProperties.load(is);
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException("No valid user properties file given!");
+        }
+        delegate = new DaoAuthenticationProvider(new InMemoryUserDetailsManager(usersProperties));
+        usersFileLastModified = lastModified;
+        authenticationCache.clear();
+    }
+
+    private String createCacheKey(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(cacheKeySecret);
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            // Separator between username and password, so that moving characters between them results in a different key
+            mac.update((byte) 0);
+            return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not create authentication cache key", e);
+        }
+    }
+
+    private record CachedAuthentication(Authentication authentication, long expires) {
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.github.henkexbg.gallery.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One exiftool process, kept open between requests via -stay_open. Arguments are passed on stdin, so any number of files can be passed in
+ * one request, and exiftool is only started once rather than per request. The process is started on first use, and restarted on the next
+ * request should it fail. A request not done within the timeout is assumed to hang, and the process is killed so that it is restarted.
+ * <p>
+ * Requests are expected to produce JSON output, i.e. include -j. Not thread safe beyond one request at a time, which is enforced.
+ */
+class ExifToolProcess implements Closeable {
+
+    /**
+     * Printed by exiftool on a line of its own when done with a request.
+     */
+    private static final String READY_MARKER = "{ready}";
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    private final String exiftoolPath;
+
+    private final ObjectMapper objectMapper;
+
+    private final long timeoutMillis;
+
+    private Process process;
+
+    private BufferedWriter writer;
+
+    private BufferedReader reader;
+
+    ExifToolProcess(String exiftoolPath, ObjectMapper objectMapper, long timeoutMillis) {
+        this.exiftoolPath = exiftoolPath;
+        this.objectMapper = objectMapper;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Executes one request.
+     *
+     * @param arguments Arguments, one per element, including the files
+     * @return The JSON output. An empty array if there was no output, which is the case if no file could be read
+     * @throws IOException If the process fails or times out. The process is then closed
+     */
+    synchronized JsonNode execute(List<String> arguments) throws IOException {
+        CompletableFuture<Void> watchdog = null;
+        try {
+            if (process == null || !process.isAlive()) {
+                start();
+            }
+            for (String argument : arguments) {
+                writer.write(argument);
+                writer.newLine();
+            }
+            writer.write("-execute");
+            writer.newLine();
+            writer.flush();
+            // Reads block, so the process is killed on timeout, which ends the output
+            Process runningProcess = process;
+            AtomicBoolean timedOut = new AtomicBoolean();
+            watchdog = CompletableFuture.runAsync(() -> {
+                timedOut.set(true);
+                runningProcess.destroyForcibly();
+            }, CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS));
+            StringBuilder output = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals(READY_MARKER)) {
+                output.append(line).append('\n');
+            }
+            if (line == null) {
+                throw new IOException(timedOut.get() ? "exiftool did not respond within %s ms".formatted(timeoutMillis) :
+                        "exiftool exited unexpectedly");
+            }
+            return output.isEmpty() ? objectMapper.createArrayNode() : objectMapper.readTree(output.toString());
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+        }
+    }
+
+    private void start() throws IOException {
+        LOG.debug("Starting exiftool process");
+        process = new ProcessBuilder(exiftoolPath, "-stay_open", "True", "-@", "-").redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (process == null) {
+            return;
+        }
+        try {
+            writer.write("-stay_open");
+            writer.newLine();
+            writer.write("False");
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            // Intentionally empty, the process is destroyed anyway
+        }
+        process.destroy();
+        process = null;
+    }
+
+}
@@ -40,6 +40,13 @@ public interface GalleryAuthorizationService {
      */
     Map<String, File> getRootPathsForCurrentUser();
 
+    /**
+     * As {@link #getRootPathsForCurrentUser()}, but with the canonical paths of the root directories, which are resolved in advance.
+     *
+     * @return A Map where the key is a descriptive name, and the value is the canonical path of the directory to which the user has access.
+     */
+    Map<String, String> getCanonicalRootPathsForCurrentUser();
+
     /**
      * Retrieves all root directories across all roles. This is for administrative purposes and required the calling user to have
      * ROLE_ADMIN.
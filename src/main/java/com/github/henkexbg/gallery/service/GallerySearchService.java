@@ -9,26 +9,39 @@ import com.github.henkexbg.gallery.util.GalleryFileUtils;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
-import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.jdbi.v3.core.Handle;
 import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.result.ResultIterator;
+import org.jdbi.v3.core.statement.PreparedBatch;
 import org.jdbi.v3.core.statement.Query;
 import org.jdbi.v3.core.statement.Update;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.MonthDay;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static com.github.henkexbg.gallery.util.GalleryFileUtils.*;
-import static org.apache.commons.io.FileUtils.listFilesAndDirs;
 
 /**
  * Adds search capability as well as indexing. Utilises a database that indexes all relevant files present within the root directories. When
@@ -40,10 +53,28 @@ import static org.apache.commons.io.FileUtils.listFilesAndDirs;
 public class GallerySearchService implements FileChangeListener, GalleryRootDirChangeListener {
 
     public static final int MAX_PAGE_SIZE = 2000;
+    public static final int MAX_DIRECTORY_PAGE_SIZE = 500;
+    public static final int DEFAULT_SUGGESTIONS = 10;
+    public static final int MAX_SUGGESTIONS = 50;
+    public static final int MAX_GEO_CLUSTERS = 500;
+    public static final int MAX_ZOOM = 24;
+
+    /**
+     * Number of grid cells along each side of a map tile at a given zoom level. With 256 pixel tiles, a cell is 32 pixels wide.
+     */
+    static final int GEO_CELLS_PER_TILE = 8;
     static final Set<String> LOCATION_CITY_OR_TOWN_FEATURE_CODE =
             Set.of("ADM1", "ADM2", "ADM3", "ADM4", "ADM5", "PPL", "PPLA", "PPLA2", "PPLA3", "PPLA4", "PPLA5", "PPLC", "PPLF", "PPLH",
                     "PPLL", "PPLR", "PPLS");
 
+    /**
+     * Restricts f to strict descendants of the directories bound as :base_ids, via an integer lookup in the ancestry table.
+     */
+    static final String DESCENDANT_OF_BASE_CONDITION =
+            "f.id IN (SELECT a.descendant_id FROM gallery_file_ancestor a WHERE a.ancestor_id = ANY(:base_ids) AND a.depth > 0)";
+
+    static final String INSERT_TAG_QUERY = "INSERT INTO tag (file_id, source, type, text) VALUES (:file_id, :source, :type, :text)";
+
     final Logger LOG = LoggerFactory.getLogger(getClass());
     final Map<String, String> ISO_COUNTRY_NAME_MAP;
 
@@ -59,6 +90,12 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
     @Resource
     MetadataExtractionService metadataExtractionService;
 
+    @Resource
+    TagIndex tagIndex;
+
+    @Resource
+    SearchResultCache searchResultCache;
+
     @Resource
     Jdbi jdbi;
 
@@ -69,7 +106,50 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
 
     private volatile boolean running = false;
 
-    private final BlockingQueue<FileAndAction> updatedFilesQueue = new LinkedBlockingQueue<>();
+    @Value("${gallery.search.maxBoundTagFileIds:10000}")
+    private int maxBoundTagFileIds = 10000;
+
+    @Value("${gallery.updateQueue.maxEntries:100000}")
+    private int updateQueueMaxEntries = 100000;
+
+    private IndexUpdateQueue updateQueue;
+
+    @Value("${gallery.indexing.queueCapacity:1000}")
+    private int indexingQueueCapacity = 1000;
+
+    @Value("${gallery.indexing.traversalParallelism:8}")
+    private int traversalParallelism = 8;
+
+    @Value("${gallery.indexing.detectParallelism:4}")
+    private int detectParallelism = 4;
+
+    @Value("${gallery.indexing.metadataParallelism:4}")
+    private int metadataParallelism = 4;
+
+    @Value("${gallery.indexing.metadataBatchSize:50}")
+    private int metadataBatchSize = 50;
+
+    @Value("${gallery.indexing.geocodeParallelism:2}")
+    private int geocodeParallelism = 2;
+
+    @Value("${gallery.indexing.writerParallelism:1}")
+    private int writerParallelism = 1;
+
+    @Value("${gallery.indexing.writerBatchSize:100}")
+    private int writerBatchSize = 100;
+
+    @Value("${gallery.indexing.writerMaxWaitMillis:200}")
+    private int writerMaxWaitMillis = 200;
+
+    private IndexingPipeline indexingPipeline;
+
+    private IndexingPipeline.Stage<File> detectStage;
+
+    private IndexingPipeline.Stage<ChangedFile> metadataStage;
+
+    private IndexingPipeline.Stage<ExtractedFile> geocodeStage;
+
+    private IndexingPipeline.Stage<ExtractedFile> writeStage;
 
     public GallerySearchService() {
         ISO_COUNTRY_NAME_MAP = new HashMap<>();
@@ -81,32 +161,45 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
     }
 
     /**
-     * Set up the update thread, which continuously listens to updated files via the {@link FileChangeListener} interface.
+     * Set up the update thread, which continuously listens to updated files via the {@link FileChangeListener} interface. Updates are
+     * coalesced per file in an {@link IndexUpdateQueue}, and the thread processes everything pending at once.
+     * <p>
+     * Also sets up the {@link IndexingPipeline} through which media files are indexed. Each file passes change detection, metadata
+     * extraction, geocoding and finally writing, with each stage running in parallel with the others.
      */
     @PostConstruct
     public void init() {
+        updateQueue = new IndexUpdateQueue(updateQueueMaxEntries);
+        indexingPipeline = new IndexingPipeline();
+        detectStage = indexingPipeline.addStage("detect", detectParallelism, indexingQueueCapacity, 1, 0, files -> {
+            ChangedFile changedFile = detectChange(files.getFirst());
+            if (changedFile != null) {
+                metadataStage.submit(changedFile);
+            }
+        });
+        metadataStage = indexingPipeline.addStage("metadata", metadataParallelism, indexingQueueCapacity, metadataBatchSize, 0,
+                changedFiles -> {
+                    for (ExtractedFile extractedFile : extractMetadata(changedFiles)) {
+                        geocodeStage.submit(extractedFile);
+                    }
+                });
+        geocodeStage = indexingPipeline.addStage("geocode", geocodeParallelism, indexingQueueCapacity, 1, 0,
+                extractedFiles -> writeStage.submit(geocode(extractedFiles.getFirst())));
+        writeStage = indexingPipeline.addStage("write", writerParallelism, indexingQueueCapacity, writerBatchSize, writerMaxWaitMillis,
+                this::writeFiles);
+        indexingPipeline.start();
         Runnable updateRunnable = () -> {
             while (running) {
-                FileAndAction fileAndAction = null;
                 try {
                     galleryAuthorizationService.loginAdminUser();
-                    fileAndAction = updatedFilesQueue.take();
-                    LOG.debug("Update thread received {}. Remaining files in queue: {}", fileAndAction, updatedFilesQueue.size());
-                    Collection<File> rootDirectories = galleryAuthorizationService.getAllRootDirectoriesInSystem();
-                    File file = fileAndAction.file();
-                    if (fileAndAction.fileAction() == FileAction.UPDATE) {
-                        if (file.isDirectory()) {
-                            upsertOneDirectory(file, rootDirectories);
-                        } else {
-                            createOrUpdateOneFile(file);
-                        }
-                    } else {
-                        deleteOneFile(file);
-                    }
+                    IndexUpdateQueue.Batch batch = updateQueue.takeAll();
+                    LOG.debug("Update thread received {} files in {} directories, {} directories to rescan", batch.size(),
+                            batch.actionsPerDirectory().size(), batch.rescanDirectories().size());
+                    processUpdateBatch(batch);
                 } catch (InterruptedException ie) {
                     LOG.debug("Update thread interrupted");
                 } catch (Exception e) {
-                    LOG.error("Error when updating {}. Ignoring", fileAndAction, e);
+                    LOG.error("Error when processing updates. Ignoring", e);
                 }
             }
             LOG.info("Shutting down file update thread");
@@ -123,10 +216,14 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
         if (updateThread != null) {
             updateThread.interrupt();
         }
+        if (indexingPipeline != null) {
+            indexingPipeline.shutdown();
+        }
     }
 
     /**
-     * Perform the search for media and directories given a search query.
+     * Perform the search for media and directories given a search query. Results are cached per root paths of the user and query, until
+     * anything changes within the base directories.
      *
      * @param searchQuery Search query
      * @return A search result
@@ -135,53 +232,206 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
      */
     public SearchResult search(SearchQuery searchQuery) throws IOException, NotAllowedException {
         long startTime = System.currentTimeMillis();
+        SearchResultCache.Key cacheKey =
+                new SearchResultCache.Key(galleryAuthorizationService.getCanonicalRootPathsForCurrentUser(), searchQuery);
+        SearchResult cachedResult = searchResultCache.get(cacheKey);
+        if (cachedResult != null) {
+            LOG.debug("Returning cached result for {}", searchQuery);
+            return cachedResult;
+        }
+        PreparedSearch preparedSearch = prepareSearch(searchQuery);
+        try {
+            long[] baseVersions = searchResultCache.getVersions(preparedSearch.baseIds());
+            List<DbFile> dbDirectories = new ArrayList<>();
+            String nextDirectoryCursor = findDirectoriesForQuery(preparedSearch, dbDirectories::add);
+            List<DbFile> dbMedia = new ArrayList<>();
+            String nextCursor = findMediaForQuery(preparedSearch, dbMedia::add);
+
+            List<GalleryFile> galleryFiles = dbMedia.stream().map(this::createGalleryFileFromDbFile).filter(Objects::nonNull).toList();
+            List<GalleryDirectory> galleryDirectories =
+                    dbDirectories.stream().map(this::createGalleryDirectoryFromDbFile).filter(Objects::nonNull).toList();
+            LOG.debug("Returning {} directories and {} gallery files in {}ms", galleryDirectories.size(), galleryFiles.size(),
+                    System.currentTimeMillis() - startTime);
+            SearchResult searchResult = new SearchResult(galleryDirectories, galleryFiles, nextCursor, nextDirectoryCursor);
+            // Results for base directories that are not indexed yet cannot be invalidated via their versions
+            if (preparedSearch.allBasesIndexed()) {
+                searchResultCache.put(cacheKey, searchResult, preparedSearch.baseIds(), baseVersions);
+            }
+            return searchResult;
+        } catch (Exception e) {
+            LOG.error("Error when performing database search", e);
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Prepares a search: checks that the user has access to the public path, resolves the base directories and search terms, and validates
+     * the cursors. Any error in the query surfaces here, before any result is produced. The prepared search is then executed via
+     * {@link #streamDirectories(PreparedSearch, Consumer)} and {@link #streamMedia(PreparedSearch, Consumer)}.
+     *
+     * @param searchQuery Search query
+     * @return A prepared search
+     * @throws IOException              If there's an error resolving the public path
+     * @throws NotAllowedException      If the user does not have access to the path for which they are performing the search
+     * @throws IllegalArgumentException If a cursor is not valid
+     */
+    public PreparedSearch prepareSearch(SearchQuery searchQuery) throws IOException, NotAllowedException {
         String publicPath = searchQuery.publicPath();
         List<String> basePaths = new ArrayList<>();
         String searchTerm = searchQuery.searchTerm();
         List<String> searchTerms = searchTerm != null ?
-                Arrays.stream(searchTerm.split("\\s")).map(String::trim).map(String::toLowerCase).map(s -> s + "%").toList() :
+                Arrays.stream(searchTerm.split("\\s")).map(String::trim).filter(StringUtils::isNotEmpty).map(String::toLowerCase).toList() :
                 Collections.emptyList();
         boolean emptyPathAndTerms = false;
         if (StringUtils.isNotBlank(publicPath)) {
             basePaths.add(galleryAuthorizationService.getRealFileOrDir(publicPath).getCanonicalPath());
         } else {
-            galleryAuthorizationService.getRootPathsForCurrentUser().values().forEach(f -> {
-                try {
-                    basePaths.add(f.getCanonicalPath());
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+            basePaths.addAll(galleryAuthorizationService.getCanonicalRootPathsForCurrentUser().values());
             // Set to true if empty path (root paths used) and empty search terms
             emptyPathAndTerms = searchTerms.isEmpty();
         }
-        List<String> basePathSearchTerms = basePaths.stream().map(bp -> bp + "/_%").toList();
-        LOG.debug("Performing search with publicPath={}, basePaths={} searchTerm={}", publicPath, basePaths, searchTerm);
+        LOG.debug("Performing search with publicPath={}, basePaths={} searchTerm={}, fuzzy={}", publicPath, basePaths, searchTerm,
+                searchQuery.fuzzy());
+        SortOrder sortOrder = searchQuery.sortOrder() != null ? searchQuery.sortOrder() : SortOrder.DESC;
+        ListingCursor cursor = decodeCursor(searchQuery.cursor(), sortOrder);
+        ListingCursor directoryCursor = decodeCursor(searchQuery.directoryCursor(), sortOrder);
+        // Files and directories within the base directories having a tag matching any of the terms. Null if there are no search terms
+        TagIndex.TermMatch tagMatch = null;
+        if (!searchTerms.isEmpty()) {
+            tagMatch = searchQuery.fuzzy() ? tagIndex.findByFuzzyTerms(searchTerms, basePaths, maxBoundTagFileIds) :
+                    tagIndex.findByPrefixes(searchTerms, basePaths, maxBoundTagFileIds);
+        }
         try {
-            SortOrder sortOrder = searchQuery.sortOrder() != null ? searchQuery.sortOrder() : SortOrder.DESC;
-            List<DbFile> dbDirectories = emptyPathAndTerms ? findDirectoriesForRootPaths(basePaths, sortOrder) :
-                    searchTerms.isEmpty() ? findDirectoriesForQuery(basePaths, sortOrder) :
-                            findDirectoriesForQuery(searchTerms, basePathSearchTerms, sortOrder);
-            Set<Long> directoryIds = dbDirectories.stream().map(DbFile::getId).collect(Collectors.toSet());
-            List<DbFile> dbMedia =
-                    findMediaForQuery(searchTerms, basePathSearchTerms, directoryIds, sortOrder, searchQuery.page(),
-                            searchQuery.pageSize());
-
-            List<GalleryFile> galleryFiles = dbMedia.stream().map(this::createGalleryFileFromDbFile).filter(Objects::nonNull).toList();
-            List<GalleryDirectory> galleryDirectories =
-                    dbDirectories.stream().map(this::createGalleryDirectoryFromDbFile).filter(Objects::nonNull).toList();
-            LOG.debug("Returning {} directories and {} gallery files in {}ms", galleryDirectories.size(), galleryFiles.size(),
-                    System.currentTimeMillis() - startTime);
-            return new SearchResult(galleryDirectories, galleryFiles);
+            long[] baseIds = findDirectoryIdsForPaths(basePaths);
+            return new PreparedSearch(searchQuery, tagMatch, baseIds, baseIds.length == basePaths.size(), emptyPathAndTerms, sortOrder,
+                    cursor, directoryCursor);
         } catch (Exception e) {
             LOG.error("Error when performing database search", e);
             throw new IOException(e);
         }
     }
 
+    /**
+     * Streams one page of directories of a prepared search. The rows of the page are read first, so that the database connection is
+     * released before the consumer gets anything, and is never held while writing to a slow client. The price is that the rows of one page,
+     * at most {@link #MAX_DIRECTORY_PAGE_SIZE}, are held in memory. The directories are then converted and passed on one at a time. Results
+     * are not cached.
+     *
+     * @param preparedSearch     Prepared search
+     * @param directoryConsumer Receives the directories, in order
+     * @return Cursor to the next page of directories, or null if this is the last page
+     */
+    public String streamDirectories(PreparedSearch preparedSearch, Consumer<GalleryDirectory> directoryConsumer) {
+        List<DbFile> dbDirectories = new ArrayList<>();
+        String nextDirectoryCursor = findDirectoriesForQuery(preparedSearch, dbDirectories::add);
+        dbDirectories.stream().map(this::createGalleryDirectoryFromDbFile).filter(Objects::nonNull).forEach(directoryConsumer);
+        return nextDirectoryCursor;
+    }
+
+    /**
+     * Streams one page of media of a prepared search. As for {@link #streamDirectories(PreparedSearch, Consumer)}, the rows of the page are
+     * read before the media are converted and passed on one at a time. Results are not cached.
+     *
+     * @param preparedSearch Prepared search
+     * @param mediaConsumer  Receives the media, in order
+     * @return Cursor to the next page of media, or null if this is the last page
+     */
+    public String streamMedia(PreparedSearch preparedSearch, Consumer<GalleryFile> mediaConsumer) {
+        List<DbFile> dbMedia = new ArrayList<>();
+        String nextCursor = findMediaForQuery(preparedSearch, dbMedia::add);
+        dbMedia.stream().map(this::createGalleryFileFromDbFile).filter(Objects::nonNull).forEach(mediaConsumer);
+        return nextCursor;
+    }
+
+    /**
+     * Clusters the media within a bounding box for display on a map. The box is divided into a grid based on the zoom level, and the media
+     * of the current user are counted per cell by an aggregate query using the spatial index. The grid is made coarser if needed so that
+     * the box holds at most about {@link #MAX_GEO_CLUSTERS} cells, and the cells with the most media are returned, so the size of the
+     * result is bounded no matter how many media there are.
+     *
+     * @param minLon Western edge of the box
+     * @param minLat Southern edge of the box
+     * @param maxLon Eastern edge of the box
+     * @param maxLat Northern edge of the box
+     * @param zoom   Zoom level of the map, as for map tiles. Clamped to between 0 and {@link #MAX_ZOOM}
+     * @return The clusters, largest first
+     * @throws IOException              If there's an error querying the database
+     * @throws IllegalArgumentException If the bounding box is not valid. A box crossing the antimeridian must be split by the caller
+     */
+    public List<GeoCluster> findGeoClusters(double minLon, double minLat, double maxLon, double maxLat, int zoom) throws IOException {
+        if (minLon < -180 || maxLon > 180 || minLat < -90 || maxLat > 90 || minLon >= maxLon || minLat >= maxLat) {
+            throw new IllegalArgumentException("Invalid bounding box");
+        }
+        final String clusterQuery = """
+                WITH located AS (
+                    SELECT f.id, f.location,
+                        CAST(FLOOR((ST_X(f.location) + 180) / :cell_size) AS BIGINT) AS cell_x,
+                        CAST(FLOOR((ST_Y(f.location) + 90) / :cell_size) AS BIGINT) AS cell_y
+                    FROM gallery_file f
+                    WHERE f.location && ST_MakeEnvelope(:min_lon, :min_lat, :max_lon, :max_lat)
+                    AND %s
+                ), cells AS (
+                    SELECT COUNT(*) AS file_count, AVG(ST_X(location)) AS lon, AVG(ST_Y(location)) AS lat, MAX(id) AS representative_id
+                    FROM located
+                    GROUP BY cell_x, cell_y
+                    ORDER BY file_count DESC
+                    LIMIT :max_clusters
+                )
+                SELECT c.file_count, c.lon, c.lat, f.* FROM cells c
+                JOIN gallery_file f ON f.id = c.representative_id
+                ORDER BY c.file_count DESC
+                """.formatted(DESCENDANT_OF_BASE_CONDITION);
+        int clampedZoom = Math.clamp(zoom, 0, MAX_ZOOM);
+        double cellSize = Math.max(360.0 / (1L << clampedZoom) / GEO_CELLS_PER_TILE,
+                Math.sqrt((maxLon - minLon) * (maxLat - minLat) / MAX_GEO_CLUSTERS));
+        List<String> rootPaths = new ArrayList<>(galleryAuthorizationService.getCanonicalRootPathsForCurrentUser().values());
+        try {
+            long[] baseIds = findDirectoryIdsForPaths(rootPaths);
+            if (baseIds.length == 0) {
+                return Collections.emptyList();
+            }
+            List<ClusterRow> rows = jdbi.withHandle(handle -> handle.createQuery(clusterQuery)
+                    .bind("cell_size", cellSize).bind("min_lon", minLon).bind("min_lat", minLat).bind("max_lon", maxLon)
+                    .bind("max_lat", maxLat).bind("base_ids", toArrayParameter(baseIds)).bind("max_clusters", MAX_GEO_CLUSTERS)
+                    .map((rs, ctx) -> new ClusterRow(rs.getDouble("lon"), rs.getDouble("lat"), rs.getLong("file_count"),
+                            ctx.findRowMapperFor(DbFile.class).orElseThrow().map(rs, ctx)))
+                    .list());
+            List<GeoCluster> clusters = new ArrayList<>(rows.size());
+            for (ClusterRow row : rows) {
+                GalleryFile representative = createGalleryFileFromDbFile(row.representative());
+                if (representative != null) {
+                    clusters.add(new GeoCluster(row.lon(), row.lat(), row.count(), representative));
+                }
+            }
+            return clusters;
+        } catch (Exception e) {
+            LOG.error("Error when clustering media by location", e);
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Suggests completions of a search term, for search as you type. Suggestions come from the in-memory tag index and only count files and
+     * directories within the root directories of the current user.
+     *
+     * @param prefix Start of a search term
+     * @param limit  Max number of suggestions. If null, less than 1 or more than {@link #MAX_SUGGESTIONS}, {@link #DEFAULT_SUGGESTIONS}
+     *               is used
+     * @return Suggestions, most common first
+     */
+    public List<TagSuggestion> suggest(String prefix, Integer limit) {
+        if (StringUtils.isBlank(prefix)) {
+            return Collections.emptyList();
+        }
+        int actualLimit = limit == null || limit <= 0 || limit > MAX_SUGGESTIONS ? DEFAULT_SUGGESTIONS : limit;
+        return tagIndex.suggest(prefix, galleryAuthorizationService.getCanonicalRootPathsForCurrentUser().values(), actualLimit);
+    }
+
     /**
      * Goes through all directories and files under all root paths configured, and triggers a DB update for each. The DB will not update
-     * records that haven't changed according to modification time.
+     * records that haven't changed according to modification time. Subtrees are traversed in parallel on virtual threads, and each
+     * directory is compared to the index in bulk as it is found. Changed and new files are streamed into the indexing pipeline, while files
+     * and directories that have vanished from disk are deleted. Returns once all files have been indexed.
      */
     public void createOrUpdateAllDirectories(boolean removeAll) {
         try {
@@ -189,30 +439,100 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
                 deleteAllFilesAndDirectories();
             }
             Collection<File> rootDirectories = galleryAuthorizationService.getAllRootDirectoriesInSystem();
-            Collection<File> allDirectoriesCol = getAllDirectories(rootDirectories);
-            List<File> allDirectoriesSorted =
-                    allDirectoriesCol.stream().sorted(Comparator.comparingInt(f -> getPathName(f).length())).toList();
-            for (File oneDirectory : allDirectoriesSorted) {
-                try {
-                    upsertOneDirectory(oneDirectory, rootDirectories);
-                } catch (IOException e) {
-                    LOG.error("Error while creating or updating directory {} in database", oneDirectory, e);
-                }
-                List<File> filesInDir = Arrays.stream(Objects.requireNonNull(oneDirectory.listFiles())).filter(File::isFile).toList();
-                List<CompletableFuture<Void>> updatedFileFutures = filesInDir.stream().map(f -> CompletableFuture.runAsync(() -> {
-                    try {
-                        createOrUpdateOneFile(f);
-                    } catch (Exception e) {
-                        LOG.error("Failed in updating {}. Ignoring", f, e);
-                    }
-                }, executorService)).toList();
-                CompletableFuture.allOf(updatedFileFutures.toArray(new CompletableFuture[0])).join();
+            Semaphore permits = new Semaphore(Math.max(1, traversalParallelism));
+            List<CompletableFuture<Void>> rootFutures = new ArrayList<>();
+            for (File rootDirectory : getTopRootDirectories(rootDirectories)) {
+                rootFutures.add(CompletableFuture.runAsync(() -> traverseDirectory(rootDirectory, true, rootDirectories, permits),
+                        executorService));
             }
+            CompletableFuture.allOf(rootFutures.toArray(new CompletableFuture[0])).join();
+            indexingPipeline.awaitIdle();
         } catch (IOException | NotAllowedException e) {
             LOG.error("Error while creating or updating directories and files in database", e);
+        } catch (InterruptedException ie) {
+            LOG.warn("Interrupted while creating or updating directories and files in database");
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Indexes one directory and, in parallel, its subdirectories. The directory is upserted before anything within it. Returns once the
+     * whole subtree has been traversed, though files may still be in the indexing pipeline. An error for one directory skips it and its
+     * subtree, but not the rest of the traversal.
+     *
+     * @param directory       Directory
+     * @param upsert          Whether the directory itself needs to be upserted
+     * @param rootDirectories All root directories in the system
+     * @param permits         Limits the number of directories processed at once
+     */
+    private void traverseDirectory(File directory, boolean upsert, Collection<File> rootDirectories, Semaphore permits) {
+        List<CompletableFuture<Void>> subdirectoryFutures = new ArrayList<>();
+        try {
+            DirectoryDelta delta;
+            permits.acquire();
+            try {
+                if (upsert) {
+                    upsertOneDirectory(directory, rootDirectories);
+                }
+                delta = findDirectoryDelta(directory);
+                deleteVanished(delta);
+            } finally {
+                permits.release();
+            }
+            for (ChangedFile changedFile : delta.changedFiles()) {
+                metadataStage.submit(changedFile);
+            }
+            Set<File> changedDirectories = new HashSet<>(delta.changedDirectories());
+            for (File subdirectory : delta.subdirectories()) {
+                boolean upsertSubdirectory = changedDirectories.contains(subdirectory);
+                subdirectoryFutures.add(CompletableFuture.runAsync(
+                        () -> traverseDirectory(subdirectory, upsertSubdirectory, rootDirectories, permits), executorService));
+            }
+        } catch (IOException | RuntimeException e) {
+            // E.g. a JdbiException, which would otherwise abort the whole refresh
+            LOG.error("Error while creating or updating directory {} in database. Skipping it", directory, e);
+        } catch (InterruptedException ie) {
+            LOG.warn("Interrupted while traversing {}", directory);
+            Thread.currentThread().interrupt();
+        }
+        CompletableFuture.allOf(subdirectoryFutures.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * Gets the root directories that do not reside within another root directory, as those are traversed as part of the other.
+     *
+     * @param rootDirectories All root directories in the system
+     * @return Root directories to traverse
+     * @throws IOException If a path cannot be resolved
+     */
+    private List<File> getTopRootDirectories(Collection<File> rootDirectories) throws IOException {
+        List<File> topRootDirectories = new ArrayList<>();
+        for (File rootDirectory : rootDirectories) {
+            String rootPath = rootDirectory.getCanonicalPath();
+            boolean withinOther = false;
+            for (File otherRootDirectory : rootDirectories) {
+                String otherRootPath = otherRootDirectory.getCanonicalPath();
+                if (!otherRootPath.equals(rootPath) && isSameOrChildPath(otherRootPath, rootPath)) {
+                    withinOther = true;
+                    break;
+                }
+            }
+            if (!withinOther && !topRootDirectories.contains(rootDirectory)) {
+                topRootDirectories.add(rootDirectory);
+            }
+        }
+        return topRootDirectories;
+    }
+
+    /**
+     * Gets statistics of the indexing pipeline, such as queue depth and throughput per stage.
+     *
+     * @return Statistics per stage, in pipeline order
+     */
+    public List<IndexingPipeline.StageStats> getIndexingStats() {
+        return indexingPipeline.getStats();
+    }
+
     /**
      * Finds all files in the DB of type video
      *
@@ -228,6 +548,19 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
         return videoDbFiles.stream().map(dbFile -> new File(dbFile.getPathOnDisk())).toList();
     }
 
+    /**
+     * Finds the file or directory with the given ID. No authorization is performed, that is the responsibility of the caller.
+     *
+     * @param id ID of file
+     * @return The file as indexed, or empty if there is no file with the given ID
+     */
+    public Optional<File> findFileById(long id) {
+        final String findByIdQuery = """
+                SELECT path_on_disk FROM PUBLIC.gallery_file WHERE id = :id
+                """;
+        return jdbi.withHandle(handle -> handle.createQuery(findByIdQuery).bind("id", id).mapTo(String.class).findOne()).map(File::new);
+    }
+
     /**
      * This is called when any files and directories are modified or deleted within the root directories. The job here is to update the
      * database appropriately
@@ -238,10 +571,8 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
     @Override
     public void onFilesUpdated(Set<File> upsertedFiles, Set<File> deletedFiles) {
         LOG.debug("onFilesUpdated(createdFiles: {}, deletedFiles: {}", upsertedFiles, deletedFiles);
-        deletedFiles.stream().sorted(GalleryFileUtils.shortestPathComparatorFile())
-                .forEach(f -> updatedFilesQueue.add(new FileAndAction(f, FileAction.DELETE)));
-        upsertedFiles.stream().sorted(GalleryFileUtils.shortestPathComparatorFile())
-                .forEach(f -> updatedFilesQueue.add(new FileAndAction(f, FileAction.UPDATE)));
+        deletedFiles.forEach(f -> updateQueue.add(new FileAndAction(f, FileAction.DELETE)));
+        upsertedFiles.forEach(f -> updateQueue.add(new FileAndAction(f, FileAction.UPDATE)));
     }
 
     /**
@@ -284,178 +615,529 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
     }
 
     /**
-     * Finds directories when there are no search terms and no public path. In that case we only want to return the root paths themselves.
+     * Processes updates taken from the update queue. Directories are handled before anything within them. Updated files are passed through
+     * the indexing pipeline, and deletions are made once the pipeline is done with them, so that a deletion is never overtaken by an
+     * update. An error for one file does not stop the rest of the batch.
      *
-     * @param rootPaths All root paths for the user
-     * @param sortOrder Sort order
-     * @return A list of directories
+     * @param batch Batch of updates
+     * @throws NotAllowedException  If not logged in as admin
+     * @throws InterruptedException If interrupted while waiting for the indexing pipeline
      */
-    List<DbFile> findDirectoriesForRootPaths(List<String> rootPaths, SortOrder sortOrder) {
-        final String directoryQuery =
-                "SELECT * FROM GALLERY_FILE f WHERE f.is_directory = TRUE AND f.path_on_disk IN (<basePaths>) ORDER BY f.date_taken " +
-                        sortOrder.name();
-        return jdbi.withHandle(
-                handle -> handle.createQuery(directoryQuery).bindList("basePaths", rootPaths).mapTo(DbFile.class).stream().toList());
+    void processUpdateBatch(IndexUpdateQueue.Batch batch) throws NotAllowedException, InterruptedException {
+        Collection<File> rootDirectories = galleryAuthorizationService.getAllRootDirectoriesInSystem();
+        if (batch.fullRescan()) {
+            LOG.warn("Update queue overflowed. Rescanning all directories");
+            createOrUpdateAllDirectories(false);
+        }
+        for (File directory : batch.rescanDirectories()) {
+            try {
+                rescanDirectory(directory, rootDirectories);
+            } catch (InterruptedException ie) {
+                throw ie;
+            } catch (Exception e) {
+                LOG.error("Error when rescanning {}. Ignoring", directory, e);
+            }
+        }
+        List<File> deletedFiles = new ArrayList<>();
+        for (List<FileAndAction> fileAndActions : batch.actionsPerDirectory().values()) {
+            for (FileAndAction fileAndAction : fileAndActions) {
+                File file = fileAndAction.file();
+                if (fileAndAction.fileAction() == FileAction.DELETE) {
+                    deletedFiles.add(file);
+                } else if (file.isDirectory()) {
+                    try {
+                        upsertOneDirectory(file, rootDirectories);
+                    } catch (Exception e) {
+                        LOG.error("Error when updating {}. Ignoring", fileAndAction, e);
+                    }
+                } else {
+                    detectStage.submit(file);
+                }
+            }
+        }
+        indexingPipeline.awaitIdle();
+        for (File file : deletedFiles) {
+            try {
+                deleteOneFile(file);
+            } catch (Exception e) {
+                LOG.error("Error when deleting {}. Ignoring", file, e);
+            }
+        }
     }
 
     /**
-     * Finds directories when there are no search terms, but there is a public path. In that case we only want to return directories that
-     * are direct children of the current path.
+     * Brings the index of one directory in line with the disk, for when individual updates within it were lost. Children that are gone are
+     * deleted, and the directory itself and all changed children are upserted. Changed files are passed to the indexing pipeline.
+     * Subdirectories are not rescanned recursively.
      *
-     * @param basePaths Base paths, either the current public path, in which case the list will only have one value, or all root paths for
-     *                  the user
-     * @return A list of directories
+     * @param directory       Directory
+     * @param rootDirectories All root directories in the system
+     * @throws IOException          If the directory cannot be rescanned
+     * @throws InterruptedException If interrupted while waiting for the indexing pipeline
      */
-    List<DbFile> findDirectoriesForQuery(List<String> basePaths, SortOrder sortOrder) {
-        final String parentQuery = "SELECT f.id FROM GALLERY_FILE f WHERE f.is_directory = TRUE AND f.path_on_disk IN (<basePaths>)" ;
-        List<Long> parentIds = jdbi.withHandle(
-                handle -> handle.createQuery(parentQuery).bindList("basePaths", basePaths).mapTo(Long.class).stream().toList());
-        final String directoryQuery =
-                "SELECT * FROM GALLERY_FILE f WHERE f.is_directory = TRUE AND f.parent_id IN (<parentIds>) ORDER BY f.date_taken " +
-                        sortOrder.name();
-        return jdbi.withHandle(
-                handle -> handle.createQuery(directoryQuery).bindList("parentIds", parentIds).mapTo(DbFile.class).stream().toList());
+    void rescanDirectory(File directory, Collection<File> rootDirectories) throws IOException, InterruptedException {
+        if (!directory.isDirectory()) {
+            deleteOneFile(directory);
+            return;
+        }
+        upsertOneDirectory(directory, rootDirectories);
+        DirectoryDelta delta = findDirectoryDelta(directory);
+        deleteVanished(delta);
+        for (File changedDirectory : delta.changedDirectories()) {
+            upsertOneDirectory(changedDirectory, rootDirectories);
+        }
+        for (ChangedFile changedFile : delta.changedFiles()) {
+            metadataStage.submit(changedFile);
+        }
     }
 
     /**
-     * Finds directories in the case where search terms have been provided. In that case we want to find directories no matter if they are
-     * direct or indirect children of the current base paths.
+     * Compares the children of a directory on disk to those in the index. The indexed children are loaded with one query, and compared to
+     * one listing of the directory, reading the attributes of each child once.
      *
-     * @param searchTerms         Search terms. Already contain SQL wildcards
-     * @param basePathSearchTerms Base path search terms. Already contain SQL wildcards
-     * @return A list of directories
+     * @param directory Directory
+     * @return Children that are new, changed or vanished
+     * @throws IOException If the directory cannot be listed
      */
-    List<DbFile> findDirectoriesForQuery(List<String> searchTerms, List<String> basePathSearchTerms, SortOrder sortOrder) {
-        // Not pretty but we need to build a prepared statement with a dynamic number of paths and search terms
-        StringBuilder sb = new StringBuilder("SELECT * FROM GALLERY_FILE f WHERE f.is_directory = TRUE AND (");
-        for (int i = 0; i < basePathSearchTerms.size(); i++) {
-            if (i > 0) sb.append(" OR ");
-            sb.append("f.path_on_disk LIKE :path%s".formatted(i));
-        }
-        sb.append(")");
-        if (!searchTerms.isEmpty()) {
-            sb.append(" AND f.ID IN (SELECT DISTINCT t.file_id FROM TAG t WHERE ");
-            for (int i = 0; i < searchTerms.size(); i++) {
-                if (i > 0) sb.append(" OR ");
-                sb.append("t.text LIKE :term%s".formatted(i));
+    DirectoryDelta findDirectoryDelta(File directory) throws IOException {
+        final String indexedChildrenQuery = """
+                SELECT c.path_on_disk, c.last_modified FROM gallery_file c
+                JOIN gallery_file d ON d.id = c.parent_id
+                WHERE d.path_on_disk = :path_on_disk
+                """;
+        String directoryPath = directory.getCanonicalPath();
+        Map<String, Long> lastModifiedPerIndexedPath = new HashMap<>();
+        jdbi.useHandle(handle -> handle.createQuery(indexedChildrenQuery).bind("path_on_disk", directoryPath)
+                .map((rs, _) -> Map.entry(rs.getString("path_on_disk"), rs.getTimestamp("last_modified").getTime()))
+                .forEach(e -> lastModifiedPerIndexedPath.put(e.getKey(), e.getValue())));
+        List<ChangedFile> changedFiles = new ArrayList<>();
+        List<File> subdirectories = new ArrayList<>();
+        List<File> changedDirectories = new ArrayList<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory.toPath())) {
+            for (Path child : children) {
+                String childPath = directoryPath + File.separator + child.getFileName();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isSymbolicLink()) {
+                        // Indexed by the path of the target, like the directories and files linked to
+                        childPath = child.toFile().getCanonicalPath();
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Could not read attributes of {}. Ignoring", child, e);
+                    lastModifiedPerIndexedPath.remove(childPath);
+                    continue;
+                }
+                Long indexedLastModified = lastModifiedPerIndexedPath.remove(childPath);
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                boolean upToDate = indexedLastModified != null && indexedLastModified >= lastModified;
+                File childFile = child.toFile();
+                if (attributes.isDirectory()) {
+                    subdirectories.add(childFile);
+                    if (!upToDate) {
+                        changedDirectories.add(childFile);
+                    }
+                } else if (!upToDate && attributes.isRegularFile() && galleryService.isAllowedMediaFilename(childFile)) {
+                    changedFiles.add(new ChangedFile(childFile, childPath, directoryPath, lastModified, attributes.size()));
+                }
             }
-            sb.append(")");
         }
-        sb.append("ORDER BY f.date_taken ");
-        sb.append(sortOrder.name());
-        return jdbi.withHandle(handle -> {
-            Query query = handle.createQuery(sb.toString());
-            for (int i = 0; i < basePathSearchTerms.size(); i++) {
-                query.bind("path%s".formatted(i), basePathSearchTerms.get(i));
-            }
-            for (int i = 0; i < searchTerms.size(); i++) {
-                query.bind("term%s".formatted(i), searchTerms.get(i));
+        List<File> vanished = lastModifiedPerIndexedPath.keySet().stream().map(File::new).toList();
+        LOG.debug("Found {} changed files, {} changed directories and {} vanished in {}", changedFiles.size(), changedDirectories.size(),
+                vanished.size(), directory);
+        return new DirectoryDelta(changedFiles, subdirectories, changedDirectories, vanished);
+    }
+
+    private void deleteVanished(DirectoryDelta delta) {
+        for (File vanished : delta.vanished()) {
+            try {
+                deleteOneFile(vanished);
+            } catch (IOException e) {
+                LOG.error("Error when deleting {}. Ignoring", vanished, e);
             }
-            return query.mapTo(DbFile.class).stream().toList();
-        });
+        }
     }
 
     /**
-     * Finds media based on the given queries. As opposed to directories, media is paginated. Sorting is always on dataTaken, but sort order
-     * is a parameter.
+     * Finds the IDs of the directories with the given paths. After this, scoping a query to the directories is done on IDs only.
      *
-     * @param searchTerms         Search terms. Already contain SQL wildcards
-     * @param basePathSearchTerms Base path search terms. Already contain SQL wildcards
-     * @param directoryIds        Directory IDs for which media should be returned since the directory matched the query, even if the media
-     *                            itself does not
-     * @param sortOrder           Sort order. May be null, defaults to DESC
-     * @param page                Page. 0-based. May be null, defaults to 0
-     * @param givenPageSize       Page sze. May be null, defaults to {@link #MAX_PAGE_SIZE}
-     * @return A list of matching media files
+     * @param paths Canonical directory paths
+     * @return IDs of the directories that are indexed
      */
-    List<DbFile> findMediaForQuery(List<String> searchTerms, List<String> basePathSearchTerms, Collection<Long> directoryIds,
-                                   SortOrder sortOrder, Integer page, Integer givenPageSize) {
-        // Not pretty but we need to build a prepared statement with a dynamic number of paths and search terms
-        StringBuilder sb = new StringBuilder("SELECT * FROM GALLERY_FILE f WHERE f.is_directory = FALSE AND (");
-        for (int i = 0; i < basePathSearchTerms.size(); i++) {
-            if (i > 0) sb.append(" OR ");
-            sb.append("f.path_on_disk LIKE :path%s".formatted(i));
+    long[] findDirectoryIdsForPaths(List<String> paths) {
+        if (paths.isEmpty()) {
+            return new long[0];
         }
-        sb.append(")");
-        List<String> orQueries = new ArrayList<>();
+        final String directoryIdsQuery = "SELECT f.id FROM GALLERY_FILE f WHERE f.is_directory = TRUE AND f.path_on_disk IN (<paths>)";
+        return jdbi.withHandle(handle -> handle.createQuery(directoryIdsQuery).bindList("paths", paths).mapTo(Long.class).stream()
+                .mapToLong(Long::longValue).toArray());
+    }
 
-        if (!searchTerms.isEmpty()) {
-            StringBuilder tagsQueryBuilder = new StringBuilder();
-            tagsQueryBuilder.append("(f.id IN (SELECT DISTINCT t.file_id FROM TAG t WHERE ");
-            for (int i = 0; i < searchTerms.size(); i++) {
-                if (i > 0) tagsQueryBuilder.append(" OR ");
-                tagsQueryBuilder.append("t.text LIKE :term%s".formatted(i));
-            }
-            tagsQueryBuilder.append("))");
-            orQueries.add(tagsQueryBuilder.toString());
-
-            if (!directoryIds.isEmpty()) {
-                orQueries.add("(f.parent_id IN (<directoryIds>))");
-            }
-        }
-        if (!orQueries.isEmpty()) {
-            sb.append(" AND (");
-            sb.append(String.join(") OR (", orQueries));
-            sb.append(")");
-        }
-        // Add pagination only for the media query
-        int startPage = page != null ? Math.max(0, page) : 0;
-        int pageSize =
-                givenPageSize == null || givenPageSize <= 0 || givenPageSize > MAX_PAGE_SIZE ?
-                        MAX_PAGE_SIZE :
-                        givenPageSize;
+    /**
+     * Finds directories. Which directories depends on the query:
+     * <ul>
+     * <li>No search terms and no public path: the root directories themselves</li>
+     * <li>No search terms, but a public path: direct children of the base directory</li>
+     * <li>Search terms: matching directories, no matter if they are direct or indirect children of the base directories</li>
+     * </ul>
+     * Directories are paginated separately from media, but sorted and paginated the same way. The page size defaults to
+     * {@link #MAX_DIRECTORY_PAGE_SIZE}.
+     *
+     * @param preparedSearch Prepared search
+     * @param rowConsumer    Receives the directory rows of the page, in order
+     * @return Cursor to the next page, or null if this is the last page
+     */
+    String findDirectoriesForQuery(PreparedSearch preparedSearch, Consumer<DbFile> rowConsumer) {
+        TagIndex.TermMatch tagMatch = preparedSearch.tagMatch();
+        StringBuilder sb = new StringBuilder("SELECT * FROM GALLERY_FILE f WHERE f.is_directory = TRUE AND ");
+        if (preparedSearch.rootListing()) {
+            sb.append("f.id = ANY(:base_ids)");
+        } else if (tagMatch == null) {
+            sb.append("f.parent_id = ANY(:base_ids)");
+        } else {
+            sb.append(DESCENDANT_OF_BASE_CONDITION).append(" AND ").append(createTagCondition("f.id", tagMatch));
+        }
+        Integer givenPageSize = preparedSearch.searchQuery().directoryPageSize();
+        int pageSize = givenPageSize == null || givenPageSize <= 0 || givenPageSize > MAX_DIRECTORY_PAGE_SIZE ?
+                MAX_DIRECTORY_PAGE_SIZE :
+                givenPageSize;
+        return findPage(sb, preparedSearch.sortOrder(), pageSize, 0, preparedSearch.directoryCursor(), query -> {
+            query.bind("base_ids", toArrayParameter(preparedSearch.baseIds()));
+            if (tagMatch != null && !preparedSearch.rootListing()) {
+                bindTagCondition(query, tagMatch);
+            }
+        }, rowConsumer);
+    }
+
+    /**
+     * Finds media based on the given queries. Sorting is always on dataTaken, with ID as tie breaker, but sort order is a parameter. Media
+     * without date taken comes last when sorting descending, and first when ascending.
+     * <p>
+     * Pagination is done either via page, using an offset, or via a cursor from a previous page. The latter seeks directly to the start of
+     * the page using the composite date taken and ID index, so it takes the same time no matter how deep into the result the page is. The
+     * page size defaults to {@link #MAX_PAGE_SIZE}.
+     * <p>
+     * Media matches the search terms either via its own tags, or via the tags of its directory, if that directory is within the base
+     * directories. Both are resolved within the same statement. All ID sets are bound as array parameters, so there is only a small, fixed
+     * number of distinct statements, which the database can cache and reuse. The matching files are bound as IDs only if there are at most
+     * gallery.search.maxBoundTagFileIds of them, see {@link #createTagCondition(String, TagIndex.TermMatch)}.
+     *
+     * @param preparedSearch Prepared search
+     * @param rowConsumer    Receives the media rows of the page, in order
+     * @return Cursor to the next page, or null if this is the last page
+     */
+    String findMediaForQuery(PreparedSearch preparedSearch, Consumer<DbFile> rowConsumer) {
+        StringBuilder sb = new StringBuilder("SELECT * FROM GALLERY_FILE f WHERE ");
+        appendMediaConditions(sb, preparedSearch);
+        SearchQuery searchQuery = preparedSearch.searchQuery();
+        ListingCursor cursor = preparedSearch.cursor();
+        int startPage = searchQuery.page() != null && cursor == null ? Math.max(0, searchQuery.page()) : 0;
+        int pageSize = getMediaPageSize(searchQuery.pageSize());
         int offset = Math.max(0, startPage * pageSize);
-        sb.append(" ORDER BY f.date_taken ").append(sortOrder.name()).append(" LIMIT :limit OFFSET :offset");
-        List<DbFile> mediaFiles = jdbi.withHandle(handle -> {
+        return findPage(sb, preparedSearch.sortOrder(), pageSize, offset, cursor, query -> bindMediaConditions(query, preparedSearch),
+                rowConsumer);
+    }
+
+    /**
+     * Finds media taken on a given day of the year, in any year, within the root directories of the current user. Looked up via the
+     * indexed month_day column, and paginated like other media listings, so the latest years come first when sorting descending.
+     *
+     * @param monthDay  Month and day
+     * @param pageSize  Page size. Defaults to {@link #MAX_PAGE_SIZE}
+     * @param sortOrder Sort order. Defaults to descending
+     * @param cursor    Cursor from a previous page. May be null
+     * @return One page of media
+     * @throws IOException              If there's an error getting the media
+     * @throws NotAllowedException      If the user does not have access to any root directory
+     * @throws IllegalArgumentException If the cursor is not valid
+     */
+    public SearchResult findOnThisDay(MonthDay monthDay, Integer pageSize, SortOrder sortOrder, String cursor) throws IOException,
+            NotAllowedException {
+        PreparedSearch preparedSearch = prepareSearch(new SearchQuery(null, null, false, null, pageSize, sortOrder, cursor, null, null));
+        StringBuilder sb = new StringBuilder("SELECT * FROM GALLERY_FILE f WHERE f.month_day = :month_day AND ");
+        appendMediaConditions(sb, preparedSearch);
+        try {
+            List<DbFile> dbMedia = new ArrayList<>();
+            String nextCursor = findPage(sb, preparedSearch.sortOrder(), getMediaPageSize(pageSize), 0, preparedSearch.cursor(), query -> {
+                query.bind("month_day", monthDay.getMonthValue() * 100 + monthDay.getDayOfMonth());
+                bindMediaConditions(query, preparedSearch);
+            }, dbMedia::add);
+            List<GalleryFile> galleryFiles = dbMedia.stream().map(this::createGalleryFileFromDbFile).filter(Objects::nonNull).toList();
+            return new SearchResult(Collections.emptyList(), galleryFiles, nextCursor, null);
+        } catch (Exception e) {
+            LOG.error("Error when finding media taken on {}", monthDay, e);
+            throw new IOException(e);
+        }
+    }
+
+    private static int getMediaPageSize(Integer givenPageSize) {
+        return givenPageSize == null || givenPageSize <= 0 || givenPageSize > MAX_PAGE_SIZE ? MAX_PAGE_SIZE : givenPageSize;
+    }
+
+    /**
+     * Counts the media of a search per period of time, such as per month, for displaying a timeline. Counted by a grouped query on date
+     * taken, with the same conditions as for listing media. Media without date taken are not counted.
+     * <p>
+     * Each entry has a cursor seeking to the start of its period in the media listing of the same search, so that a client can jump to any
+     * point in time without paging through everything before it.
+     *
+     * @param searchQuery Search query. Only the public path, search term and sort order are used
+     * @param resolution  Length of the periods
+     * @return One entry per period having media, in the sort order of the query
+     * @throws IOException         If there's an error getting the timeline
+     * @throws NotAllowedException If the user does not have access to the path
+     */
+    public List<TimelineEntry> findTimeline(SearchQuery searchQuery, TimelineResolution resolution) throws IOException,
+            NotAllowedException {
+        PreparedSearch preparedSearch = prepareSearch(searchQuery);
+        SortOrder sortOrder = preparedSearch.sortOrder();
+        // The unit comes from the enum, never from the request as such
+        String periodExpression = "DATE_TRUNC('%s', f.date_taken)".formatted(resolution.name());
+        StringBuilder sb = new StringBuilder("SELECT ").append(periodExpression).append(" AS period_start, COUNT(*) AS file_count ")
+                .append("FROM GALLERY_FILE f WHERE f.date_taken IS NOT NULL AND ");
+        appendMediaConditions(sb, preparedSearch);
+        sb.append(" GROUP BY ").append(periodExpression).append(" ORDER BY period_start ").append(sortOrder.name());
+        try {
+            return jdbi.withHandle(handle -> {
+                Query query = handle.createQuery(sb.toString());
+                bindMediaConditions(query, preparedSearch);
+                return query.map((rs, _) -> {
+                    LocalDateTime periodStart = rs.getTimestamp("period_start").toLocalDateTime();
+                    return new TimelineEntry(Timestamp.valueOf(periodStart).toInstant(), rs.getLong("file_count"),
+                            createPeriodCursor(periodStart, resolution, sortOrder).encode());
+                }).list();
+            });
+        } catch (Exception e) {
+            LOG.error("Error when getting timeline", e);
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Creates a cursor seeking to the start of a period: its first media when sorting ascending, and its last when sorting descending.
+     * Dates are truncated to periods as the local timestamps they are stored as, so the end of a period is calculated the same way.
+     *
+     * @param periodStart Start of the period
+     * @param resolution  Length of the period
+     * @param sortOrder   Sort order of the listing
+     * @return A cursor positioned right before the period
+     */
+    static ListingCursor createPeriodCursor(LocalDateTime periodStart, TimelineResolution resolution, SortOrder sortOrder) {
+        if (sortOrder == SortOrder.ASC) {
+            // Everything from the start of the period
+            return new ListingCursor(false, Timestamp.valueOf(periodStart).toInstant(), Long.MIN_VALUE);
+        }
+        // Everything before the end of the period
+        LocalDateTime periodEnd = periodStart.plus(1, resolution.getUnit());
+        return new ListingCursor(true, Timestamp.valueOf(periodEnd).toInstant(), Long.MIN_VALUE);
+    }
+
+    /**
+     * Appends the conditions selecting the media of a search, as rows of gallery_file f. Parameters are bound via
+     * {@link #bindMediaConditions(Query, PreparedSearch)}.
+     *
+     * @param sb             Query, up to and including WHERE
+     * @param preparedSearch Prepared search
+     */
+    private void appendMediaConditions(StringBuilder sb, PreparedSearch preparedSearch) {
+        final String tagOrDirectoryTagCondition = """
+                %s OR f.parent_id IN (
+                    SELECT a.descendant_id FROM gallery_file_ancestor a
+                    WHERE a.ancestor_id = ANY(:base_ids) AND a.depth > 0 AND %s)
+                """;
+        sb.append("f.is_directory = FALSE AND ").append(DESCENDANT_OF_BASE_CONDITION);
+        TagIndex.TermMatch tagMatch = preparedSearch.tagMatch();
+        if (tagMatch != null) {
+            sb.append(" AND (").append(tagOrDirectoryTagCondition.formatted(createTagCondition("f.id", tagMatch),
+                    createTagCondition("a.descendant_id", tagMatch))).append(")");
+        }
+    }
+
+    private void bindMediaConditions(Query query, PreparedSearch preparedSearch) {
+        query.bind("base_ids", toArrayParameter(preparedSearch.baseIds()));
+        if (preparedSearch.tagMatch() != null) {
+            bindTagCondition(query, preparedSearch.tagMatch());
+        }
+    }
+
+    /**
+     * Creates the condition restricting an ID column to the files and directories matching the search terms. If the tag index returned
+     * their IDs, these are bound as :tag_file_ids. If there were too many of them, they are instead looked up in the tag table via the
+     * matching terms, bound as :tag_terms, so that the size of the statement does not grow with the number of matching files. Parameters
+     * are bound via {@link #bindTagCondition(Query, TagIndex.TermMatch)}.
+     *
+     * @param idColumn ID column, such as f.id
+     * @param tagMatch Terms and files matching the search
+     * @return An SQL condition
+     */
+    private static String createTagCondition(String idColumn, TagIndex.TermMatch tagMatch) {
+        return tagMatch.fileIds() != null ?
+                idColumn + " = ANY(:tag_file_ids)" :
+                idColumn + " IN (SELECT t.file_id FROM tag t WHERE t.text = ANY(:tag_terms))";
+    }
+
+    private static void bindTagCondition(Query query, TagIndex.TermMatch tagMatch) {
+        if (tagMatch.fileIds() != null) {
+            query.bind("tag_file_ids", toArrayParameter(tagMatch.fileIds()));
+        } else {
+            // Compared case-insensitively, as the text column ignores case
+            query.bind("tag_terms", tagMatch.terms().toArray(String[]::new));
+        }
+    }
+
+    /**
+     * Completes the given query with the cursor condition, ordering and pagination, and executes it. Rows are sorted on date taken, with
+     * ID as tie breaker. Rows without date taken come last when sorting descending, and first when ascending.
+     * <p>
+     * Rows are passed on one at a time while iterating over the result set. Callers may still keep the whole page: the streamed listings
+     * collect its rows so that the connection is released before anything is written to the client. Memory use is then bounded by the page
+     * size rather than constant.
+     *
+     * @param sb          Query selecting rows of gallery_file f, up to and including the WHERE conditions
+     * @param sortOrder   Sort order
+     * @param pageSize    Page size
+     * @param offset      Offset. Should be 0 if a cursor is given
+     * @param cursor      Cursor pointing at the last row of the previous page. May be null
+     * @param binder      Binds the parameters of the given query
+     * @param rowConsumer Receives the rows of the page, in order
+     * @return Cursor to the next page, or null if this is the last page
+     */
+    private String findPage(StringBuilder sb, SortOrder sortOrder, int pageSize, int offset, ListingCursor cursor,
+                            Consumer<Query> binder, Consumer<DbFile> rowConsumer) {
+        if (cursor != null) {
+            sb.append(" AND (").append(createCursorCondition(cursor)).append(")");
+        }
+        String nullOrdering = sortOrder == SortOrder.DESC ? " NULLS LAST" : " NULLS FIRST";
+        sb.append(" ORDER BY f.date_taken ").append(sortOrder.name()).append(nullOrdering).append(", f.id ").append(sortOrder.name());
+        // One more than the page size, to know whether there is a next page
+        sb.append(" LIMIT :limit OFFSET :offset");
+        long startQueryTime = System.currentTimeMillis();
+        String nextCursor = jdbi.withHandle(handle -> {
             Query query = handle.createQuery(sb.toString());
-            for (int i = 0; i < basePathSearchTerms.size(); i++) {
-                query.bind("path%s".formatted(i), basePathSearchTerms.get(i));
-            }
-            for (int i = 0; i < searchTerms.size(); i++) {
-                query.bind("term%s".formatted(i), searchTerms.get(i));
-            }
-            if (!directoryIds.isEmpty()) {
-                query.bindList("directoryIds", directoryIds);
+            binder.accept(query);
+            if (cursor != null) {
+                query.bind("cursor_id", cursor.id());
+                if (cursor.dateTaken() != null) {
+                    query.bind("cursor_date_taken", Timestamp.from(cursor.dateTaken()));
+                }
             }
-            query.bind("limit", pageSize);
+            query.bind("limit", pageSize + 1);
             query.bind("offset", offset);
-            return query.mapTo(DbFile.class).stream().toList();
+            try (ResultIterator<DbFile> rows = query.mapTo(DbFile.class).iterator()) {
+                DbFile last = null;
+                int count = 0;
+                while (rows.hasNext()) {
+                    DbFile row = rows.next();
+                    if (count++ == pageSize) {
+                        return new ListingCursor(sortOrder == SortOrder.DESC, last.getDateTaken(), last.getId()).encode();
+                    }
+                    rowConsumer.accept(row);
+                    last = row;
+                }
+                return null;
+            }
         });
-        long startQueryTime = System.currentTimeMillis();
-        LOG.debug("Performing database search for media took {}ms (page={}, pageSize={}, offset={})",
-                System.currentTimeMillis() - startQueryTime,
-                startPage, pageSize, offset);
-        return mediaFiles;
+        LOG.debug("Performing database search took {}ms (pageSize={}, offset={}, cursor={})", System.currentTimeMillis() - startQueryTime,
+                pageSize, offset, cursor);
+        return nextCursor;
     }
 
+    /**
+     * Creates the condition selecting rows after the cursor, matching the ordering in
+     * {@link #findPage(StringBuilder, SortOrder, int, int, ListingCursor, Consumer, Consumer)}. Binds :cursor_id and, if the cursor has a
+     * date taken, :cursor_date_taken.
+     *
+     * @param cursor Cursor
+     * @return An SQL condition
+     */
+    private String createCursorCondition(ListingCursor cursor) {
+        if (cursor.descending()) {
+            // date_taken DESC NULLS LAST, id DESC
+            return cursor.dateTaken() != null ?
+                    "f.date_taken < :cursor_date_taken OR (f.date_taken = :cursor_date_taken AND f.id < :cursor_id) " +
+                            "OR f.date_taken IS NULL" :
+                    "f.date_taken IS NULL AND f.id < :cursor_id";
+        }
+        // date_taken ASC NULLS FIRST, id ASC
+        return cursor.dateTaken() != null ?
+                "f.date_taken > :cursor_date_taken OR (f.date_taken = :cursor_date_taken AND f.id > :cursor_id)" :
+                "(f.date_taken IS NULL AND f.id > :cursor_id) OR f.date_taken IS NOT NULL";
+    }
+
+    /**
+     * Decodes a cursor given in a query, and checks that it was created for the given sort order.
+     *
+     * @param encodedCursor Encoded cursor. May be null
+     * @param sortOrder     Sort order of the query
+     * @return The cursor, or null if none given
+     * @throws IllegalArgumentException If the cursor is invalid
+     */
+    private ListingCursor decodeCursor(String encodedCursor, SortOrder sortOrder) {
+        ListingCursor cursor = encodedCursor != null ? ListingCursor.decode(encodedCursor) : null;
+        if (cursor != null && cursor.descending() != (sortOrder == SortOrder.DESC)) {
+            throw new IllegalArgumentException("Cursor was created for another sort order");
+        }
+        return cursor;
+    }
+
+    /**
+     * Converts IDs to an array parameter, bound as an SQL array of BIGINT.
+     *
+     * @param ids IDs
+     * @return An array that can be bound to a parameter
+     */
+    private static Long[] toArrayParameter(long[] ids) {
+        return Arrays.stream(ids).boxed().toArray(Long[]::new);
+    }
+
+    /**
+     * Converts a media row to a {@link GalleryFile}. Paths in the DB are canonical, and type and content type are stored at indexing time,
+     * so in the normal case the filesystem is not accessed at all.
+     *
+     * @param dbFile Media row
+     * @return A gallery file, or null if the file cannot be mapped to a public path for the current user
+     */
     GalleryFile createGalleryFileFromDbFile(DbFile dbFile) {
         try {
             String path = dbFile.getPathOnDisk();
             File realFile = new File(path);
-            String publicPath = galleryService.getPublicPathFromRealFile(realFile);
-            GalleryFile galleryFile = galleryService.createGalleryFile(publicPath, realFile);
+            String publicPath = galleryService.getPublicPathFromCanonicalPath(path);
+            GalleryFile.GalleryFileType fileType = parseFileType(dbFile.getFileType());
+            GalleryFile galleryFile = fileType != null && dbFile.getContentType() != null ?
+                    galleryService.createGalleryFile(publicPath, realFile, fileType, dbFile.getContentType()) :
+                    galleryService.createGalleryFile(publicPath, realFile);
+            galleryFile.setId(dbFile.getId());
             if (dbFile.getDateTaken() != null) {
                 galleryFile.setDateTaken(dbFile.getDateTaken());
             }
+            if (dbFile.getLastModified() != null && dbFile.getFileSize() != null) {
+                // Rows indexed before file sizes were stored get no version until the file is re-indexed
+                galleryFile.setVersion(createFingerprint(dbFile.getLastModified().toEpochMilli(), dbFile.getFileSize()));
+            }
             return galleryFile;
-        } catch (NotAllowedException nae) {
-            LOG.error("Not allowed to access search result file. Skipping file.", nae);
-            return null;
         } catch (IOException ioe) {
             LOG.error("IOException when accessing search result file. Skipping file", ioe);
             return null;
         }
     }
 
+    /**
+     * Converts a directory row to a {@link GalleryDirectory}. As for media, the filesystem is not accessed.
+     *
+     * @param dbFile Directory row
+     * @return A gallery directory, or null if the directory cannot be mapped to a public path for the current user
+     */
     GalleryDirectory createGalleryDirectoryFromDbFile(DbFile dbFile) {
         try {
             String path = dbFile.getPathOnDisk();
-            File realFile = new File(path);
-            String publicPath = galleryService.getPublicPathFromRealFile(realFile);
-            return galleryService.createGalleryDirectory(publicPath, realFile);
-        } catch (NotAllowedException nae) {
-            LOG.error("Not allowed to access search result file. Skipping file.", nae);
-            return null;
+            String publicPath = galleryService.getPublicPathFromCanonicalPath(path);
+            GalleryDirectory galleryDirectory = galleryService.createGalleryDirectoryFromCanonicalPath(publicPath, path);
+            if (galleryDirectory.getImage() != null) {
+                // The directory image is requested via the directory itself
+                galleryDirectory.getImage().setId(dbFile.getId());
+            }
+            return galleryDirectory;
         } catch (IOException ioe) {
             LOG.error("IOException when accessing search result file. Skipping file", ioe);
             return null;
@@ -463,8 +1145,12 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
     }
 
     /**
-     * Upserts one directory. It is assumed it has been checked that the directory resides under one of the root directories. If it's a root
-     * directory it will not have a parent.
+     * Upserts one directory. It is assumed it has been checked that the directory resides under one of the root directories. The parent is
+     * the directory above it on disk, which for a symlinked directory is the directory containing the link, though the directory itself is
+     * indexed by the path of its target. A root directory only has a parent if it is nested within another indexed directory, so that it
+     * stays part of the subtree of the outer root directory. Nesting is determined on canonical paths, so for root directories the parent
+     * is taken from the target. Root directories are always upserted, as their parent may have changed with the root
+     * directories.
      *
      * @param directory       Directory
      * @param rootDirectories All root directories in the system
@@ -481,34 +1167,142 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
                 VALUES (:parent_id, :path_on_disk, true, :last_modified)
                 """;
         try {
-            if (isDbUpToDate(directory)) {
+            boolean rootDirectory = rootDirectories.contains(directory);
+            if (!rootDirectory && isDbUpToDate(directory)) {
                 LOG.debug("Skipping update of {} as it doesn't need to be updated", directory);
                 return;
             }
             String directoryPath = directory.getCanonicalPath();
-            String parentPath = rootDirectories.contains(directory) ? null : directory.getParentFile().getCanonicalPath();
+            File parentDirectory = rootDirectory ? directory.getCanonicalFile().getParentFile() :
+                    directory.getAbsoluteFile().getParentFile();
+            String parentPath = parentDirectory != null ? parentDirectory.getCanonicalPath() : null;
             AtomicLong atomicDirectoryPk = new AtomicLong();
-            jdbi.useHandle(handle -> {
+            jdbi.useTransaction(handle -> {
                 Update updateQueryObj = handle.createUpdate(mergeQueryChildDir).bind("path_on_disk", directoryPath)
                         .bind("last_modified", new Timestamp(directory.lastModified()));
 
+                Long parentId = null;
                 if (parentPath != null) {
-                    Integer parentId = handle.createQuery(findParentQuery).bind("path_on_disk", parentPath).mapTo(Integer.class).one();
+                    Optional<Long> foundParentId = handle.createQuery(findParentQuery).bind("path_on_disk", parentPath).mapTo(Long.class)
+                            .findOne();
+                    // Any other directory is always upserted after its parent
+                    parentId = rootDirectory ? foundParentId.orElse(null) : foundParentId.orElseThrow();
+                }
+                if (parentId != null) {
                     updateQueryObj.bind("parent_id", parentId);
                 } else {
                     updateQueryObj.bindNull("parent_id", Types.BIGINT);
                 }
 
                 long directoryPk = updateQueryObj.executeAndReturnGeneratedKeys().mapTo(Long.class).one();
+                upsertAncestry(handle, directoryPk, parentId);
                 atomicDirectoryPk.set(directoryPk);
             });
-            updateFilenameTags(directory, atomicDirectoryPk.get());
+            try {
+                updateFilenameTags(directory, atomicDirectoryPk.get());
+            } finally {
+                if (rootDirectory) {
+                    // Root directories are part of the listings of all users
+                    searchResultCache.clear();
+                } else {
+                    invalidateCachedSearches(atomicDirectoryPk.get());
+                }
+            }
         } catch (Exception e) {
             LOG.error("Error while creating or updating directory {} in database", directory, e);
             throw new IOException(e);
         }
     }
 
+    /**
+     * Maintains the ancestry of a file or directory: one row for itself at depth 0, and one row per ancestor, copied from the ancestry of
+     * the parent. Parents are always upserted before their children, so the ancestry of the parent is complete.
+     * <p>
+     * A path normally keeps its parent, in which case existing rows are left as they are. Should the parent change, which happens when a
+     * nested root directory gets linked to the directory above it, the whole subtree is moved: ancestors no longer above it are removed
+     * from all rows of the subtree, and the new ancestors are added to them.
+     *
+     * @param handle   Handle, within the transaction upserting the file
+     * @param fileId   ID of file or directory
+     * @param parentId ID of parent directory. Null for root directories
+     */
+    void upsertAncestry(Handle handle, long fileId, Long parentId) {
+        Map<Long, Long> parentIdPerFileId = new HashMap<>();
+        parentIdPerFileId.put(fileId, parentId);
+        upsertAncestry(handle, parentIdPerFileId);
+    }
+
+    /**
+     * Maintains the ancestry of several files or directories at once, in JDBC batches. See {@link #upsertAncestry(Handle, long, Long)}.
+     *
+     * @param handle            Handle, within the transaction upserting the files
+     * @param parentIdPerFileId ID of parent directory per ID of file or directory. Null values for root directories
+     */
+    void upsertAncestry(Handle handle, Map<Long, Long> parentIdPerFileId) {
+        final String mergeSelfQuery = """
+                MERGE INTO gallery_file_ancestor (ancestor_id, descendant_id, depth)
+                KEY (ancestor_id, descendant_id)
+                VALUES (:id, :id, 0)
+                """;
+        // Rows linking the subtree to ancestors outside of it that are not ancestors of the parent. None, unless the parent has changed
+        final String deleteStaleAncestorsQuery = """
+                DELETE FROM gallery_file_ancestor
+                WHERE descendant_id IN (SELECT s.descendant_id FROM gallery_file_ancestor s WHERE s.ancestor_id = :id)
+                AND ancestor_id NOT IN (SELECT s.descendant_id FROM gallery_file_ancestor s WHERE s.ancestor_id = :id)
+                AND ancestor_id NOT IN (SELECT p.ancestor_id FROM gallery_file_ancestor p WHERE p.descendant_id = :parent_id)
+                """;
+        // Every ancestor of the parent for every row of the subtree. Depths of existing rows are unchanged, unless the parent has changed
+        final String mergeAncestorsQuery = """
+                MERGE INTO gallery_file_ancestor (ancestor_id, descendant_id, depth)
+                KEY (ancestor_id, descendant_id)
+                SELECT p.ancestor_id, s.descendant_id, p.depth + s.depth + 1
+                FROM gallery_file_ancestor p, gallery_file_ancestor s
+                WHERE p.descendant_id = :parent_id AND s.ancestor_id = :id
+                """;
+        PreparedBatch selfBatch = handle.prepareBatch(mergeSelfQuery);
+        PreparedBatch staleAncestorsBatch = handle.prepareBatch(deleteStaleAncestorsQuery);
+        PreparedBatch ancestorsBatch = handle.prepareBatch(mergeAncestorsQuery);
+        parentIdPerFileId.forEach((fileId, parentId) -> {
+            selfBatch.bind("id", fileId).add();
+            if (parentId != null) {
+                staleAncestorsBatch.bind("id", fileId).bind("parent_id", parentId).add();
+                ancestorsBatch.bind("id", fileId).bind("parent_id", parentId).add();
+            } else {
+                staleAncestorsBatch.bind("id", fileId).bindNull("parent_id", Types.BIGINT).add();
+            }
+        });
+        selfBatch.execute();
+        staleAncestorsBatch.execute();
+        if (ancestorsBatch.size() > 0) {
+            ancestorsBatch.execute();
+        }
+    }
+
+    /**
+     * Invalidates cached search results for all directories containing the given file or directory, as well as the directory itself.
+     *
+     * @param fileId ID of written file or directory
+     */
+    void invalidateCachedSearches(long fileId) {
+        searchResultCache.invalidate(jdbi.withHandle(handle -> findAncestorDirectoryIds(handle, fileId)));
+    }
+
+    /**
+     * Finds the IDs of the directories containing the given file or directory, including the directory itself.
+     *
+     * @param handle Handle
+     * @param fileId ID of file or directory
+     * @return IDs of directories
+     */
+    List<Long> findAncestorDirectoryIds(Handle handle, long fileId) {
+        final String ancestorDirectoriesQuery = """
+                SELECT a.ancestor_id FROM gallery_file_ancestor a
+                JOIN gallery_file d ON d.id = a.ancestor_id
+                WHERE a.descendant_id = :id AND d.is_directory = TRUE
+                """;
+        return handle.createQuery(ancestorDirectoriesQuery).bind("id", fileId).mapTo(Long.class).list();
+    }
+
     boolean isDbUpToDate(File file) throws IOException {
         final String findOneQuery = """
                 SELECT * FROM PUBLIC.gallery_file WHERE path_on_disk = :path_on_disk
@@ -526,11 +1320,28 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
         final String deleteGalleryFileQuery = """
                 DELETE FROM PUBLIC.gallery_file WHERE path_on_disk = :path_on_disk
                 """;
-        jdbi.useHandle(handle -> {
-            String filePath = file.getCanonicalPath();
+        // The row itself and, for a directory, all rows removed via the cascade
+        final String findDeletedIdsQuery = """
+                SELECT a.descendant_id FROM PUBLIC.gallery_file_ancestor a
+                JOIN PUBLIC.gallery_file f ON f.id = a.ancestor_id
+                WHERE f.path_on_disk = :path_on_disk
+                ORDER BY a.depth
+                """;
+        String filePath = file.getCanonicalPath();
+        List<Long> changedDirectoryIds = new ArrayList<>();
+        List<Long> deletedIds = jdbi.inTransaction(handle -> {
+            List<Long> ids = handle.createQuery(findDeletedIdsQuery).bind("path_on_disk", filePath).mapTo(Long.class).list();
+            if (!ids.isEmpty()) {
+                // The deleted row itself is first, at depth 0. Cached results for it, its descendants and its ancestors are outdated
+                changedDirectoryIds.addAll(findAncestorDirectoryIds(handle, ids.getFirst()));
+                changedDirectoryIds.addAll(ids);
+            }
             int nrDeleted = handle.createUpdate(deleteGalleryFileQuery).bind("path_on_disk", filePath).execute();
             LOG.debug("Deleting {} resulted in {} rows removed in DB", filePath, nrDeleted);
+            return ids;
         });
+        tagIndex.removeFiles(deletedIds);
+        searchResultCache.invalidate(changedDirectoryIds);
     }
 
     /**
@@ -546,107 +1357,288 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
             int nrDeleted = handle.createUpdate(deleteGalleryFileQuery).execute();
             LOG.debug("Deleting all files and directories resulted in {} rows removed in DB", nrDeleted);
         });
+        tagIndex.clear();
+        searchResultCache.clear();
     }
 
     /**
-     * Creates or updates one media file (not directory) in the DB if it has a valid filename and extension. There is delta detection which
-     * works on last modified time. If the last modified time in DB is later than the file's, no update is made.
-     * <p>
-     * Various metadata is then extracted from the file, and the file and tags are updated. Finally, a call is made to
-     * {@link #updateDirectoryDateTakenRecursive(Long)} to ensure that its dateTaken attribute is correct.
+     * Creates or updates one media file (not directory) in the DB if it has a valid filename and extension, by running it through all
+     * stages of the indexing pipeline in the calling thread. There is delta detection which works on last modified time. If the last
+     * modified time in DB is later than the file's, no update is made.
      *
      * @param file Filesystem file to add/update in database
      * @throws IOException If there's an issue loading the file
      */
     void createOrUpdateOneFile(File file) throws IOException {
         try {
-            if (!galleryService.isAllowedMediaFilename(file)) {
-                return;
+            ChangedFile changedFile = detectChange(file);
+            if (changedFile != null) {
+                writeBatch(List.of(geocode(extractMetadata(changedFile))));
             }
-            if (isDbUpToDate(file)) {
-                LOG.debug("Skipping update of {} as it doesn't need to be updated", file);
-                return;
+        } catch (Exception e) {
+            throw new IOException("Exception when upserting %s".formatted(file), e);
+        }
+    }
+
+    /**
+     * First indexing stage. Checks whether a file is a media file that needs to be indexed.
+     *
+     * @param file File
+     * @return The file along with the attributes to index, or null if it should not be indexed
+     * @throws IOException If the file cannot be checked
+     */
+    ChangedFile detectChange(File file) throws IOException {
+        if (!galleryService.isAllowedMediaFilename(file)) {
+            return null;
+        }
+        if (isDbUpToDate(file)) {
+            LOG.debug("Skipping update of {} as it doesn't need to be updated", file);
+            return null;
+        }
+        return new ChangedFile(file, file.getCanonicalPath(), file.getParentFile().getCanonicalPath(), file.lastModified(),
+                file.length());
+    }
+
+    /**
+     * Second indexing stage. Extracts metadata from the file itself.
+     *
+     * @param changedFile Changed file
+     * @return The file with metadata
+     * @throws IOException If metadata cannot be extracted
+     */
+    ExtractedFile extractMetadata(ChangedFile changedFile) throws IOException {
+        File file = changedFile.file();
+        MetadataExtractionService.FileMetaData metadata = metadataExtractionService.getMetadata(file);
+        return new ExtractedFile(changedFile, metadata, getContentType(file), isVideo(file), null);
+    }
+
+    /**
+     * Second indexing stage, for many files at once. Extracts metadata from the files in one exiftool request. Should the request fail,
+     * metadata is extracted one file at a time instead, so that an error for one file does not stop the others. Files exiftool cannot read
+     * are left out.
+     *
+     * @param changedFiles Changed files
+     * @return The files with metadata
+     * @throws IOException If metadata of a single file cannot be extracted
+     */
+    List<ExtractedFile> extractMetadata(List<ChangedFile> changedFiles) throws IOException {
+        Map<File, MetadataExtractionService.FileMetaData> metadataPerFile;
+        try {
+            metadataPerFile = metadataExtractionService.getMetadata(changedFiles.stream().map(ChangedFile::file).toList());
+        } catch (IOException e) {
+            if (changedFiles.size() == 1) {
+                throw e;
             }
-            final String findParentQuery = """
-                    SELECT id FROM gallery_file
-                    WHERE path_on_disk = :path_on_disk
-                    """;
-            final String mergeQuery = """
-                    MERGE INTO gallery_file (parent_id, path_on_disk, is_directory, file_type, content_type, location, date_taken, last_modified)
-                    KEY (path_on_disk)
-                    VALUES (:parent_id, :path_on_disk, false, :file_type, :content_type, :location, :date_taken, :last_modified)
-                    """;
-            String parentPath = file.getParentFile().getCanonicalPath();
-            MetadataExtractionService.FileMetaData metadata = metadataExtractionService.getMetadata(file);
-            String point = metadata.gpsLatitude() != null && metadata.gpsLongitude() != null ?
-                    "POINT(%s %s)".formatted(metadata.gpsLongitude(), metadata.gpsLatitude()) : null;
-            String contentType = getContentType(file);
-            AtomicLong atomicFileId = new AtomicLong();
-            AtomicLong atomicParentFileId = new AtomicLong(-1);
-
-            jdbi.useHandle(handle -> {
-                Long parentId =
-                        handle.createQuery(findParentQuery).bind("path_on_disk", parentPath).mapTo(Long.class).findOne()
-                                .orElse(null);
-                Long fileId = handle.createUpdate(mergeQuery).bind("parent_id", parentId).bind("path_on_disk", file.getCanonicalPath())
-                        .bind("file_type", isVideo(file) ? "video" : "image").bind("content_type", contentType)
-                        .bind("location", point)
-                        .bind("date_taken", metadata.dateTaken() != null ? new Timestamp(metadata.dateTaken().toEpochMilli()) : null)
-                        .bind("last_modified", new Timestamp(file.lastModified())).executeAndReturnGeneratedKeys().mapTo(Long.class)
-                        .one();
-
-
-                atomicFileId.set(fileId);
-                if (parentId != null) {
-                    atomicParentFileId.set(parentId);
+            LOG.warn("Failed in extracting metadata of batch of {} files. Extracting it one file at a time", changedFiles.size(), e);
+            metadataPerFile = new HashMap<>();
+            for (ChangedFile changedFile : changedFiles) {
+                try {
+                    metadataPerFile.putAll(metadataExtractionService.getMetadata(List.of(changedFile.file())));
+                } catch (IOException e2) {
+                    LOG.error("Failed in extracting metadata of {}. Ignoring", changedFile.file(), e2);
                 }
+            }
+        }
+        List<ExtractedFile> extractedFiles = new ArrayList<>();
+        for (ChangedFile changedFile : changedFiles) {
+            File file = changedFile.file();
+            MetadataExtractionService.FileMetaData metadata = metadataPerFile.get(file);
+            if (metadata == null) {
+                LOG.warn("Could not extract metadata from {}. Ignoring", file);
+                continue;
+            }
+            extractedFiles.add(new ExtractedFile(changedFile, metadata, getContentType(file), isVideo(file), null));
+        }
+        return extractedFiles;
+    }
 
-            });
-            updateFilenameTags(file, atomicFileId.get());
-            if (metadata.gpsLatitude() != null && metadata.gpsLongitude() != null) {
-                List<Location> nearestLocations = getBestNearestLocations(metadata.gpsLongitude(), metadata.gpsLatitude());
-                updateLocationTags(file, atomicFileId.get(), nearestLocations);
+    /**
+     * Third indexing stage. Finds the nearest locations of files with GPS coordinates.
+     *
+     * @param extractedFile File with metadata
+     * @return The file with nearest locations, or the same file if it has no GPS coordinates
+     */
+    ExtractedFile geocode(ExtractedFile extractedFile) {
+        MetadataExtractionService.FileMetaData metadata = extractedFile.metadata();
+        if (metadata.gpsLatitude() == null || metadata.gpsLongitude() == null) {
+            return extractedFile;
+        }
+        List<Location> nearestLocations = getBestNearestLocations(metadata.gpsLongitude(), metadata.gpsLatitude());
+        return new ExtractedFile(extractedFile.changedFile(), metadata, extractedFile.contentType(), extractedFile.video(),
+                nearestLocations);
+    }
+
+    /**
+     * Last indexing stage. Writes files to the DB in one batch. Should the batch fail, the files are written one at a time instead, so that
+     * an error for one file does not stop the others.
+     *
+     * @param extractedFiles Files to write
+     */
+    void writeFiles(List<ExtractedFile> extractedFiles) {
+        try {
+            writeBatch(extractedFiles);
+        } catch (Exception e) {
+            if (extractedFiles.size() == 1) {
+                LOG.error("Failed in updating {}. Ignoring", extractedFiles.getFirst().changedFile().file(), e);
+                return;
             }
-            if (atomicParentFileId.get() >= 0 && metadata.dateTaken() != null) {
-                updateDirectoryDateTakenRecursive(atomicParentFileId.get());
+            LOG.warn("Failed in writing batch of {} files. Writing them one at a time", extractedFiles.size(), e);
+            for (ExtractedFile extractedFile : extractedFiles) {
+                try {
+                    writeBatch(List.of(extractedFile));
+                } catch (Exception e2) {
+                    LOG.error("Failed in updating {}. Ignoring", extractedFile.changedFile().file(), e2);
+                }
             }
+        }
+    }
+
+    /**
+     * Writes files along with their tags in one transaction, using JDBC batches so that the number of statements does not grow with the
+     * number of files. Finally, {@link #updateDirectoryDateTaken(Handle, Collection)} is called once for all directories of the files, to
+     * ensure that their dateTaken attributes are correct.
+     *
+     * @param extractedFiles Files to write
+     * @throws IOException If the files cannot be written
+     */
+    void writeBatch(List<ExtractedFile> extractedFiles) throws IOException {
+        final String mergeQuery = """
+                MERGE INTO gallery_file (parent_id, path_on_disk, is_directory, file_type, content_type, location, date_taken, last_modified,
+                    file_size)
+                KEY (path_on_disk)
+                VALUES (:parent_id, :path_on_disk, false, :file_type, :content_type, :location, :date_taken, :last_modified, :file_size)
+                """;
+        final String deleteTagsQuery = """
+                DELETE FROM tag WHERE source = :source AND file_id = ANY(:file_ids)
+                """;
+        final String allTagsQuery = """
+                SELECT file_id, text FROM tag WHERE file_id = ANY(:file_ids)
+                """;
+        // The same file may have been submitted twice. The latest one wins
+        Map<String, ExtractedFile> filesPerPath = new LinkedHashMap<>();
+        extractedFiles.forEach(f -> filesPerPath.put(f.changedFile().path(), f));
+        Set<String> parentPaths = filesPerPath.values().stream().map(f -> f.changedFile().parentPath()).collect(Collectors.toSet());
+        Map<String, Long> fileIdPerPath = new HashMap<>();
+        Map<Long, List<String>> textsPerFileId = new HashMap<>();
+        Set<Long> parentIds = new HashSet<>();
+        Set<Long> parentIdsWithDateTaken = new HashSet<>();
+        try {
+            jdbi.useTransaction(handle -> {
+                Map<String, Long> parentIdPerPath = findIdsForPaths(handle, parentPaths);
+                PreparedBatch mergeBatch = handle.prepareBatch(mergeQuery);
+                for (ExtractedFile extractedFile : filesPerPath.values()) {
+                    ChangedFile changedFile = extractedFile.changedFile();
+                    MetadataExtractionService.FileMetaData metadata = extractedFile.metadata();
+                    String point = metadata.gpsLatitude() != null && metadata.gpsLongitude() != null ?
+                            "POINT(%s %s)".formatted(metadata.gpsLongitude(), metadata.gpsLatitude()) : null;
+                    mergeBatch.bind("parent_id", parentIdPerPath.get(changedFile.parentPath())).bind("path_on_disk", changedFile.path())
+                            .bind("file_type", extractedFile.video() ? "video" : "image").bind("content_type", extractedFile.contentType())
+                            .bind("location", point)
+                            .bind("date_taken", metadata.dateTaken() != null ? new Timestamp(metadata.dateTaken().toEpochMilli()) : null)
+                            .bind("last_modified", new Timestamp(changedFile.lastModified())).bind("file_size", changedFile.fileSize())
+                            .add();
+                }
+                mergeBatch.execute();
+                fileIdPerPath.putAll(findIdsForPaths(handle, filesPerPath.keySet()));
+
+                Map<Long, Long> parentIdPerFileId = new HashMap<>();
+                List<Long> geocodedFileIds = new ArrayList<>();
+                PreparedBatch insertTagsBatch = handle.prepareBatch(INSERT_TAG_QUERY);
+                for (ExtractedFile extractedFile : filesPerPath.values()) {
+                    ChangedFile changedFile = extractedFile.changedFile();
+                    long fileId = fileIdPerPath.get(changedFile.path());
+                    Long parentId = parentIdPerPath.get(changedFile.parentPath());
+                    parentIdPerFileId.put(fileId, parentId);
+                    if (parentId != null) {
+                        parentIds.add(parentId);
+                        if (extractedFile.metadata().dateTaken() != null) {
+                            parentIdsWithDateTaken.add(parentId);
+                        }
+                    }
+                    addTags(insertTagsBatch, fileId, "FILENAME", getFilenameTags(changedFile.file()));
+                    if (extractedFile.locations() != null) {
+                        geocodedFileIds.add(fileId);
+                        addTags(insertTagsBatch, fileId, "LOCATION", getLocationTags(extractedFile.locations()));
+                    }
+                }
+                upsertAncestry(handle, parentIdPerFileId);
+
+                Long[] fileIds = fileIdPerPath.values().toArray(new Long[0]);
+                handle.createUpdate(deleteTagsQuery).bind("source", "FILENAME").bind("file_ids", fileIds).execute();
+                if (!geocodedFileIds.isEmpty()) {
+                    handle.createUpdate(deleteTagsQuery).bind("source", "LOCATION").bind("file_ids", geocodedFileIds.toArray(new Long[0]))
+                            .execute();
+                }
+                if (insertTagsBatch.size() > 0) {
+                    insertTagsBatch.execute();
+                }
+                // Tags of all sources, as the index holds all terms of a file
+                handle.createQuery(allTagsQuery).bind("file_ids", fileIds)
+                        .map((rs, _) -> Map.entry(rs.getLong("file_id"), rs.getString("text")))
+                        .forEach(e -> textsPerFileId.computeIfAbsent(e.getKey(), _ -> new ArrayList<>()).add(e.getValue()));
+                updateDirectoryDateTaken(handle, parentIdsWithDateTaken);
+            });
         } catch (Exception e) {
-            throw new IOException("Exception when upserting %s".formatted(file), e);
+            throw new IOException("Exception when writing %s files".formatted(filesPerPath.size()), e);
+        }
+        try {
+            fileIdPerPath.forEach((path, fileId) -> tagIndex.setTerms(fileId, path, textsPerFileId.getOrDefault(fileId, List.of())));
+        } finally {
+            parentIds.forEach(this::invalidateCachedSearches);
         }
     }
 
+    /**
+     * Finds the IDs of files or directories by path.
+     *
+     * @param handle Handle
+     * @param paths  Canonical paths
+     * @return ID per path, for the paths that are indexed
+     */
+    Map<String, Long> findIdsForPaths(Handle handle, Collection<String> paths) {
+        final String findIdsQuery = """
+                SELECT path_on_disk, id FROM gallery_file
+                WHERE path_on_disk = ANY(:paths)
+                """;
+        Map<String, Long> idPerPath = new HashMap<>();
+        handle.createQuery(findIdsQuery).bind("paths", paths.toArray(new String[0]))
+                .map((rs, _) -> Map.entry(rs.getString("path_on_disk"), rs.getLong("id")))
+                .forEach(e -> idPerPath.put(e.getKey(), e.getValue()));
+        return idPerPath;
+    }
+
     /**
      * Directories don't have any native 'dateTaken', but for sorting purposes we want to populate it. We pick the newest date_taken of the
-     * children and populate that on the directory. If an update was made this is also done recursively for the next parent until we've
-     * reached a root directory or the directory was not updated.
+     * children of each given directory, and populate that on the directory and all directories above it, wherever it is newer than their
+     * current date_taken. Since a directory's date_taken is then never older than that of its children, this gives the same result as
+     * recomputing each directory from its children, level by level up to the root directory.
+     * <p>
+     * All given directories and their ancestors are updated in one statement, via the ancestry table, so directories sharing ancestors
+     * cause no redundant work.
      *
-     * @param directoryId Directory ID
+     * @param handle       Handle
+     * @param directoryIds IDs of directories with changed children
      */
-    void updateDirectoryDateTakenRecursive(Long directoryId) {
-        final String newestChildQuery = "SELECT MAX(date_taken) FROM gallery_file WHERE parent_id = :parent_id" ;
-        final String updateDirectoryDateTakenQuery = """
-                UPDATE GALLERY_FILE SET date_taken = :timestamp
-                WHERE id = :id
-                AND (date_taken IS NULL OR date_taken < :timestamp)
+    void updateDirectoryDateTaken(Handle handle, Collection<Long> directoryIds) {
+        final String updateDirectoriesDateTakenQuery = """
+                MERGE INTO gallery_file d
+                USING (
+                    SELECT a.ancestor_id AS id, MAX(c.date_taken) AS newest_date_taken
+                    FROM gallery_file c
+                    JOIN gallery_file_ancestor a ON a.descendant_id = c.parent_id
+                    WHERE c.parent_id = ANY(:directory_ids)
+                    GROUP BY a.ancestor_id
+                    HAVING MAX(c.date_taken) IS NOT NULL
+                ) n ON d.id = n.id
+                WHEN MATCHED AND (d.date_taken IS NULL OR d.date_taken < n.newest_date_taken) THEN
+                    UPDATE SET date_taken = n.newest_date_taken
                 """;
-        final String findParentIdQuery = "SELECT parent_id FROM gallery_file WHERE id = :id" ;
-        Optional<Instant> updatedDateTakenOpt = jdbi.withHandle(handle -> {
-            Optional<Instant> newestDateTakenOpt =
-                    handle.createQuery(newestChildQuery).bind("parent_id", directoryId).mapTo(Instant.class).findOne();
-            if (newestDateTakenOpt.isEmpty()) {
-                return Optional.empty();
-            }
-            Instant newestDateTaken = newestDateTakenOpt.get();
-            int updateCount = handle.createUpdate(updateDirectoryDateTakenQuery).bind("id", directoryId)
-                    .bind("timestamp", new Timestamp(newestDateTaken.toEpochMilli())).execute();
-            return updateCount > 0 ? Optional.of(newestDateTaken) : Optional.empty();
-        });
-        if (updatedDateTakenOpt.isPresent()) {
-            // Recursive update of higher directories if current directory was updated
-            Optional<Long> parentIdOpt =
-                    jdbi.withHandle(handle -> handle.createQuery(findParentIdQuery).bind("id", directoryId).mapTo(Long.class).findOne());
-            parentIdOpt.ifPresent(this::updateDirectoryDateTakenRecursive);
+        if (directoryIds.isEmpty()) {
+            return;
         }
+        int updateCount = handle.createUpdate(updateDirectoriesDateTakenQuery)
+                .bind("directory_ids", directoryIds.toArray(new Long[0])).execute();
+        LOG.debug("Updated date taken of {} directories for {} changed directories", updateCount, directoryIds.size());
     }
 
 
@@ -741,14 +1733,19 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
     }
 
     void updateFilenameTags(File fileOrDir, long fileId) throws IOException {
-        List<TypeAndText> filenameParts =
-                filenameToSearchTermsStrategy.generateSearchTermsFromFilename(fileOrDir).stream()
-                        .map(part -> new TypeAndText(null, part))
-                        .toList();
-        updateTagsForSource(fileOrDir, fileId, "FILENAME", filenameParts);
+        updateTagsForSource(fileOrDir, fileId, "FILENAME", getFilenameTags(fileOrDir));
     }
 
     void updateLocationTags(File fileOrDir, long fileId, List<Location> locations) throws IOException {
+        updateTagsForSource(fileOrDir, fileId, "LOCATION", getLocationTags(locations));
+    }
+
+    List<TypeAndText> getFilenameTags(File fileOrDir) {
+        return filenameToSearchTermsStrategy.generateSearchTermsFromFilename(fileOrDir).stream().map(part -> new TypeAndText(null, part))
+                .toList();
+    }
+
+    Set<TypeAndText> getLocationTags(List<Location> locations) {
         Set<TypeAndText> locationParts = new HashSet<>();
         for (Location location : locations) {
             String countryName = ISO_COUNTRY_NAME_MAP.get(location.getCountryIsoA2());
@@ -760,55 +1757,165 @@ public class GallerySearchService implements FileChangeListener, GalleryRootDirC
             locationParts.add(new TypeAndText("COUNTRY", countryName));
             locationParts.add(new TypeAndText("COUNTRY_CODE", location.getCountryIsoA2()));
         }
-        updateTagsForSource(fileOrDir, fileId, "LOCATION", locationParts);
+        return locationParts;
     }
 
     void updateTagsForSource(File fileOrDir, long fileId, String source, Collection<TypeAndText> newTags) throws IOException {
         final String deleteTagsQuery = """
                 DELETE FROM tag WHERE source = :source AND file_id = :file_id
                 """;
-        final String updateTagsQuery = """
-                INSERT INTO tag (file_id, source, type, text) VALUES (:file_id, :source, :type, :text)
+        final String allTagsQuery = """
+                SELECT text FROM tag WHERE file_id = :file_id
                 """;
         try {
-            jdbi.useTransaction(handle -> {
+            List<String> allTexts = jdbi.inTransaction(handle -> {
                 handle.createUpdate(deleteTagsQuery).bind("file_id", fileId).bind("source", source).execute();
-                for (TypeAndText newTag : newTags) {
-                    if (StringUtils.isNotBlank(newTag.text())) {
-                        handle.createUpdate(updateTagsQuery).bind("file_id", fileId).bind("source", source).bind("type", newTag.type())
-                                .bind("text", newTag.text()).execute();
-                    }
+                PreparedBatch insertTagsBatch = handle.prepareBatch(INSERT_TAG_QUERY);
+                addTags(insertTagsBatch, fileId, source, newTags);
+                if (insertTagsBatch.size() > 0) {
+                    insertTagsBatch.execute();
                 }
+                // Tags of all sources, as the index holds all terms of a file
+                return handle.createQuery(allTagsQuery).bind("file_id", fileId).mapTo(String.class).list();
             });
+            tagIndex.setTerms(fileId, getPathName(fileOrDir), allTexts);
         } catch (Exception e) {
             LOG.error("Error while creating or updating tags for file {} with ID {} in database", fileOrDir, fileId, e);
             throw new IOException(e);
         }
     }
 
-    Collection<File> getAllDirectories(Collection<File> dirs) throws IOException, NotAllowedException {
-        Collection<File> allDirectories = new HashSet<>();
-        dirs.forEach(dir -> allDirectories.addAll(
-                listFilesAndDirs(dir, FileFilterUtils.falseFileFilter(), FileFilterUtils.directoryFileFilter())));
-        LOG.debug("Returning {} directories", allDirectories.size());
-        return allDirectories;
+    /**
+     * Adds inserts of the given tags to a batch of {@link #INSERT_TAG_QUERY}. Blank tags are skipped.
+     *
+     * @param insertTagsBatch Batch
+     * @param fileId          ID of file or directory
+     * @param source          Source of tags
+     * @param tags            Tags
+     */
+    private void addTags(PreparedBatch insertTagsBatch, long fileId, String source, Collection<TypeAndText> tags) {
+        for (TypeAndText tag : tags) {
+            if (StringUtils.isNotBlank(tag.text())) {
+                insertTagsBatch.bind("file_id", fileId).bind("source", source).bind("type", tag.type()).bind("text", tag.text()).add();
+            }
+        }
+    }
+
+    private GalleryFile.GalleryFileType parseFileType(String fileType) {
+        if (fileType == null) {
+            return null;
+        }
+        try {
+            return GalleryFile.GalleryFileType.valueOf(fileType.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            LOG.warn("Unknown file type {} in DB", fileType);
+            return null;
+        }
     }
 
-    public record SearchQuery(String publicPath, String searchTerm, Integer page, Integer pageSize, SortOrder sortOrder) {
+    /**
+     * Search query.
+     *
+     * @param publicPath        Public path to search within. Null or empty for all root paths of the user
+     * @param searchTerm        Search terms, separated by whitespace. May be null
+     * @param fuzzy             Whether search terms also match tags containing them or being similar to them, rather than only tags
+     *                          starting with them
+     * @param page              Zero-based page of media. Ignored if a cursor is given. May be null
+     * @param pageSize          Page size of media. Defaults to {@link #MAX_PAGE_SIZE}
+     * @param sortOrder         Sort order. Defaults to descending
+     * @param cursor            Media cursor from a previous page. May be null
+     * @param directoryPageSize Page size of directories. Defaults to {@link #MAX_DIRECTORY_PAGE_SIZE}
+     * @param directoryCursor   Directory cursor from a previous page. May be null
+     */
+    public record SearchQuery(String publicPath, String searchTerm, boolean fuzzy, Integer page, Integer pageSize, SortOrder sortOrder,
+                              String cursor, Integer directoryPageSize, String directoryCursor) {
     }
 
     public enum SortOrder {
         ASC, DESC
     }
 
+    /**
+     * Length of the periods of a timeline. The names are used as units of DATE_TRUNC.
+     */
+    public enum TimelineResolution {
+        YEAR(ChronoUnit.YEARS), MONTH(ChronoUnit.MONTHS), DAY(ChronoUnit.DAYS);
+
+        private final ChronoUnit unit;
+
+        TimelineResolution(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        public ChronoUnit getUnit() {
+            return unit;
+        }
+    }
+
     enum FileAction {
         UPDATE,
         DELETE
     }
 
+    /**
+     * A media file that needs to be indexed, as found by change detection.
+     *
+     * @param file         File
+     * @param path         Canonical path
+     * @param parentPath   Canonical path of parent directory
+     * @param lastModified Last modified time
+     * @param fileSize     File size
+     */
+    record ChangedFile(File file, String path, String parentPath, long lastModified, long fileSize) {
+    }
+
+    /**
+     * A media file with everything needed to write it to the DB.
+     *
+     * @param changedFile The file as found by change detection
+     * @param metadata    Metadata extracted from the file
+     * @param contentType Content type
+     * @param video       Whether the file is a video
+     * @param locations   Nearest locations. Null if the file has no GPS coordinates or has not been geocoded yet
+     */
+    record ExtractedFile(ChangedFile changedFile, MetadataExtractionService.FileMetaData metadata, String contentType, boolean video,
+                         List<Location> locations) {
+    }
+
+    /**
+     * Difference between the children of a directory on disk and in the index.
+     *
+     * @param changedFiles       Media files that are new or modified since indexed
+     * @param subdirectories     All subdirectories on disk
+     * @param changedDirectories Subdirectories that are new or modified since indexed
+     * @param vanished           Indexed files and directories no longer on disk
+     */
+    record DirectoryDelta(List<ChangedFile> changedFiles, List<File> subdirectories, List<File> changedDirectories, List<File> vanished) {
+    }
+
     record FileAndAction(File file, FileAction fileAction) {
     }
 
+    private record ClusterRow(double lon, double lat, long count, DbFile representative) {
+    }
+
+    /**
+     * A search with the scope resolved and the query validated, as returned by {@link #prepareSearch(SearchQuery)}.
+     *
+     * @param searchQuery     Search query
+     * @param tagMatch        Terms, and files and directories within the base directories, matching the search terms, as found in the
+     *                        {@link TagIndex}. Null if there are no search terms
+     * @param baseIds         IDs of the base directories, either the current public path or all root paths for the user
+     * @param allBasesIndexed Whether all base directories were found in the index
+     * @param rootListing     Whether there is neither a public path nor search terms, in which case the root directories are listed
+     * @param sortOrder       Sort order
+     * @param cursor          Media cursor. May be null
+     * @param directoryCursor Directory cursor. May be null
+     */
+    public record PreparedSearch(SearchQuery searchQuery, TagIndex.TermMatch tagMatch, long[] baseIds, boolean allBasesIndexed,
+                                 boolean rootListing, SortOrder sortOrder, ListingCursor cursor, ListingCursor directoryCursor) {
+    }
+
     record TypeAndText(String type, String text) {
     }
 }
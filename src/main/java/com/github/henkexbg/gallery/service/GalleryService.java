@@ -23,6 +23,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import com.github.henkexbg.gallery.bean.GalleryDirectory;
@@ -52,7 +54,11 @@ public class GalleryService {
 
     public static final String VIDEO_MODE_ORIGINAL = "ORIGINAL";
     public static final String DEFAULT_IMAGE_FILE_ENDING = "jpg";
+
+    static final String DEFAULT_IMAGE_CONTENT_TYPE = "image/jpeg";
     public static final String DIR_IMAGE_DIR_NAME = "_directoryImages_";
+    static final String VERSION_SEPARATOR = "_";
+    private static final Pattern STALE_VERSION_PATTERN = Pattern.compile("[0-9a-f]+-[0-9a-f]+");
 
     private final Logger LOG = LoggerFactory.getLogger(getClass());
     private final IOFileFilter allowedMediaExtensionsFilter = new AllowedMediaExtensionsFilter();
@@ -83,6 +89,12 @@ public class GalleryService {
 
     File dirImageDir;
 
+    /**
+     * When each directory image was last checked against the images of its directory. Kept in memory, so after a restart each directory
+     * image is checked once more when first requested.
+     */
+    private final Map<File, Long> directoryImageCheckTimes = new ConcurrentHashMap<>();
+
     @PostConstruct
     public void setUp() {
         dirImageDir = new File(resizeDir, DIR_IMAGE_DIR_NAME);
@@ -107,12 +119,29 @@ public class GalleryService {
      */
     public GalleryFile getImage(String publicPath, int width, int height) throws IOException, NotAllowedException {
         LOG.debug("Entering getImage(publicPath={}, width={}, height={}", publicPath, width, height);
-        if (width <= 0 || width > maxImageWidth || height <= 0 || height > maxImageHeight) {
-            String errorMessage = String.format("Non valid image size requested. Width: %s, height: %s", width, height);
-            LOG.error(errorMessage);
-            throw new IOException(errorMessage);
-        }
-        File realFile = getRealFileOrDir(publicPath);
+        validateImageSize(width, height);
+        return getImage(publicPath, getRealFileOrDir(publicPath), width, height);
+    }
+
+    /**
+     * As {@link #getImage(String, int, int)}, but for a file that has already been resolved by the caller. <strong>NOTE! This method does
+     * NOT verify that the current user has the right to access the given file! It is the responsibility of calling methods to make sure
+     * access has been granted in another way, for example via a signed URL.</strong>
+     *
+     * @param realFile Actual file or directory
+     * @param width    Width in pixels
+     * @param height   Height in pixels
+     * @return The rescaled image. The public path of the returned file is not set
+     * @throws IOException         If any issues retrieving the files, or the given format is not valid
+     * @throws NotAllowedException If the file does not have an allowed file extension
+     */
+    public GalleryFile getImageForRealFile(File realFile, int width, int height) throws IOException, NotAllowedException {
+        LOG.debug("Entering getImageForRealFile(realFile={}, width={}, height={}", realFile, width, height);
+        validateImageSize(width, height);
+        return getImage(null, validateRealFileOrDir(realFile), width, height);
+    }
+
+    private GalleryFile getImage(String publicPath, File realFile, int width, int height) throws IOException {
         if (realFile.isDirectory()) {
             realFile = getDirectoryImage(realFile);
             if (realFile == null) {
@@ -123,10 +152,11 @@ public class GalleryService {
         }
         File resizedImage;
         boolean isVideo = isVideo(realFile);
+        String version = createFingerprint(realFile.lastModified(), realFile.length());
         if (isVideo) {
-            resizedImage = determineResizedVideoImage(realFile, width, height);
+            resizedImage = determineResizedVideoImage(realFile, version, width, height);
         } else {
-            resizedImage = determineResizedImageFilename(realFile, width, height);
+            resizedImage = determineResizedImageFilename(realFile, version, width, height);
         }
         LOG.debug("Resized filename: {}", resizedImage.getCanonicalPath());
         if (!resizedImage.exists()) {
@@ -141,8 +171,11 @@ public class GalleryService {
             } else {
                 imageResizeService.resizeImage(realFile, resizedImage, width, height);
             }
+            deleteStaleDerivatives(resizedImage, version);
         }
-        return createGalleryFile(publicPath, resizedImage);
+        GalleryFile galleryFile = createGalleryFile(publicPath, resizedImage);
+        galleryFile.setVersion(version);
+        return galleryFile;
     }
 
     /**
@@ -156,7 +189,26 @@ public class GalleryService {
      */
     public GalleryFile getVideo(String publicPath, String videoMode) throws IOException, NotAllowedException {
         LOG.debug("Entering getVideo(publicPath={}, videoMode={}", publicPath, videoMode);
-        File video = getRealFileOrDir(publicPath);
+        return getVideo(publicPath, getRealFileOrDir(publicPath), videoMode);
+    }
+
+    /**
+     * As {@link #getVideo(String, String)}, but for a file that has already been resolved by the caller. <strong>NOTE! This method does
+     * NOT verify that the current user has the right to access the given file!</strong> See
+     * {@link #getImageForRealFile(File, int, int)}.
+     *
+     * @param video     Actual video file
+     * @param videoMode Video mode
+     * @return A gallery file with the video for the given video mode. The public path of the returned file is not set
+     * @throws IOException         If any issues retrieving the files, or if video mode
+     * @throws NotAllowedException If the file does not have an allowed file extension
+     */
+    public GalleryFile getVideoForRealFile(File video, String videoMode) throws IOException, NotAllowedException {
+        LOG.debug("Entering getVideoForRealFile(video={}, videoMode={}", video, videoMode);
+        return getVideo(null, validateRealFileOrDir(video), videoMode);
+    }
+
+    private GalleryFile getVideo(String publicPath, File video, String videoMode) throws IOException {
         File convertedVideo;
         if (VIDEO_MODE_ORIGINAL.equals(videoMode)) {
             LOG.debug("Video mode was {}. Will return original video.", VIDEO_MODE_ORIGINAL);
@@ -168,19 +220,25 @@ public class GalleryService {
     }
 
     public String getPublicPathFromRealFile(File file) throws IOException, NotAllowedException {
-        Map<String, File> rootPathsForCurrentUser = galleryAuthorizationService.getRootPathsForCurrentUser();
-        Optional<Entry<String, File>> optRootEntry = rootPathsForCurrentUser.entrySet().stream().filter(e -> {
-            try {
-                return file.getCanonicalPath().startsWith(e.getValue().getCanonicalPath());
-            } catch (IOException ioe) {
-                return false;
+        return getPublicPathFromCanonicalPath(file.getCanonicalPath());
+    }
+
+    /**
+     * As {@link #getPublicPathFromRealFile(File)}, but for a path that is already known to be canonical, such as paths stored in the
+     * search index. The mapping is done purely on strings against the precomputed root paths of the current user, without accessing the
+     * filesystem.
+     *
+     * @param canonicalPath Canonical path of file or directory
+     * @return The public path of the file
+     * @throws IOException If the path is not within any of the root paths of the current user
+     */
+    public String getPublicPathFromCanonicalPath(String canonicalPath) throws IOException {
+        for (Entry<String, String> rootEntry : galleryAuthorizationService.getCanonicalRootPathsForCurrentUser().entrySet()) {
+            if (isSameOrChildPath(rootEntry.getValue(), canonicalPath)) {
+                return separatorsToUnix(rootEntry.getKey() + canonicalPath.substring(rootEntry.getValue().length()));
             }
-        }).findAny();
-        if (optRootEntry.isEmpty()) {
-            throw new IOException(String.format("File %s could not be mapped to a public path", file.getCanonicalPath()));
         }
-        Entry<String, File> rootEntry = optRootEntry.get();
-        return getPublicPathFromRealFile(rootEntry.getKey(), file);
+        throw new IOException(String.format("File %s could not be mapped to a public path", canonicalPath));
     }
 
     /**
@@ -220,6 +278,25 @@ public class GalleryService {
         return galleryFile;
     }
 
+    /**
+     * As {@link #createGalleryFile(String, File)}, but with type and content type already known, for example from the search index. The
+     * file is not accessed.
+     *
+     * @param publicPath  Public path.
+     * @param actualFile  File to convert to {@link GalleryFile}.
+     * @param type        Type of file
+     * @param contentType Content type of file
+     * @return A {@link GalleryFile} based on the given parameters
+     */
+    public GalleryFile createGalleryFile(String publicPath, File actualFile, GalleryFileType type, String contentType) {
+        GalleryFile galleryFile = new GalleryFile();
+        galleryFile.setPublicPath(publicPath);
+        galleryFile.setActualFile(actualFile);
+        galleryFile.setContentType(contentType);
+        galleryFile.setType(type);
+        return galleryFile;
+    }
+
     /**
      * As {@link #createGalleryDirectory(String, File, String)}, but uses the
      * directory name as gallery directory name.
@@ -233,6 +310,25 @@ public class GalleryService {
         return createGalleryDirectory(publicPath, actualDir, dirName);
     }
 
+    /**
+     * As {@link #createGalleryDirectory(String, File)}, but for a directory with a known canonical path, for example from the search index.
+     * The filesystem is not accessed, as the file of the directory image is derived from the path alone. The image itself is generated when
+     * it is requested.
+     *
+     * @param publicPath    Public path.
+     * @param canonicalPath Canonical path of directory.
+     * @return A {@link GalleryDirectory} for the given parameters
+     */
+    public GalleryDirectory createGalleryDirectoryFromCanonicalPath(String publicPath, String canonicalPath) {
+        File actualDir = new File(canonicalPath);
+        GalleryDirectory galleryDirectory = new GalleryDirectory();
+        galleryDirectory.setPublicPath(publicPath);
+        galleryDirectory.setName(publicPath.contains("/") ? actualDir.getName() : publicPath);
+        File directoryImage = determineDirectoryImage(actualDir.getName(), canonicalPath);
+        galleryDirectory.setImage(createGalleryFile(publicPath, directoryImage, GalleryFileType.IMAGE, DEFAULT_IMAGE_CONTENT_TYPE));
+        return galleryDirectory;
+    }
+
     /**
      * Looks up the actual file based on the public path. This method also checks that the current user has right to access the file.
      *
@@ -243,16 +339,35 @@ public class GalleryService {
      * @throws NotAllowedException   If explicitly not allowed to access file
      */
     File getRealFileOrDir(String publicPath) throws IOException, FileNotFoundException, NotAllowedException {
-        File file = galleryAuthorizationService.getRealFileOrDir(publicPath);
+        return validateRealFileOrDir(galleryAuthorizationService.getRealFileOrDir(publicPath));
+    }
+
+    /**
+     * Checks that the given file exists, and that it's either a directory or has an allowed media filename.
+     *
+     * @param file File or directory
+     * @return The same file
+     * @throws FileNotFoundException If file cannot be found
+     * @throws NotAllowedException   If the file does not have an allowed file extension
+     */
+    File validateRealFileOrDir(File file) throws FileNotFoundException, NotAllowedException {
         if (!file.exists()) {
             throw new FileNotFoundException("File not found!");
         }
         if (!file.isDirectory() && !isAllowedMediaFilename(file)) {
-            throw new NotAllowedException("File " + publicPath + " did not have an allowed file extension");
+            throw new NotAllowedException("File " + file.getName() + " did not have an allowed file extension");
         }
         return file;
     }
 
+    private void validateImageSize(int width, int height) throws IOException {
+        if (width <= 0 || width > maxImageWidth || height <= 0 || height > maxImageHeight) {
+            String errorMessage = String.format("Non valid image size requested. Width: %s, height: %s", width, height);
+            LOG.error(errorMessage);
+            throw new IOException(errorMessage);
+        }
+    }
+
     /**
      * A kind of inverse lookup - finding the public path given the actual file.
      * <strong>NOTE! This method does NOT verify that the current user actually has
@@ -266,8 +381,8 @@ public class GalleryService {
      */
     String getPublicPathFromRealFile(String publicRoot, File file) throws IOException {
         String actualFilePath = file.getCanonicalPath();
-        File rootFile = galleryAuthorizationService.getRootPathsForCurrentUser().get(publicRoot);
-        String relativePath = actualFilePath.substring(rootFile.getCanonicalPath().length());
+        String rootPath = galleryAuthorizationService.getCanonicalRootPathsForCurrentUser().get(publicRoot);
+        String relativePath = actualFilePath.substring(rootPath.length());
         return  separatorsToUnix(publicRoot + relativePath);
     }
 
@@ -298,7 +413,12 @@ public class GalleryService {
     }
 
     /**
-     * Retrieves the image for a directory. If necessary the image will be generated first.
+     * Retrieves the image for a directory. If necessary the image will be generated first. The image is checked against the images of the
+     * directory at most once per max age, and only regenerated if any of them is newer than the image.
+     * <p>
+     * The last modified time of a generated image is set to that of the newest image it was generated from. As the version of the image is
+     * based on its last modified time and size, it then only changes when the images of the directory do, and not when the image is
+     * checked again.
      *
      * @param directory Directory
      * @return The generated image, or null if no image could be generated, for example because there are no images in the directory.
@@ -306,24 +426,24 @@ public class GalleryService {
      */
     File getDirectoryImage(File directory) throws IOException {
         File directoryImage = determineDirectoryImage(directory);
-        if (!directoryImage.exists() ||
-                directoryImage.lastModified() < System.currentTimeMillis() - (directoryImageMaxAgeMinutes * 60000)) {
+        long now = System.currentTimeMillis();
+        Long lastCheckTime = directoryImageCheckTimes.get(directoryImage);
+        if (!directoryImage.exists() || lastCheckTime == null || lastCheckTime < now - (directoryImageMaxAgeMinutes * 60000)) {
             LOG.debug("Evaluating directory image for {}", directory);
             List<File> imagesForCompositeDirectoryImage = findImagesForCompositeDirectoryImage(directory);
             if (!imagesForCompositeDirectoryImage.isEmpty()) {
                 long newestSourceImageTimestamp =
                         imagesForCompositeDirectoryImage.stream().min((a, b) -> Long.compare(b.lastModified(), a.lastModified())).get()
                                 .lastModified();
-                if (directoryImage.exists() && newestSourceImageTimestamp < directoryImage.lastModified()) {
-                    // Extra optimization. If the directory image has expired, but the composite images are not newer than the current
-                    // directory image, just update the last modified timestamp on the directory image
-                    LOG.debug("Keeping expired directory image, renewing timestamp");
-                    directoryImage.setLastModified(System.currentTimeMillis());
+                if (directoryImage.exists() && newestSourceImageTimestamp <= directoryImage.lastModified()) {
+                    // The composite images are not newer than the current directory image, which is then kept as it is
+                    LOG.debug("Keeping expired directory image");
                 } else {
                     LOG.debug("Will generate new composite image for directory {}", directoryImage);
                     try {
                         imageResizeService.generateCompositeImage(imagesForCompositeDirectoryImage, directoryImage, maxImageWidth,
                                 maxImageHeight);
+                        directoryImage.setLastModified(newestSourceImageTimestamp);
                     } catch (IOException ioe) {
                         String errorMessage = String.format("Error when generating composite image for %s. Returning null.",
                                 directory.getCanonicalPath());
@@ -336,6 +456,7 @@ public class GalleryService {
                 // always try to generate a new file for directories without images
                 directoryImage.createNewFile();
             }
+            directoryImageCheckTimes.put(directoryImage, now);
         }
         return directoryImage;
     }
@@ -368,18 +489,21 @@ public class GalleryService {
     /**
      * Generates the filename for a resized file and creates a file object (does not
      * perform any file operation) given a file and its rescaling parameters. resize
-     * parameters.
+     * parameters. The version of the original file is part of the filename, so that
+     * a changed original never resolves to a derivative of an earlier version.
      *
      * @param originalFile Original file
+     * @param version Version fingerprint of the original file
      * @param width Width
      * @param height Height
      * @return A file with the generated filename
      * @throws IOException If filename cannot be generated
      */
-    File determineResizedImageFilename(File originalFile, int width, int height) throws IOException {
+    File determineResizedImageFilename(File originalFile, String version, int width, int height) throws IOException {
         String resizePart = Integer.valueOf(width).toString() + "x" + Integer.valueOf(height).toString();
-        return new File(resizeDir, File.separator + resizePart + File.separator + escapeFilePath(originalFile) +
+        File unversionedFile = new File(resizeDir, File.separator + resizePart + File.separator + escapeFilePath(originalFile) +
                 (originalFile.isDirectory() ? '.' + DEFAULT_IMAGE_FILE_ENDING : ""));
+        return new File(unversionedFile.getParentFile(), version + VERSION_SEPARATOR + unversionedFile.getName());
     }
 
     /**
@@ -388,16 +512,42 @@ public class GalleryService {
      * rescaling parameters. resize parameters.
      *
      * @param originalFile Video.
+     * @param version      Version fingerprint of the video.
      * @param width        Max width to scale image to.
      * @param height       Max height to scale image to.
      * @return A {@link File} object for the scaled image.
      * @throws IOException If filename cannot be determined
      */
-    File determineResizedVideoImage(File originalFile, int width, int height) throws IOException {
-        File resizedImage = determineResizedImageFilename(originalFile, width, height);
+    File determineResizedVideoImage(File originalFile, String version, int width, int height) throws IOException {
+        File resizedImage = determineResizedImageFilename(originalFile, version, width, height);
         return new File(resizedImage.getCanonicalPath() + '.' + DEFAULT_IMAGE_FILE_ENDING);
     }
 
+    /**
+     * Removes derivatives of earlier versions of the same original and size as the given, newly generated, derivative, including any
+     * derivative from before derivatives were versioned, which has no version in its name. Failing to remove one is not an error - it will
+     * just take up space.
+     *
+     * @param derivative Newly generated derivative
+     * @param version    Version of the derivative
+     */
+    void deleteStaleDerivatives(File derivative, String version) {
+        String unversionedName = derivative.getName().substring(version.length() + VERSION_SEPARATOR.length());
+        File[] staleDerivatives = derivative.getParentFile().listFiles((dir, name) -> name.equals(unversionedName) ||
+                (!name.equals(derivative.getName()) && name.endsWith(VERSION_SEPARATOR + unversionedName) &&
+                        STALE_VERSION_PATTERN.matcher(name.substring(0, name.length() - unversionedName.length() -
+                                VERSION_SEPARATOR.length())).matches()));
+        if (staleDerivatives == null) {
+            return;
+        }
+        for (File staleDerivative : staleDerivatives) {
+            LOG.debug("Deleting stale derivative {}", staleDerivative);
+            if (!staleDerivative.delete()) {
+                LOG.warn("Could not delete stale derivative {}", staleDerivative);
+            }
+        }
+    }
+
     /**
      * Determines the file (or essentially filename) of an image dedicated for a
      * directory.
@@ -407,7 +557,18 @@ public class GalleryService {
      * @throws IOException If filename cannot be determined
      */
     File determineDirectoryImage(File directory) throws IOException {
-        String filename = directory.getName() + '-' + directory.getCanonicalPath().hashCode() + '.' + DEFAULT_IMAGE_FILE_ENDING;
+        return determineDirectoryImage(directory.getName(), directory.getCanonicalPath());
+    }
+
+    /**
+     * As {@link #determineDirectoryImage(File)}, but with the canonical path already known.
+     *
+     * @param directoryName Name of directory
+     * @param canonicalPath Canonical path of directory
+     * @return A file pointing to the directory image.
+     */
+    File determineDirectoryImage(String directoryName, String canonicalPath) {
+        String filename = directoryName + '-' + canonicalPath.hashCode() + '.' + DEFAULT_IMAGE_FILE_ENDING;
         return new File(dirImageDir, filename);
     }
 
@@ -0,0 +1,132 @@
+package com.github.henkexbg.gallery.service;
+
+import com.github.henkexbg.gallery.service.GallerySearchService.FileAction;
+import com.github.henkexbg.gallery.service.GallerySearchService.FileAndAction;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Queue of files to update in the index, coalesced per path. If a file is queued again before it is processed, the latest action replaces
+ * the earlier one, so a file touched many times is processed once, and a file updated and then deleted is only deleted. The consumer takes
+ * everything pending at once, grouped by parent directory.
+ * <p>
+ * The queue is bounded. When full, a file not already queued is not added, but its parent directory is marked for a rescan instead, which
+ * picks up all changes within it. Should the directories to rescan also reach the bound, everything is rescanned.
+ */
+class IndexUpdateQueue {
+
+    private final int maxEntries;
+
+    private final Map<String, FileAndAction> pending = new LinkedHashMap<>();
+
+    private final Set<File> rescanDirectories = new HashSet<>();
+
+    private boolean fullRescan = false;
+
+    private long coalesced = 0;
+
+    private long overflowed = 0;
+
+    /**
+     * Creates a queue.
+     *
+     * @param maxEntries Max number of queued files
+     */
+    IndexUpdateQueue(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Queues a file, replacing any action already queued for the same path. A directory updated while its deletion is queued has been
+     * deleted and created again. Updating it would leave whatever was within the deleted directory in the index, so it is marked for a
+     * rescan instead.
+     *
+     * @param fileAndAction File and action
+     */
+    synchronized void add(FileAndAction fileAndAction) {
+        String key = fileAndAction.file().getAbsolutePath();
+        FileAndAction queued = pending.get(key);
+        if (queued != null && queued.fileAction() == FileAction.DELETE && fileAndAction.fileAction() == FileAction.UPDATE &&
+                fileAndAction.file().isDirectory()) {
+            pending.remove(key);
+            coalesced++;
+            markForRescan(fileAndAction.file().getAbsoluteFile());
+        } else if (queued != null || pending.size() < maxEntries) {
+            if (pending.put(key, fileAndAction) != null) {
+                coalesced++;
+            }
+        } else {
+            overflowed++;
+            File parent = fileAndAction.file().getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                markForRescan(parent);
+            }
+        }
+        notifyAll();
+    }
+
+    private void markForRescan(File directory) {
+        if (fullRescan) {
+            return;
+        }
+        if (rescanDirectories.size() < maxEntries) {
+            rescanDirectories.add(directory);
+        } else {
+            fullRescan = true;
+            rescanDirectories.clear();
+        }
+    }
+
+    /**
+     * Takes everything pending, waiting until there is anything.
+     *
+     * @return The pending work
+     * @throws InterruptedException If interrupted while waiting
+     */
+    synchronized Batch takeAll() throws InterruptedException {
+        while (pending.isEmpty() && rescanDirectories.isEmpty() && !fullRescan) {
+            wait();
+        }
+        // Shortest paths first, so that directories are handled before anything within them
+        Comparator<File> shortestPathFirst = Comparator.comparingInt((File f) -> f.getPath().length()).thenComparing(File::getPath);
+        SortedMap<File, List<FileAndAction>> actionsPerDirectory = new TreeMap<>(shortestPathFirst);
+        for (FileAndAction fileAndAction : pending.values()) {
+            File file = fileAndAction.file().getAbsoluteFile();
+            File parent = file.getParentFile() != null ? file.getParentFile() : file;
+            actionsPerDirectory.computeIfAbsent(parent, _ -> new ArrayList<>()).add(fileAndAction);
+        }
+        actionsPerDirectory.values().forEach(l -> l.sort(Comparator.comparing(FileAndAction::file, shortestPathFirst)));
+        List<File> sortedRescanDirectories = rescanDirectories.stream().sorted(shortestPathFirst).toList();
+        Batch batch = new Batch(fullRescan, sortedRescanDirectories, actionsPerDirectory, pending.size());
+        pending.clear();
+        rescanDirectories.clear();
+        fullRescan = false;
+        return batch;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    synchronized long getOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Work taken from the queue.
+     *
+     * @param fullRescan          Whether the queue overflowed so much that all root directories should be rescanned
+     * @param rescanDirectories   Directories for which files were not queued due to overflow, and directories deleted and created again,
+     *                            shortest path first
+     * @param actionsPerDirectory Queued files grouped by parent directory, shortest path first
+     * @param size                Number of queued files
+     */
+    record Batch(boolean fullRescan, List<File> rescanDirectories, SortedMap<File, List<FileAndAction>> actionsPerDirectory, int size) {
+    }
+
+}
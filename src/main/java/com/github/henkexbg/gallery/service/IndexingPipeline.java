@@ -0,0 +1,280 @@
+package com.github.henkexbg.gallery.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline of stages, each with a bounded input queue and its own number of worker threads. A stage passes its results on to the next
+ * stage by submitting them there, and blocks while that stage's queue is full, so a slow stage holds back the stages before it rather than
+ * letting work pile up in memory.
+ * <p>
+ * Each stage keeps track of its queue depth and throughput, available via {@link #getStats()}.
+ */
+public class IndexingPipeline {
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    private final List<Stage<?>> stages = new ArrayList<>();
+
+    /**
+     * Notified whenever a stage runs out of work.
+     */
+    private final Object idleMonitor = new Object();
+
+    private volatile boolean running = false;
+
+    /**
+     * Adds a stage. Stages must be added in order, before the pipeline is started.
+     *
+     * @param name          Name, for statistics and thread names
+     * @param parallelism   Number of worker threads
+     * @param queueCapacity Max number of queued items, beyond which submitting blocks
+     * @param batchSize     Max number of items passed to the worker at once
+     * @param maxWaitMillis Max time to wait for more items once there is one, until there are batchSize items. With 0, workers get as many
+     *                      items as are already queued
+     * @param worker        Processes items, and submits results to the next stage
+     * @param <I>           Type of items
+     * @return The stage
+     */
+    public <I> Stage<I> addStage(String name, int parallelism, int queueCapacity, int batchSize, long maxWaitMillis,
+                                 StageWorker<I> worker) {
+        Stage<I> stage = new Stage<>(name, Math.max(1, parallelism), Math.max(1, queueCapacity), Math.max(1, batchSize),
+                Math.max(0, maxWaitMillis), worker);
+        stages.add(stage);
+        return stage;
+    }
+
+    public void start() {
+        running = true;
+        stages.forEach(Stage::start);
+    }
+
+    public void shutdown() {
+        running = false;
+        stages.forEach(Stage::stop);
+    }
+
+    /**
+     * Waits until all submitted items have passed through all stages.
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (idleMonitor) {
+            while (!isIdle()) {
+                idleMonitor.wait(1000);
+            }
+        }
+    }
+
+    /**
+     * Checks whether there are no items in any stage. Stages are checked in order, and an item is always submitted to the next stage before
+     * it is counted as done in the previous one, so an item moving between stages while checking is not missed.
+     *
+     * @return True if idle
+     */
+    public boolean isIdle() {
+        for (Stage<?> stage : stages) {
+            if (stage.pending.get() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<StageStats> getStats() {
+        return stages.stream().map(Stage::getStats).toList();
+    }
+
+    /**
+     * Processes items of a stage.
+     *
+     * @param <I> Type of items
+     */
+    @FunctionalInterface
+    public interface StageWorker<I> {
+
+        /**
+         * Processes items. An exception fails all the given items, so workers processing several items at once should handle errors per
+         * item where possible.
+         *
+         * @param items Items, at least one
+         * @throws Exception If processing fails
+         */
+        void process(List<I> items) throws Exception;
+    }
+
+    /**
+     * One stage of the pipeline.
+     *
+     * @param <I> Type of items
+     */
+    public class Stage<I> {
+
+        private final String name;
+
+        private final int parallelism;
+
+        private final int batchSize;
+
+        private final long maxWaitNanos;
+
+        private final StageWorker<I> worker;
+
+        private final BlockingQueue<I> queue;
+
+        private final List<Thread> threads = new ArrayList<>();
+
+        /**
+         * Items queued or being processed.
+         */
+        private final AtomicLong pending = new AtomicLong();
+
+        private final AtomicLong processed = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        /**
+         * Total time with any items pending, excluding the current busy period, and the start of the current busy period, if any.
+         */
+        private long busyNanos = 0;
+
+        private long busySince = -1;
+
+        private Stage(String name, int parallelism, int queueCapacity, int batchSize, long maxWaitMillis, StageWorker<I> worker) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.batchSize = batchSize;
+            this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            this.worker = worker;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        /**
+         * Submits an item, waiting while the queue is full.
+         *
+         * @param item Item
+         * @throws InterruptedException If interrupted while waiting
+         */
+        public void submit(I item) throws InterruptedException {
+            onPendingChanged(pending.incrementAndGet());
+            try {
+                queue.put(item);
+            } catch (InterruptedException ie) {
+                onPendingChanged(pending.decrementAndGet());
+                throw ie;
+            }
+        }
+
+        private void start() {
+            for (int i = 0; i < parallelism; i++) {
+                threads.add(Thread.ofVirtual().name("indexing-" + name + "-" + i).start(this::work));
+            }
+        }
+
+        private void stop() {
+            threads.forEach(Thread::interrupt);
+            threads.clear();
+        }
+
+        private void work() {
+            List<I> items = new ArrayList<>(batchSize);
+            while (running) {
+                try {
+                    I first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    items.add(first);
+                    fillBatch(items);
+                    try {
+                        worker.process(items);
+                        processed.addAndGet(items.size());
+                    } catch (InterruptedException ie) {
+                        throw ie;
+                    } catch (Exception e) {
+                        LOG.error("Error in indexing stage {} for {}. Ignoring", name, items, e);
+                        failed.addAndGet(items.size());
+                    } finally {
+                        onPendingChanged(pending.addAndGet(-items.size()));
+                        items.clear();
+                    }
+                } catch (InterruptedException ie) {
+                    LOG.debug("Worker of indexing stage {} interrupted", name);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Adds queued items to the batch, waiting for more for at most maxWaitNanos.
+         *
+         * @param items Batch so far
+         * @throws InterruptedException If interrupted while waiting
+         */
+        private void fillBatch(List<I> items) throws InterruptedException {
+            long deadline = System.nanoTime() + maxWaitNanos;
+            queue.drainTo(items, batchSize - items.size());
+            while (items.size() < batchSize) {
+                long remainingNanos = deadline - System.nanoTime();
+                I next = remainingNanos > 0 ? queue.poll(remainingNanos, TimeUnit.NANOSECONDS) : null;
+                if (next == null) {
+                    return;
+                }
+                items.add(next);
+                queue.drainTo(items, batchSize - items.size());
+            }
+        }
+
+        private void onPendingChanged(long newPending) {
+            synchronized (this) {
+                if (newPending > 0 && busySince < 0) {
+                    busySince = System.nanoTime();
+                } else if (newPending == 0 && busySince >= 0) {
+                    busyNanos += System.nanoTime() - busySince;
+                    busySince = -1;
+                }
+            }
+            if (newPending == 0) {
+                synchronized (idleMonitor) {
+                    idleMonitor.notifyAll();
+                }
+            }
+        }
+
+        private StageStats getStats() {
+            long totalBusyNanos;
+            synchronized (this) {
+                totalBusyNanos = busyNanos + (busySince >= 0 ? System.nanoTime() - busySince : 0);
+            }
+            long processedCount = processed.get();
+            double itemsPerSecond = totalBusyNanos > 0 ? processedCount / (totalBusyNanos / 1e9) : 0;
+            return new StageStats(name, parallelism, queue.size() + queue.remainingCapacity(), queue.size(), pending.get(), processedCount,
+                    failed.get(), itemsPerSecond);
+        }
+    }
+
+    /**
+     * Statistics of one stage.
+     *
+     * @param name           Name
+     * @param parallelism    Number of worker threads
+     * @param queueCapacity  Max number of queued items
+     * @param queueDepth     Current number of queued items
+     * @param pending        Current number of queued items and items being processed
+     * @param processed      Number of items processed
+     * @param failed         Number of items that failed
+     * @param itemsPerSecond Throughput while the stage had work. Time without any items pending is not counted
+     */
+    public record StageStats(String name, int parallelism, int queueCapacity, int queueDepth, long pending, long processed, long failed,
+                             double itemsPerSecond) {
+    }
+
+}
@@ -1,11 +1,10 @@
 package com.github.henkexbg.gallery.service;
 
-import com.thebuzzmedia.exiftool.ExifTool;
-import com.thebuzzmedia.exiftool.ExifToolBuilder;
-import com.thebuzzmedia.exiftool.Tag;
-import com.thebuzzmedia.exiftool.core.StandardTag;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -18,17 +17,24 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.format.DateTimeParseException;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
- * Extracts basic metadata from a media file, using exiftool.
+ * Extracts basic metadata from media files, using a pool of exiftool processes kept open between requests. Metadata of many files can be
+ * extracted in one request, which saves the round trip per file.
  */
 @Service("metadataExtractionService")
 public class MetadataExtractionService {
 
     private static final String CREATE_DATE_DATE_FORMAT = "yyyy:MM:dd HH:mm:ss";
 
+    /**
+     * JSON output with numeric values, which gives GPS coordinates as signed decimal degrees, and only the tags used.
+     */
+    private static final List<String> EXIFTOOL_ARGUMENTS = List.of("-j", "-n", "-CreateDate", "-GPSLatitude", "-GPSLongitude");
+
     private final Logger LOG = LoggerFactory.getLogger(getClass());
     private final DateTimeFormatter DATE_TIME_FORMATTER = new DateTimeFormatterBuilder()
             .appendPattern(CREATE_DATE_DATE_FORMAT)
@@ -38,57 +44,133 @@ public class MetadataExtractionService {
     @Value("${gallery.metadata.exiftoolPath}")
     String exiftoolPath;
 
-    ExifTool exifTool;
+    @Value("${gallery.metadata.exiftoolTimeoutMillis:60000}")
+    long exiftoolTimeoutMillis = 60000;
+
+    @Resource
+    ObjectMapper objectMapper;
+
+    private final List<ExifToolProcess> allExifToolProcesses = new ArrayList<>();
+
+    /**
+     * Processes not currently in use.
+     */
+    private BlockingQueue<ExifToolProcess> exifToolProcesses;
 
     @PostConstruct
     public void init() {
-        exifTool = new ExifToolBuilder().withPoolSize(Runtime.getRuntime().availableProcessors()).withPath(exiftoolPath).enableStayOpen()
-                .build();
+        int poolSize = Runtime.getRuntime().availableProcessors();
+        exifToolProcesses = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            allExifToolProcesses.add(new ExifToolProcess(exiftoolPath, objectMapper, exiftoolTimeoutMillis));
+        }
+        exifToolProcesses.addAll(allExifToolProcesses);
     }
 
     public FileMetaData getMetadata(File file) throws IOException {
-        List<Tag> tags = List.of(StandardTag.CREATE_DATE, StandardTag.GPS_LATITUDE, StandardTag.GPS_LONGITUDE);
-        Map<Tag, String> imageMeta = exifTool.getImageMeta(file, tags);
+        FileMetaData fileMetaData = getMetadata(List.of(file)).get(file);
+        if (fileMetaData == null) {
+            throw new IOException("exiftool could not read %s".formatted(file));
+        }
+        return fileMetaData;
+    }
+
+    /**
+     * Extracts metadata of many files in one exiftool request.
+     *
+     * @param files Files
+     * @return Metadata per file. Files that exiftool could not read are left out
+     * @throws IOException If exiftool fails
+     */
+    public Map<File, FileMetaData> getMetadata(List<File> files) throws IOException {
+        List<String> arguments = new ArrayList<>(EXIFTOOL_ARGUMENTS);
+        files.forEach(f -> arguments.add(f.getAbsolutePath()));
+        ExifToolProcess exifToolProcess;
+        try {
+            exifToolProcess = exifToolProcesses.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for exiftool", ie);
+        }
+        JsonNode results;
+        try {
+            results = exifToolProcess.execute(arguments);
+        } finally {
+            exifToolProcesses.add(exifToolProcess);
+        }
+        Map<File, FileMetaData> metadataPerFile = parseResults(files, results);
+        if (metadataPerFile.size() < files.size()) {
+            LOG.warn("exiftool returned metadata for {} of {} files", metadataPerFile.size(), files.size());
+        }
+        return metadataPerFile;
+    }
+
+    /**
+     * Parses the JSON output of exiftool. Each result holds the path of its file as given, though exiftool always uses forward slashes.
+     *
+     * @param files   Files passed to exiftool
+     * @param results JSON output
+     * @return Metadata per file
+     */
+    Map<File, FileMetaData> parseResults(List<File> files, JsonNode results) {
+        Map<String, File> filesPerPath = new HashMap<>();
+        files.forEach(f -> filesPerPath.put(toExifToolPath(f.getAbsolutePath()), f));
+        Map<File, FileMetaData> metadataPerFile = new HashMap<>();
+        for (JsonNode result : results) {
+            String sourceFile = result.path("SourceFile").asText();
+            File file = filesPerPath.get(toExifToolPath(sourceFile));
+            if (file == null) {
+                LOG.warn("Unexpected file {} in exiftool output. Ignoring", sourceFile);
+                continue;
+            }
+            FileMetaData fileMetaData = toFileMetaData(file, getText(result, "CreateDate"), getText(result, "GPSLatitude"),
+                    getText(result, "GPSLongitude"));
+            LOG.debug("Returning file metadata for {}: {}", file, fileMetaData);
+            metadataPerFile.put(file, fileMetaData);
+        }
+        return metadataPerFile;
+    }
+
+    private FileMetaData toFileMetaData(File file, String dateString, String gpsLatString, String gpsLongString) {
         Instant dateTaken = null;
         try {
-            String dateString = imageMeta.get(StandardTag.CREATE_DATE);
             if (dateString != null) {
                 dateTaken = DATE_TIME_FORMATTER.parse(dateString, Instant::from);
             }
         } catch (DateTimeParseException dtpe) {
-            LOG.warn("Could not retrieve {} from image EXIF. Using lastModified on file", file.getCanonicalPath());
+            LOG.warn("Could not retrieve {} from image EXIF. Using lastModified on file", file);
         }
 
         Double gpsLatitude = null, gpsLongitude = null;
         try {
-            String gpsLatString = imageMeta.get(StandardTag.GPS_LATITUDE);
             if (gpsLatString != null) {
                 gpsLatitude = Double.parseDouble(gpsLatString);
             }
-            String gpsLongString = imageMeta.get(StandardTag.GPS_LONGITUDE);
             if (gpsLongString != null) {
                 gpsLongitude = Double.parseDouble(gpsLongString);
             }
         } catch (NumberFormatException nfe) {
-            LOG.warn("Invalid GPS coordinates for {}", file.getCanonicalPath());
+            LOG.warn("Invalid GPS coordinates for {}", file);
         }
         if (gpsLatitude == null || gpsLongitude == null) {
             gpsLatitude = null;
             gpsLongitude = null;
         }
+        return new FileMetaData(dateTaken, gpsLatitude, gpsLongitude);
+    }
 
-        FileMetaData fileMetaData = new FileMetaData(dateTaken, gpsLatitude, gpsLongitude);
-        LOG.debug("Returning file metadata for {}: {}", file.getCanonicalPath(), fileMetaData);
-        return fileMetaData;
+    private static String getText(JsonNode result, String tagName) {
+        JsonNode value = result.get(tagName);
+        return value != null && !value.isNull() ? value.asText() : null;
+    }
+
+    private static String toExifToolPath(String path) {
+        return path.replace('\\', '/');
     }
 
     @PreDestroy
     public void onClose() {
-        try {
-            exifTool.close();
-        } catch (Exception e) {
-            // Intentionally empty
-        }
+        allExifToolProcesses.forEach(ExifToolProcess::close);
     }
 
     public record FileMetaData(Instant dateTaken, Double gpsLatitude, Double gpsLongitude) {
@@ -0,0 +1,216 @@
+package com.github.henkexbg.gallery.service;
+
+import com.github.henkexbg.gallery.bean.SearchResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of search results, keyed by the root paths of the user and the query. Since public paths in the result depend on the
+ * root paths of the user, users with the same root paths share entries.
+ * <p>
+ * Invalidation is based on versions per directory rather than expiry. Whenever a file or directory is written or deleted, the versions of
+ * all its ancestor directories are bumped. A cached result remembers the versions of its base directories at the time the search started,
+ * and is only returned while they are unchanged. A change in one album therefore only invalidates results for the album and the directories
+ * above it.
+ */
+@Component
+public class SearchResultCache {
+
+    /**
+     * Max number of directories for which versions are tracked. Beyond that, the cache is cleared and tracking starts over.
+     */
+    static final int MAX_TRACKED_DIRECTORIES = 100_000;
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    @Value("${gallery.searchCache.maxEntries:500}")
+    private int maxEntries = 500;
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<Long, Long> directoryVersions = new ConcurrentHashMap<>();
+
+    private final AtomicLong versionCounter = new AtomicLong();
+
+    /**
+     * Version of directories without a tracked version. Set to a new version when the cache is cleared, so that versions read before that
+     * cannot match again.
+     */
+    private volatile long untrackedVersion = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong invalidated = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private long cachedItems = 0;
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Returns the cached result for the key, if there is one and all its base directories are unchanged.
+     *
+     * @param key Key
+     * @return The cached result, or null
+     */
+    public SearchResult get(Key key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (!isCurrent(entry)) {
+                removeEntry(key);
+                invalidated.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.result();
+        }
+    }
+
+    /**
+     * Gets the current versions of the given directories. Must be called before the search is performed, so that any write happening during
+     * the search invalidates the result.
+     *
+     * @param directoryIds Directory IDs
+     * @return The current versions, in the same order
+     */
+    public long[] getVersions(long[] directoryIds) {
+        long[] versions = new long[directoryIds.length];
+        for (int i = 0; i < directoryIds.length; i++) {
+            versions[i] = directoryVersions.getOrDefault(directoryIds[i], untrackedVersion);
+        }
+        return versions;
+    }
+
+    /**
+     * Caches a result.
+     *
+     * @param key          Key
+     * @param result       Result
+     * @param baseIds      IDs of the base directories of the search
+     * @param baseVersions Versions of the base directories, as returned by {@link #getVersions(long[])} before the search
+     */
+    public void put(Key key, SearchResult result, long[] baseIds, long[] baseVersions) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            removeEntry(key);
+            Entry entry = new Entry(result, baseIds, baseVersions);
+            entries.put(key, entry);
+            cachedItems += entry.size();
+            while (entries.size() > maxEntries) {
+                removeEntry(entries.keySet().iterator().next());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Marks the given directories as changed, invalidating all cached results having any of them as base.
+     *
+     * @param directoryIds IDs of changed directories
+     */
+    public void invalidate(Collection<Long> directoryIds) {
+        if (!isEnabled() || directoryIds.isEmpty()) {
+            return;
+        }
+        if (directoryVersions.size() + directoryIds.size() > MAX_TRACKED_DIRECTORIES) {
+            LOG.debug("Tracking versions of more than {} directories. Clearing search cache", MAX_TRACKED_DIRECTORIES);
+            clear();
+        }
+        for (Long directoryId : directoryIds) {
+            directoryVersions.put(directoryId, versionCounter.incrementAndGet());
+        }
+    }
+
+    /**
+     * Removes all cached results, for example when the root directories have changed.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            cachedItems = 0;
+            untrackedVersion = versionCounter.incrementAndGet();
+            directoryVersions.clear();
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (entries) {
+            return new Stats(hits.get(), misses.get(), invalidated.get(), evictions.get(), entries.size(), maxEntries, cachedItems,
+                    directoryVersions.size());
+        }
+    }
+
+    private boolean isCurrent(Entry entry) {
+        long[] currentVersions = getVersions(entry.baseIds());
+        for (int i = 0; i < currentVersions.length; i++) {
+            if (currentVersions[i] != entry.baseVersions()[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void removeEntry(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            cachedItems -= removed.size();
+        }
+    }
+
+    /**
+     * Cache key.
+     *
+     * @param canonicalRootPaths Root paths of the user, as returned by
+     *                           {@link GalleryAuthorizationService#getCanonicalRootPathsForCurrentUser()}
+     * @param query              Query
+     */
+    public record Key(Map<String, String> canonicalRootPaths, GallerySearchService.SearchQuery query) {
+    }
+
+    private record Entry(SearchResult result, long[] baseIds, long[] baseVersions) {
+
+        int size() {
+            return result.directories().size() + result.files().size();
+        }
+    }
+
+    /**
+     * Cache statistics.
+     *
+     * @param hits                Number of lookups returning a cached result
+     * @param misses              Number of lookups not returning a cached result
+     * @param invalidated         Number of entries found to be outdated on lookup
+     * @param evictions           Number of entries evicted because the cache was full
+     * @param entries             Current number of entries
+     * @param maxEntries          Max number of entries
+     * @param cachedItems         Total number of directories and files in all cached results. An approximation of memory usage
+     * @param trackedDirectories  Number of directories with a tracked version
+     */
+    public record Stats(long hits, long misses, long invalidated, long evictions, int entries, int maxEntries, long cachedItems,
+                        int trackedDirectories) {
+    }
+
+}
@@ -0,0 +1,575 @@
+package com.github.henkexbg.gallery.service;
+
+import com.github.henkexbg.gallery.bean.GalleryRootDir;
+import com.github.henkexbg.gallery.bean.TagSuggestion;
+import com.github.henkexbg.gallery.job.listener.GalleryRootDirChangeListener;
+import com.github.henkexbg.gallery.util.GalleryFileUtils;
+import jakarta.annotation.Resource;
+import org.jdbi.v3.core.Jdbi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index of the tag table, from normalized tag text to the IDs of all files and directories having that tag. Searching
+ * for terms is then a lookup in memory, and the database only needs to be queried for the final rows, constrained by the resulting IDs.
+ * <p>
+ * Each posting list is a sorted array of IDs. Since IDs are generated in increasing order, indexing normally only appends to the end of the
+ * lists. The index is rebuilt from the database whenever the root directories are loaded, which happens at startup, and kept up to date by
+ * {@link GallerySearchService} whenever tags are written or files are deleted.
+ * <p>
+ * The sorted terms also serve as a dictionary for suggestions. Each file is assigned the closest root directory (of any role) it resides
+ * in, its scope, and each term counts its files per scope. Since the root directories of a user are themselves scopes, the files of a term
+ * visible to a user are exactly those counted for the scopes within the root directories of the user.
+ * <p>
+ * For substring and typo-tolerant searches, the distinct terms are also indexed by their trigrams. Candidate terms are found by counting
+ * the trigrams they share with a search term, and the resulting terms are then expanded to files via their posting lists.
+ * <p>
+ * Searches are restricted to the scopes of the searched directories in the same way, so files of other users are never copied. The number
+ * of matching files within those scopes is known from the counts per scope before any ID is copied. If there are more than the caller can
+ * use, only the matching terms are returned, and the caller has to look up the files in the database instead.
+ */
+@Component
+@DependsOn("dbTableSetup")
+public class TagIndex implements GalleryRootDirChangeListener {
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Normalized term to posting list. Sorted to support prefix lookups.
+     */
+    private final NavigableMap<String, PostingList> postings = new TreeMap<>();
+
+    /**
+     * Min trigram similarity for a term to match a search term in fuzzy searches. Same default as the PostgreSQL pg_trgm module.
+     */
+    static final double SIMILARITY_THRESHOLD = 0.3;
+
+    /**
+     * Max number of terms, the most similar first, that one search term expands to in fuzzy searches.
+     */
+    static final int MAX_FUZZY_TERMS_PER_SEARCH_TERM = 100;
+
+    /**
+     * Trigram to all normalized terms containing it. Only holds terms having a posting list.
+     */
+    private final Map<String, Set<String>> termsPerTrigram = new HashMap<>();
+
+    /**
+     * File ID to the scope and all normalized terms of that file. Used for removing a file from all its posting lists.
+     */
+    private final Map<Long, FileTerms> termsPerFile = new HashMap<>();
+
+    /**
+     * Canonical paths of all root directories in the system, longest first, so that the first one containing a file is its scope.
+     */
+    private volatile List<String> scopePaths = List.of();
+
+    @Resource
+    Jdbi jdbi;
+
+    /**
+     * Rebuilds the index if the root directories have changed, as that changes the scopes of the files.
+     */
+    @Override
+    public void onGalleryRootDirsUpdated(Collection<GalleryRootDir> rootDirs) {
+        List<String> newScopePaths = rootDirs.stream().map(rd -> GalleryFileUtils.getPathName(rd.getDir())).distinct()
+                .sorted(Comparator.comparingInt(String::length).reversed()).toList();
+        if (newScopePaths.equals(scopePaths)) {
+            return;
+        }
+        scopePaths = newScopePaths;
+        rebuild();
+    }
+
+    public void rebuild() {
+        long startTime = System.currentTimeMillis();
+        final String allTagsQuery = """
+                SELECT t.file_id, t.text, f.path_on_disk FROM tag t
+                JOIN gallery_file f ON f.id = t.file_id
+                ORDER BY t.file_id
+                """;
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            termsPerTrigram.clear();
+            termsPerFile.clear();
+            jdbi.useHandle(handle -> handle.createQuery(allTagsQuery)
+                    .map((rs, _) -> new TagRow(rs.getLong("file_id"), rs.getString("path_on_disk"), rs.getString("text")))
+                    .forEach(r -> addTerm(r.fileId(), r.pathOnDisk(), r.text())));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Built tag index with {} terms for {} files in {}ms", postings.size(), termsPerFile.size(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Normalizes a term or tag text.
+     *
+     * @param text Text
+     * @return The normalized term
+     */
+    public static String normalize(String text) {
+        return text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Replaces all terms of a file.
+     *
+     * @param fileId     File ID
+     * @param pathOnDisk Canonical path of the file, determining its scope
+     * @param allTexts   All tag texts of the file, across all sources
+     */
+    public void setTerms(long fileId, String pathOnDisk, Collection<String> allTexts) {
+        Map<String, String> newTexts = new HashMap<>();
+        allTexts.forEach(t -> newTexts.putIfAbsent(normalize(t), t.trim()));
+        lock.writeLock().lock();
+        try {
+            String scope = findScope(pathOnDisk);
+            FileTerms oldFileTerms = termsPerFile.get(fileId);
+            Set<String> oldTerms = oldFileTerms != null ? oldFileTerms.terms() : Collections.emptySet();
+            boolean sameScope = oldFileTerms != null && Objects.equals(oldFileTerms.scope(), scope);
+            for (String oldTerm : oldTerms) {
+                if (!sameScope || !newTexts.containsKey(oldTerm)) {
+                    removeFromPostingList(oldTerm, fileId, oldFileTerms.scope());
+                }
+            }
+            for (Map.Entry<String, String> newText : newTexts.entrySet()) {
+                if (!sameScope || !oldTerms.contains(newText.getKey())) {
+                    getOrCreatePostingList(newText.getKey(), newText.getValue()).add(fileId, scope);
+                }
+            }
+            if (newTexts.isEmpty()) {
+                termsPerFile.remove(fileId);
+            } else {
+                termsPerFile.put(fileId, new FileTerms(scope, new HashSet<>(newTexts.keySet())));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes files from the index.
+     *
+     * @param fileIds IDs of removed files
+     */
+    public void removeFiles(Collection<Long> fileIds) {
+        lock.writeLock().lock();
+        try {
+            for (Long fileId : fileIds) {
+                FileTerms fileTerms = termsPerFile.remove(fileId);
+                if (fileTerms != null) {
+                    fileTerms.terms().forEach(t -> removeFromPostingList(t, fileId, fileTerms.scope()));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes everything from the index.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            termsPerTrigram.clear();
+            termsPerFile.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the files with a tag starting with any of the given terms, within the scopes of the given directories.
+     *
+     * @param terms              Terms. Matched as prefixes, case-insensitively
+     * @param canonicalBasePaths Canonical paths of the searched directories
+     * @param maxFileIds         Max number of file IDs to return
+     * @return The matching terms and files
+     */
+    public TermMatch findByPrefixes(Collection<String> terms, Collection<String> canonicalBasePaths, int maxFileIds) {
+        Set<String> scopes = findScopesOf(canonicalBasePaths);
+        lock.readLock().lock();
+        try {
+            Set<String> matchingTerms = new TreeSet<>();
+            for (String term : terms) {
+                String prefix = normalize(term);
+                matchingTerms.addAll(postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+            }
+            return createTermMatch(matchingTerms, scopes, maxFileIds);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the files with a tag starting with, containing, or being similar to any of the given terms, within the scopes of the given
+     * directories. Similarity is measured as the number of shared trigrams relative to the total number of distinct trigrams of both terms,
+     * which tolerates typos.
+     *
+     * @param terms              Terms, matched case-insensitively
+     * @param canonicalBasePaths Canonical paths of the searched directories
+     * @param maxFileIds         Max number of file IDs to return
+     * @return The matching terms and files
+     */
+    public TermMatch findByFuzzyTerms(Collection<String> terms, Collection<String> canonicalBasePaths, int maxFileIds) {
+        Set<String> scopes = findScopesOf(canonicalBasePaths);
+        lock.readLock().lock();
+        try {
+            Set<String> matchingTerms = new TreeSet<>();
+            for (String term : terms) {
+                String prefix = normalize(term);
+                matchingTerms.addAll(postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+                matchingTerms.addAll(findSimilarTerms(prefix));
+            }
+            return createTermMatch(matchingTerms, scopes, maxFileIds);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the scopes that files within the given directories can have: the scopes within any of the directories, and the closest scope
+     * containing each directory.
+     *
+     * @param canonicalPaths Canonical directory paths
+     * @return Scopes
+     */
+    private Set<String> findScopesOf(Collection<String> canonicalPaths) {
+        Set<String> scopes = new HashSet<>();
+        for (String scopePath : scopePaths) {
+            if (canonicalPaths.stream().anyMatch(path -> GalleryFileUtils.isSameOrChildPath(path, scopePath))) {
+                scopes.add(scopePath);
+            }
+        }
+        for (String path : canonicalPaths) {
+            String scope = findScope(path);
+            if (scope != null) {
+                scopes.add(scope);
+            }
+        }
+        return scopes;
+    }
+
+    /**
+     * Collects the files of the given terms within the given scopes. Must be called holding the read lock.
+     *
+     * @param terms      Normalized terms having a posting list
+     * @param scopes     Scopes
+     * @param maxFileIds Max number of file IDs. If more files match, only the terms are returned
+     * @return The terms having files within the scopes, and the IDs of those files if there are not too many
+     */
+    private TermMatch createTermMatch(Set<String> terms, Set<String> scopes, int maxFileIds) {
+        List<String> matchingTerms = new ArrayList<>();
+        List<PostingList> matchingLists = new ArrayList<>();
+        // Counted before copying anything. Files having several of the terms are counted once per term
+        long fileCount = 0;
+        for (String term : terms) {
+            PostingList postingList = postings.get(term);
+            int count = postingList.countInScopes(scopes);
+            if (count > 0) {
+                matchingTerms.add(term);
+                matchingLists.add(postingList);
+                fileCount += count;
+            }
+        }
+        if (fileCount > maxFileIds) {
+            return new TermMatch(matchingTerms, null);
+        }
+        return new TermMatch(matchingTerms, mergePostingLists(matchingLists, scopes, (int) fileCount));
+    }
+
+    /**
+     * Finds the terms containing, or being similar to, a search term, by counting the trigrams each term shares with it.
+     *
+     * @param searchTerm Normalized search term
+     * @return The most similar terms, at most {@link #MAX_FUZZY_TERMS_PER_SEARCH_TERM}
+     */
+    private List<String> findSimilarTerms(String searchTerm) {
+        Set<String> searchTrigrams = trigrams(searchTerm);
+        // Trigrams not touching the padding. A term containing the search term contains all of them
+        long innerTrigramCount = searchTrigrams.stream().filter(t -> t.indexOf(' ') < 0).count();
+        Map<String, Integer> sharedCountPerTerm = new HashMap<>();
+        for (String trigram : searchTrigrams) {
+            Set<String> termsWithTrigram = termsPerTrigram.get(trigram);
+            if (termsWithTrigram != null) {
+                termsWithTrigram.forEach(t -> sharedCountPerTerm.merge(t, 1, Integer::sum));
+            }
+        }
+        List<Map.Entry<String, Double>> similarTerms = new ArrayList<>();
+        for (Map.Entry<String, Integer> sharedCount : sharedCountPerTerm.entrySet()) {
+            String term = sharedCount.getKey();
+            int shared = sharedCount.getValue();
+            double similarity = (double) shared / (searchTrigrams.size() + postings.get(term).trigramCount - shared);
+            if (similarity >= SIMILARITY_THRESHOLD) {
+                similarTerms.add(Map.entry(term, similarity));
+            } else if (innerTrigramCount > 0 && shared >= innerTrigramCount && term.contains(searchTerm)) {
+                // Substring match. Ranked after similar terms, the more of the term that matches the better
+                similarTerms.add(Map.entry(term, (double) searchTerm.length() / term.length() - 1));
+            }
+        }
+        return similarTerms.stream().sorted(Map.Entry.<String, Double>comparingByValue().reversed()).limit(MAX_FUZZY_TERMS_PER_SEARCH_TERM)
+                .map(Map.Entry::getKey).toList();
+    }
+
+    /**
+     * Gets the trigrams of a term. As in pg_trgm, the term is padded with two spaces before and one after, so that the start and end of a
+     * term weigh more than its middle.
+     *
+     * @param term Normalized term
+     * @return Distinct trigrams
+     */
+    static Set<String> trigrams(String term) {
+        String padded = "  " + term + " ";
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * Merges the IDs of posting lists, keeping only those of files within the given scopes. Lists having all their files within the scopes
+     * are copied as they are, others are filtered on the scope of each file.
+     *
+     * @param postingLists Posting lists
+     * @param scopes       Scopes
+     * @param totalSize    Number of IDs of the lists within the scopes
+     * @return Sorted, distinct IDs
+     */
+    private long[] mergePostingLists(List<PostingList> postingLists, Set<String> scopes, int totalSize) {
+        long[] result = new long[totalSize];
+        int position = 0;
+        for (PostingList postingList : postingLists) {
+            if (postingList.countInScopes(scopes) == postingList.size) {
+                System.arraycopy(postingList.ids, 0, result, position, postingList.size);
+                position += postingList.size;
+                continue;
+            }
+            for (int i = 0; i < postingList.size; i++) {
+                FileTerms fileTerms = termsPerFile.get(postingList.ids[i]);
+                if (fileTerms != null && scopes.contains(fileTerms.scope())) {
+                    result[position++] = postingList.ids[i];
+                }
+            }
+        }
+        if (postingLists.size() == 1) {
+            return result;
+        }
+        return distinctSorted(result);
+    }
+
+    /**
+     * Suggests completions of a prefix, restricted to the files within the given root directories. Only terms from the index are consulted,
+     * no database access is needed.
+     *
+     * @param prefix             Prefix, matched case-insensitively
+     * @param canonicalRootPaths Canonical paths of the root directories of the user
+     * @param limit              Max number of suggestions
+     * @return The terms having the most files within the root directories, most files first. Ties are sorted by term
+     */
+    public List<TagSuggestion> suggest(String prefix, Collection<String> canonicalRootPaths, int limit) {
+        String normalizedPrefix = normalize(prefix);
+        Set<String> visibleScopes = new HashSet<>();
+        for (String scopePath : scopePaths) {
+            if (canonicalRootPaths.stream().anyMatch(rootPath -> GalleryFileUtils.isSameOrChildPath(rootPath, scopePath))) {
+                visibleScopes.add(scopePath);
+            }
+        }
+        if (visibleScopes.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        Comparator<TagSuggestion> bestFirst =
+                Comparator.comparingInt(TagSuggestion::count).reversed().thenComparing(TagSuggestion::text, String.CASE_INSENSITIVE_ORDER);
+        // Head is the worst of the best suggestions found so far
+        PriorityQueue<TagSuggestion> best = new PriorityQueue<>(limit + 1, bestFirst.reversed());
+        lock.readLock().lock();
+        try {
+            String prefixEnd = normalizedPrefix + Character.MAX_VALUE;
+            for (PostingList postingList : postings.subMap(normalizedPrefix, true, prefixEnd, false).values()) {
+                int count = postingList.countInScopes(visibleScopes);
+                if (count > 0 && (best.size() < limit || count > best.peek().count())) {
+                    best.add(new TagSuggestion(postingList.text, count));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<TagSuggestion> result = new ArrayList<>(best);
+        result.sort(bestFirst);
+        return result;
+    }
+
+    private String findScope(String pathOnDisk) {
+        for (String scopePath : scopePaths) {
+            if (GalleryFileUtils.isSameOrChildPath(scopePath, pathOnDisk)) {
+                return scopePath;
+            }
+        }
+        return null;
+    }
+
+    private void addTerm(long fileId, String pathOnDisk, String text) {
+        String term = normalize(text);
+        FileTerms fileTerms = termsPerFile.computeIfAbsent(fileId, _ -> new FileTerms(findScope(pathOnDisk), new HashSet<>()));
+        if (fileTerms.terms().add(term)) {
+            getOrCreatePostingList(term, text.trim()).add(fileId, fileTerms.scope());
+        }
+    }
+
+    private PostingList getOrCreatePostingList(String term, String text) {
+        PostingList postingList = postings.get(term);
+        if (postingList == null) {
+            Set<String> trigrams = trigrams(term);
+            postingList = new PostingList(text, trigrams.size());
+            postings.put(term, postingList);
+            for (String trigram : trigrams) {
+                termsPerTrigram.computeIfAbsent(trigram, _ -> new HashSet<>()).add(term);
+            }
+        }
+        return postingList;
+    }
+
+    private void removeFromPostingList(String term, long fileId, String scope) {
+        PostingList postingList = postings.get(term);
+        if (postingList != null) {
+            postingList.remove(fileId, scope);
+            if (postingList.size == 0) {
+                postings.remove(term);
+                for (String trigram : trigrams(term)) {
+                    Set<String> termsWithTrigram = termsPerTrigram.get(trigram);
+                    if (termsWithTrigram != null && termsWithTrigram.remove(term) && termsWithTrigram.isEmpty()) {
+                        termsPerTrigram.remove(trigram);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long[] distinctSorted(long[] ids) {
+        if (ids.length == 0) {
+            return ids;
+        }
+        Arrays.sort(ids);
+        int distinctCount = 1;
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] != ids[distinctCount - 1]) {
+                ids[distinctCount++] = ids[i];
+            }
+        }
+        return distinctCount == ids.length ? ids : Arrays.copyOf(ids, distinctCount);
+    }
+
+    private record TagRow(long fileId, String pathOnDisk, String text) {
+    }
+
+    /**
+     * Terms and files matching a search.
+     *
+     * @param terms   Normalized terms matching the search, having files within the searched scopes
+     * @param fileIds Sorted, distinct IDs of the files within the searched scopes having any of the terms. Null if there were too many
+     */
+    public record TermMatch(List<String> terms, long[] fileIds) {
+    }
+
+    /**
+     * Scope and normalized terms of one file.
+     *
+     * @param scope Canonical path of the closest root directory containing the file, or null if it is not within any
+     * @param terms Normalized terms
+     */
+    private record FileTerms(String scope, Set<String> terms) {
+    }
+
+    /**
+     * Growable, sorted array of distinct IDs, along with the number of IDs per scope.
+     */
+    static class PostingList {
+
+        /**
+         * The term as it was first written, for display in suggestions.
+         */
+        final String text;
+
+        /**
+         * Number of distinct trigrams of the term.
+         */
+        final int trigramCount;
+
+        long[] ids = new long[4];
+
+        int size = 0;
+
+        final Map<String, Integer> countPerScope = new HashMap<>(4);
+
+        PostingList(String text, int trigramCount) {
+            this.text = text;
+            this.trigramCount = trigramCount;
+        }
+
+        void add(long id, String scope) {
+            if (size == 0 || id > ids[size - 1]) {
+                ensureCapacity();
+                ids[size++] = id;
+                incrementScope(scope, 1);
+                return;
+            }
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                return;
+            }
+            int insertionPoint = -index - 1;
+            ensureCapacity();
+            System.arraycopy(ids, insertionPoint, ids, insertionPoint + 1, size - insertionPoint);
+            ids[insertionPoint] = id;
+            size++;
+            incrementScope(scope, 1);
+        }
+
+        void remove(long id, String scope) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                size--;
+                incrementScope(scope, -1);
+            }
+        }
+
+        int countInScopes(Set<String> scopes) {
+            int count = 0;
+            for (Map.Entry<String, Integer> scopeCount : countPerScope.entrySet()) {
+                if (scopes.contains(scopeCount.getKey())) {
+                    count += scopeCount.getValue();
+                }
+            }
+            return count;
+        }
+
+        private void incrementScope(String scope, int delta) {
+            if (scope != null) {
+                countPerScope.merge(scope, delta, (a, b) -> a + b == 0 ? null : a + b);
+            }
+        }
+
+        private void ensureCapacity() {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+        }
+    }
+
+}
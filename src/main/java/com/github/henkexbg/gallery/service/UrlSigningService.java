@@ -0,0 +1,126 @@
+package com.github.henkexbg.gallery.service;
+
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Creates and verifies signed, time-limited media URLs. A signed URL grants access to one resource until it expires, without the request
+ * being authenticated. This means that verifying it is only a hash calculation, with no user lookup or path resolution.
+ * <p>
+ * The signature is an HMAC-SHA256 over the resource key and the expiry time. Expiry times are rounded up to whole validity periods, so that
+ * the same resource gets the same URL for a while, and thereby can be cached by browsers and shared caches. A URL is valid for at least
+ * {@code gallery.signedUrls.validitySeconds} and at most twice that.
+ * <p>
+ * If no secret is configured a random one is generated, in which case all signed URLs become invalid when the application restarts.
+ *
+ * @author Henrik Bjerne
+ */
+@Service
+public class UrlSigningService {
+
+    public static final String EXPIRES_PARAMETER = "expires";
+
+    public static final String SIGNATURE_PARAMETER = "signature";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final int GENERATED_SECRET_LENGTH = 32;
+
+    private final Logger LOG = LoggerFactory.getLogger(getClass());
+
+    @Value("${gallery.signedUrls.enabled:false}")
+    private boolean enabled = false;
+
+    @Value("${gallery.signedUrls.secret:}")
+    private String secret;
+
+    @Value("${gallery.signedUrls.validitySeconds:86400}")
+    private long validitySeconds = 86400;
+
+    private SecretKeySpec secretKey;
+
+    @PostConstruct
+    public void init() {
+        if (validitySeconds <= 0) {
+            throw new IllegalArgumentException("gallery.signedUrls.validitySeconds must be positive");
+        }
+        byte[] keyBytes;
+        if (StringUtils.isNotBlank(secret)) {
+            keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        } else {
+            keyBytes = new byte[GENERATED_SECRET_LENGTH];
+            new SecureRandom().nextBytes(keyBytes);
+            if (enabled) {
+                LOG.info("No secret configured for signed URLs. Using a generated one, valid until the application is restarted");
+            }
+        }
+        secretKey = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Creates the query string that signs the given resource key.
+     *
+     * @param resourceKey Key uniquely identifying the resource, for example the type of endpoint and the file ID
+     * @return A query string, without leading '?', containing the expiry time and signature parameters
+     */
+    public String createSignedQuery(String resourceKey) {
+        long nowSeconds = System.currentTimeMillis() / 1000;
+        long expires = (nowSeconds / validitySeconds + 2) * validitySeconds;
+        return EXPIRES_PARAMETER + "=" + expires + "&" + SIGNATURE_PARAMETER + "=" + sign(resourceKey, expires);
+    }
+
+    /**
+     * Verifies a signature in constant time.
+     *
+     * @param resourceKey Key of the requested resource
+     * @param expires     Expiry time in epoch seconds, as given in the request
+     * @param signature   Signature, as given in the request
+     * @return True if signing is enabled, the signature is valid for the resource and expiry time, and the expiry time has not passed
+     */
+    public boolean isValid(String resourceKey, long expires, String signature) {
+        if (!enabled || signature == null || expires < System.currentTimeMillis() / 1000) {
+            return false;
+        }
+        byte[] expected = sign(resourceKey, expires).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Calculates the number of seconds until the given expiry time.
+     *
+     * @param expires Expiry time in epoch seconds
+     * @return Remaining seconds, never negative
+     */
+    public long getRemainingSeconds(long expires) {
+        return Math.max(0, expires - System.currentTimeMillis() / 1000);
+    }
+
+    private String sign(String resourceKey, long expires) {
+        try {
+            // Mac instances are not thread safe, and creating one is cheap compared to the request itself
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secretKey);
+            byte[] signature = mac.doFinal((resourceKey + ":" + expires).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign " + resourceKey, e);
+        }
+    }
+
+}
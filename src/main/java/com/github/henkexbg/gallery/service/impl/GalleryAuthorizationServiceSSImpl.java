@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serial;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import com.github.henkexbg.gallery.bean.UserInfo;
@@ -34,6 +35,7 @@ import com.github.henkexbg.gallery.bean.GalleryRootDir;
 import com.github.henkexbg.gallery.service.GalleryAuthorizationService;
 import com.github.henkexbg.gallery.job.listener.GalleryRootDirChangeListener;
 import com.github.henkexbg.gallery.service.exception.NotAllowedException;
+import com.github.henkexbg.gallery.util.GalleryFileUtils;
 import org.springframework.stereotype.Component;
 
 /**
@@ -47,13 +49,28 @@ import org.springframework.stereotype.Component;
 @Component("galleryAuthorizationService")
 public class GalleryAuthorizationServiceSSImpl implements GalleryAuthorizationService, GalleryRootDirChangeListener {
 
+    /**
+     * Max number of distinct authority collections for which the resolved root paths are cached. In practice there is one per user.
+     */
+    static final int MAX_CACHED_USER_ROOTS = 1000;
+
     private final Logger LOG = LoggerFactory.getLogger(getClass());
 
     /**
      * Contains a map where each key is a role, and each value is a map where the key is the root path name and the value is the File of
      * that root path
      */
-    Map<String, Map<String, File>> rootPathsPerRoleMap = new HashMap<>();
+    volatile Map<String, Map<String, File>> rootPathsPerRoleMap = new HashMap<>();
+
+    /**
+     * Canonical path of each root directory, resolved once when the root directories are updated.
+     */
+    volatile Map<File, String> canonicalPathPerRootDir = new HashMap<>();
+
+    /**
+     * Resolved root paths per distinct authority collection. Cleared whenever the root directories are updated.
+     */
+    private final Map<Collection<? extends GrantedAuthority>, UserRoots> userRootsCache = new ConcurrentHashMap<>();
 
     @Override
     public File getRealFileOrDir(String publicPath) throws NotAllowedException {
@@ -69,18 +86,8 @@ public class GalleryAuthorizationServiceSSImpl implements GalleryAuthorizationSe
                 : publicPath.substring(0, relativePathStartIndex);
         LOG.debug("baseDirCode: {}", baseDirCode);
 
-        Collection<String> currentUserRoles = getCurrentUserRoles();
-
-        File baseDir = null;
-        for (String oneRole : currentUserRoles) {
-            Map<String, File> rootPathsOneRoleMap = rootPathsPerRoleMap.get(oneRole);
-            if (rootPathsOneRoleMap != null) {
-                baseDir = rootPathsOneRoleMap.get(baseDirCode);
-            }
-            if (baseDir != null) {
-                break;
-            }
-        }
+        UserRoots userRoots = getCurrentUserRoots();
+        File baseDir = userRoots.rootPaths().get(baseDirCode);
         if (baseDir == null) {
             String errorMessage = String.format("Could not find basedir for base dir code %s", baseDirCode);
             LOG.error(errorMessage);
@@ -91,7 +98,7 @@ public class GalleryAuthorizationServiceSSImpl implements GalleryAuthorizationSe
             String relativePath = publicPath.substring(relativePathStartIndex);
             LOG.debug("Relative path: {}", relativePath);
             file = new File(baseDir, relativePath);
-            if (!isCanonicalChild(baseDir, file)) {
+            if (!isCanonicalChild(userRoots.canonicalRootPaths().get(baseDirCode), file)) {
                 throw new NotAllowedException("File " + file + " not allowed!");
             }
 
@@ -103,7 +110,8 @@ public class GalleryAuthorizationServiceSSImpl implements GalleryAuthorizationSe
     }
 
     /**
-     * Internally converts the root dirs to a more efficient lookup structure and stores it in {@link #rootPathsPerRoleMap}
+     * Internally converts the root dirs to a more efficient lookup structure and stores it in {@link #rootPathsPerRoleMap}. The canonical
+     * paths of the root dirs are resolved here once, and any root paths already resolved per user are dropped.
      */
     @Override
     public void onGalleryRootDirsUpdated(Collection<GalleryRootDir> galleryRootDirs) {
@@ -113,21 +121,23 @@ public class GalleryAuthorizationServiceSSImpl implements GalleryAuthorizationSe
         for (String oneRole : allRoles) {
             Map<String, File> rootPathsForRoles = galleryRootDirs.stream().filter(rd -> oneRole.equals(rd.getRole()))
                     .collect(Collectors.toMap(GalleryRootDir::getName, GalleryRootDir::getDir, (dir1, _) -> dir1));
-            rootPathsPerRoleMap.put(oneRole, rootPathsForRoles);
+            rootPathsPerRoleMap.put(oneRole, Collections.unmodifiableMap(rootPathsForRoles));
         }
+        Map<File, String> canonicalPathPerRootDir = new HashMap<>();
+        galleryRootDirs.forEach(rd -> canonicalPathPerRootDir.put(rd.getDir(), resolveCanonicalPath(rd.getDir())));
+        this.canonicalPathPerRootDir = canonicalPathPerRootDir;
         this.rootPathsPerRoleMap = rootPathsPerRoleMap;
+        userRootsCache.clear();
     }
 
     @Override
     public Map<String, File> getRootPathsForCurrentUser() {
-        Collection<String> currentUserRoles = getCurrentUserRoles();
-        Map<String, File> rootPathsForCurrentUser = new HashMap<>();
-        rootPathsPerRoleMap.forEach((role, rps) -> {
-            if (currentUserRoles.contains(role)) {
-                rootPathsForCurrentUser.putAll(rps);
-            }
-        });
-        return rootPathsForCurrentUser;
+        return getCurrentUserRoots().rootPaths();
+    }
+
+    @Override
+    public Map<String, String> getCanonicalRootPathsForCurrentUser() {
+        return getCurrentUserRoots().canonicalRootPaths();
     }
 
     @Override
@@ -141,33 +151,81 @@ public class GalleryAuthorizationServiceSSImpl implements GalleryAuthorizationSe
 
     @Override
     public boolean isAdmin() {
-        return getCurrentUserRoles().contains("ROLE_ADMIN");
+        return getCurrentUserRoots().admin();
     }
 
     @Override
     public UserInfo getCurrentUserInfo() {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        return new UserInfo(authentication.getName(), new ArrayList<>(getCurrentUserRoles()));
+        return new UserInfo(authentication.getName(), new ArrayList<>(getCurrentUserRoots().roles()));
     }
 
     /**
-     * Simpler helper to validate that the child is indeed a canonical child of the parent file.
+     * Simpler helper to validate that the child is indeed a canonical child of the parent directory. The child must be the parent itself
+     * or reside below it, a sibling whose name merely starts with the same characters is not a child.
      *
-     * @param parent Supposed parent file
-     * @param child  Supposed child file
+     * @param canonicalParentPath Canonical path of supposed parent directory
+     * @param child               Supposed child file
      * @return True if child is a proper canonical child of parent
      */
-    private boolean isCanonicalChild(File parent, File child) {
+    private boolean isCanonicalChild(String canonicalParentPath, File child) {
         try {
-            return child.getCanonicalPath().startsWith(parent.getCanonicalPath());
+            return GalleryFileUtils.isSameOrChildPath(canonicalParentPath, child.getCanonicalPath());
         } catch (IOException ioe) {
             return false;
         }
     }
 
-    private Collection<String> getCurrentUserRoles() {
+    /**
+     * Retrieves the root paths for the current user. These are resolved once per distinct collection of authorities, and then served from
+     * {@link #userRootsCache} until the root dirs are updated.
+     *
+     * @return The root paths of the current user
+     */
+    private UserRoots getCurrentUserRoots() {
         Collection<? extends GrantedAuthority> authorities = SecurityContextHolder.getContext().getAuthentication().getAuthorities();
-        return authorities.stream().map(GrantedAuthority::getAuthority).collect(Collectors.toSet());
+        UserRoots userRoots = userRootsCache.get(authorities);
+        if (userRoots == null) {
+            Map<String, Map<String, File>> currentRootPathsPerRoleMap = rootPathsPerRoleMap;
+            userRoots = createUserRoots(authorities, currentRootPathsPerRoleMap);
+            if (userRootsCache.size() >= MAX_CACHED_USER_ROOTS) {
+                userRootsCache.clear();
+            }
+            userRootsCache.put(authorities, userRoots);
+            if (currentRootPathsPerRoleMap != rootPathsPerRoleMap) {
+                // Root dirs were updated meanwhile. Still return the result for this call, but don't keep it
+                userRootsCache.remove(authorities);
+            }
+        }
+        return userRoots;
+    }
+
+    private UserRoots createUserRoots(Collection<? extends GrantedAuthority> authorities,
+                                      Map<String, Map<String, File>> rootPathsPerRoleMap) {
+        Set<String> roles = authorities.stream().map(GrantedAuthority::getAuthority).collect(Collectors.toUnmodifiableSet());
+        Map<String, File> rootPaths = new HashMap<>();
+        rootPathsPerRoleMap.forEach((role, rps) -> {
+            if (roles.contains(role)) {
+                rootPaths.putAll(rps);
+            }
+        });
+        Map<File, String> canonicalPathPerRootDir = this.canonicalPathPerRootDir;
+        Map<String, String> canonicalRootPaths = new HashMap<>();
+        rootPaths.forEach((name, dir) -> {
+            String canonicalPath = canonicalPathPerRootDir.get(dir);
+            canonicalRootPaths.put(name, canonicalPath != null ? canonicalPath : resolveCanonicalPath(dir));
+        });
+        return new UserRoots(Collections.unmodifiableMap(rootPaths), Collections.unmodifiableMap(canonicalRootPaths), roles,
+                roles.contains("ROLE_ADMIN"));
+    }
+
+    private String resolveCanonicalPath(File dir) {
+        try {
+            return dir.getCanonicalPath();
+        } catch (IOException ioe) {
+            LOG.warn("Could not resolve canonical path of root dir {}. Using absolute path", dir, ioe);
+            return dir.getAbsolutePath();
+        }
     }
 
     @Override
@@ -223,4 +281,15 @@ public class GalleryAuthorizationServiceSSImpl implements GalleryAuthorizationSe
         SecurityContextHolder.clearContext();
     }
 
+    /**
+     * The root paths one set of authorities gives access to.
+     *
+     * @param rootPaths          Root path name to root dir
+     * @param canonicalRootPaths Root path name to canonical path of root dir
+     * @param roles              All roles
+     * @param admin              Whether the roles include the admin role
+     */
+    record UserRoots(Map<String, File> rootPaths, Map<String, String> canonicalRootPaths, Set<String> roles, boolean admin) {
+    }
+
 }
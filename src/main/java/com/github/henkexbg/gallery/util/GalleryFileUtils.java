@@ -43,6 +43,19 @@ public class GalleryFileUtils {
         return Comparator.comparingInt(f -> getPathName(f.toFile()).length());
     }
 
+    /**
+     * Checks whether a path is the same as, or resides below, a parent path. Both paths are expected to be canonical. As opposed to a plain
+     * prefix check, a sibling whose name merely starts with the same characters as the parent is not considered a child.
+     *
+     * @param parentPath Canonical path of parent directory
+     * @param path       Canonical path to check
+     * @return True if path is parentPath or resides below it
+     */
+    public static boolean isSameOrChildPath(String parentPath, String path) {
+        return path.startsWith(parentPath) &&
+                (path.length() == parentPath.length() || path.charAt(parentPath.length()) == File.separatorChar);
+    }
+
     /**
      * Small util method helping with escaping any characters that would not be allowed in a path. The obvious use case here is Windows, and
      * it's drive letter followed by a ':'. Since the whole path will be appended to another root path that character is not allowed.
@@ -80,4 +93,16 @@ public class GalleryFileUtils {
     public static String getContentType(File file) throws IOException {
         return Files.probeContentType(file.toPath());
     }
+
+    /**
+     * Creates a short version fingerprint of a file based on its last modified time and size. Any in-place edit of the file will in
+     * practice change at least one of those, and thereby the fingerprint.
+     *
+     * @param lastModified Last modified time in milliseconds since epoch
+     * @param size         Size in bytes
+     * @return The fingerprint, consisting of URL- and filename-safe characters only
+     */
+    public static String createFingerprint(long lastModified, long size) {
+        return Long.toHexString(lastModified) + "-" + Long.toHexString(size);
+    }
 }
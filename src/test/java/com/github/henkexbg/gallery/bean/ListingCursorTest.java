@@ -0,0 +1,107 @@
+package com.github.henkexbg.gallery.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.github.henkexbg.gallery.service.GallerySearchService;
+import com.github.henkexbg.gallery.service.GallerySearchService.SortOrder;
+
+/**
+ * Tests encoding and decoding of {@link ListingCursor}, and the check of its sort order in {@link GallerySearchService}.
+ *
+ * @author Henrik
+ *
+ */
+public class ListingCursorTest {
+
+	private static final Instant DATE_TAKEN = Instant.parse("2024-07-01T10:00:00.123Z");
+
+	@Test
+	public void testRoundTrip() {
+		assertRoundTrip(new ListingCursor(true, DATE_TAKEN, 42));
+		assertRoundTrip(new ListingCursor(false, DATE_TAKEN, 42));
+		assertRoundTrip(new ListingCursor(true, null, 42));
+		assertRoundTrip(new ListingCursor(false, null, 42));
+		assertRoundTrip(new ListingCursor(true, DATE_TAKEN, Long.MIN_VALUE));
+	}
+
+	@Test
+	public void testEncodedIsUrlSafe() {
+		String encoded = new ListingCursor(true, DATE_TAKEN, Long.MAX_VALUE).encode();
+
+		assertEquals(encoded, encoded.replaceAll("[^A-Za-z0-9_-]", ""));
+	}
+
+	@Test
+	public void testDecodeWithoutDateTaken() {
+		ListingCursor cursor = ListingCursor.decode(encodeRaw("A,-,7"));
+
+		assertFalse(cursor.descending());
+		assertNull(cursor.dateTaken());
+		assertEquals(7, cursor.id());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeNotBase64() {
+		ListingCursor.decode("not a cursor!");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeWrongNumberOfParts() {
+		ListingCursor.decode(encodeRaw("D,2024-07-01T10:00:00Z"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeUnknownSortOrder() {
+		ListingCursor.decode(encodeRaw("X,2024-07-01T10:00:00Z,42"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeInvalidDateTaken() {
+		ListingCursor.decode(encodeRaw("D,2024-07-01,42"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeInvalidId() {
+		ListingCursor.decode(encodeRaw("D,2024-07-01T10:00:00Z,abc"));
+	}
+
+	@Test
+	public void testSearchAcceptsCursorForSameSortOrder() {
+		ListingCursor cursor = new ListingCursor(true, DATE_TAKEN, 42);
+
+		assertEquals(cursor, decodeInSearch(cursor.encode(), SortOrder.DESC));
+		assertNull(decodeInSearch(null, SortOrder.DESC));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSearchRejectsAscendingCursorWhenDescending() {
+		decodeInSearch(new ListingCursor(false, DATE_TAKEN, 42).encode(), SortOrder.DESC);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSearchRejectsDescendingCursorWhenAscending() {
+		decodeInSearch(new ListingCursor(true, DATE_TAKEN, 42).encode(), SortOrder.ASC);
+	}
+
+	private void assertRoundTrip(ListingCursor cursor) {
+		assertEquals(cursor, ListingCursor.decode(cursor.encode()));
+	}
+
+	private String encodeRaw(String raw) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private ListingCursor decodeInSearch(String encodedCursor, SortOrder sortOrder) {
+		return ReflectionTestUtils.invokeMethod(new GallerySearchService(), "decodeCursor", encodedCursor, sortOrder);
+	}
+
+}
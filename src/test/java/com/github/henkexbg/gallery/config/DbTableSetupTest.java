@@ -0,0 +1,87 @@
+package com.github.henkexbg.gallery.config;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.jdbi.v3.core.Jdbi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests rebuilding the ancestry table in {@link DbTableSetup}.
+ *
+ * @author Henrik
+ *
+ */
+public class DbTableSetupTest {
+
+	private Jdbi jdbi;
+
+	private DbTableSetup dbTableSetup;
+
+	@Before
+	public void setUp() throws Exception {
+		jdbi = TestDatabase.create();
+		dbTableSetup = new DbTableSetup();
+		dbTableSetup.jdbi = jdbi;
+	}
+
+	@After
+	public void tearDown() {
+		TestDatabase.shutdown(jdbi);
+	}
+
+	@Test
+	public void testBackfillAncestry() {
+		long rootId = insertFile(null, "/photos", true);
+		long directoryId = insertFile(rootId, "/photos/2024", true);
+		long fileId = insertFile(directoryId, "/photos/2024/a.jpg", false);
+		long otherRootId = insertFile(null, "/videos", true);
+
+		dbTableSetup.backfillAncestry();
+
+		assertEquals(List.of("%s-%s-0".formatted(fileId, fileId), "%s-%s-1".formatted(directoryId, fileId),
+				"%s-%s-2".formatted(rootId, fileId)), findAncestry(fileId));
+		assertEquals(List.of("%s-%s-0".formatted(directoryId, directoryId), "%s-%s-1".formatted(rootId, directoryId)),
+				findAncestry(directoryId));
+		assertEquals(List.of("%s-%s-0".formatted(otherRootId, otherRootId)), findAncestry(otherRootId));
+		assertEquals(7, countAncestry());
+	}
+
+	@Test
+	public void testBackfillAncestryOnlyWhenMissing() {
+		long rootId = insertFile(null, "/photos", true);
+		dbTableSetup.backfillAncestry();
+		// Lacks the row for the root directory, which a rebuild would add, but no file lacks ancestry
+		long fileId = insertFile(rootId, "/photos/a.jpg", false);
+		jdbi.useHandle(handle -> handle.execute(
+				"INSERT INTO gallery_file_ancestor (ancestor_id, descendant_id, depth) VALUES (?, ?, 0)", fileId, fileId));
+
+		dbTableSetup.backfillAncestry();
+
+		assertEquals(2, countAncestry());
+	}
+
+	private long insertFile(Long parentId, String path, boolean directory) {
+		return jdbi.withHandle(handle -> handle.createUpdate("""
+				INSERT INTO gallery_file (parent_id, path_on_disk, is_directory, last_modified)
+				VALUES (:parent_id, :path_on_disk, :is_directory, CURRENT_TIMESTAMP)
+				""").bind("parent_id", parentId).bind("path_on_disk", path).bind("is_directory", directory)
+				.executeAndReturnGeneratedKeys("id").mapTo(Long.class).one());
+	}
+
+	private List<String> findAncestry(long descendantId) {
+		return jdbi.withHandle(handle -> handle.createQuery("""
+				SELECT ancestor_id, descendant_id, depth FROM gallery_file_ancestor WHERE descendant_id = :id ORDER BY depth
+				""").bind("id", descendantId)
+				.map((rs, ctx) -> "%s-%s-%s".formatted(rs.getLong("ancestor_id"), rs.getLong("descendant_id"), rs.getInt("depth")))
+				.list());
+	}
+
+	private int countAncestry() {
+		return jdbi.withHandle(handle -> handle.createQuery("SELECT COUNT(*) FROM gallery_file_ancestor").mapTo(Integer.class).one());
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.github.henkexbg.gallery.config;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.jdbi.v3.core.Jdbi;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import com.github.henkexbg.gallery.Application;
+
+/**
+ * Creates in-memory H2 databases with the schema of the application, configured the same way as in {@link Application}, for tests of DB
+ * code.
+ *
+ * @author Henrik
+ *
+ */
+public class TestDatabase {
+
+	private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+	/**
+	 * Creates a new, empty database with all tables.
+	 *
+	 * @return Jdbi for the database
+	 * @throws Exception If the database cannot be created
+	 */
+	public static Jdbi create() throws Exception {
+		DriverManagerDataSource dataSource = new DriverManagerDataSource();
+		dataSource.setDriverClassName("org.h2.Driver");
+		dataSource.setUrl("jdbc:h2:mem:gallery" + DATABASE_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+		try (Connection connection = dataSource.getConnection()) {
+			H2GISFunctions.load(connection);
+		}
+		Jdbi jdbi = new Application().jdbi(dataSource);
+		DbTableSetup dbTableSetup = new DbTableSetup();
+		dbTableSetup.jdbi = jdbi;
+		dbTableSetup.executeCreateTable();
+		return jdbi;
+	}
+
+	/**
+	 * Drops a database created by {@link #create()}.
+	 *
+	 * @param jdbi Jdbi for the database
+	 */
+	public static void shutdown(Jdbi jdbi) {
+		jdbi.useHandle(handle -> handle.execute("SHUTDOWN"));
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.github.henkexbg.gallery.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.henkexbg.gallery.Application;
+import com.github.henkexbg.gallery.bean.GalleryDirectory;
+import com.github.henkexbg.gallery.bean.GalleryFile;
+import com.github.henkexbg.gallery.bean.GalleryFile.GalleryFileType;
+import com.github.henkexbg.gallery.bean.SearchResult;
+import com.github.henkexbg.gallery.controller.model.ImageFormat;
+import com.github.henkexbg.gallery.service.GallerySearchService;
+import com.github.henkexbg.gallery.service.UrlSigningService;
+
+/**
+ * Tests that the streamed listing of {@link GalleryController} has the same content as the regular one.
+ *
+ * @author Henrik
+ *
+ */
+public class GalleryControllerTest {
+
+	private final ObjectMapper objectMapper = new Application().objectMapper();
+
+	private GalleryController galleryController;
+
+	private SearchResult searchResult;
+
+	@Before
+	public void setUp() {
+		ImageFormat imageFormat = new ImageFormat();
+		imageFormat.setCode("thumb");
+		imageFormat.setWidth(200);
+		imageFormat.setHeight(200);
+		galleryController = new GalleryController();
+		ReflectionTestUtils.setField(galleryController, "gallerySearchService", new FixedResultSearchService());
+		ReflectionTestUtils.setField(galleryController, "urlSigningService", new UrlSigningService());
+		ReflectionTestUtils.setField(galleryController, "objectMapper", objectMapper);
+		ReflectionTestUtils.setField(galleryController, "imageFormats", List.of(imageFormat));
+		ReflectionTestUtils.setField(galleryController, "allowCustomImageSizes", true);
+		ReflectionTestUtils.setField(galleryController, "videoConversionModes", Map.of("COMPACT", "-crf 28"));
+		galleryController.init();
+	}
+
+	@Test
+	public void testStreamedListingEqualsRegularListing() throws Exception {
+		GalleryDirectory galleryDirectory = new GalleryDirectory();
+		galleryDirectory.setName("2024");
+		galleryDirectory.setPublicPath("photos/2024");
+		galleryDirectory.setImage(createGalleryFile(1L, "photos/2024/a.jpg", GalleryFileType.IMAGE));
+		searchResult = new SearchResult(List.of(galleryDirectory), List.of(createGalleryFile(2L, "photos/b.jpg", GalleryFileType.IMAGE),
+				createGalleryFile(3L, "photos/c.mp4", GalleryFileType.VIDEO)), "nextCursor", "nextDirectoryCursor");
+
+		assertEquals(queryRegular(), queryStreaming());
+	}
+
+	@Test
+	public void testStreamedEmptyListingEqualsRegularListing() throws Exception {
+		searchResult = new SearchResult(List.of(), List.of(), null, null);
+
+		assertEquals(queryRegular(), queryStreaming());
+	}
+
+	// Compared as trees, as fields may come in another order
+	private JsonNode queryRegular() throws Exception {
+		return objectMapper.readTree(objectMapper.writeValueAsString(galleryController.query(new MockHttpServletRequest(), "/photos", null,
+				false, null, null, null, null, null, null)));
+	}
+
+	private JsonNode queryStreaming() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		galleryController.queryStreaming(new MockHttpServletRequest(), response, "/photos", null, false, null, null, null, null, null,
+				null);
+		return objectMapper.readTree(response.getContentAsString());
+	}
+
+	private GalleryFile createGalleryFile(Long id, String publicPath, GalleryFileType type) {
+		GalleryFile galleryFile = new GalleryFile();
+		galleryFile.setId(id);
+		galleryFile.setPublicPath(publicPath);
+		galleryFile.setActualFile(new File("/data/" + publicPath));
+		galleryFile.setType(type);
+		galleryFile.setContentType(type == GalleryFileType.VIDEO ? "video/mp4" : "image/jpeg");
+		galleryFile.setDateTaken(Instant.parse("2024-07-01T10:00:00Z"));
+		galleryFile.setVersion("v" + id);
+		return galleryFile;
+	}
+
+	/**
+	 * Returns {@link #searchResult} for any query, both for regular and for streamed listings.
+	 */
+	private class FixedResultSearchService extends GallerySearchService {
+
+		@Override
+		public SearchResult search(SearchQuery searchQuery) {
+			return searchResult;
+		}
+
+		@Override
+		public PreparedSearch prepareSearch(SearchQuery searchQuery) {
+			return new PreparedSearch(searchQuery, null, new long[0], true, false, SortOrder.DESC, null, null);
+		}
+
+		@Override
+		public String streamDirectories(PreparedSearch preparedSearch, Consumer<GalleryDirectory> directoryConsumer) {
+			searchResult.directories().forEach(directoryConsumer);
+			return searchResult.nextDirectoryCursor();
+		}
+
+		@Override
+		public String streamMedia(PreparedSearch preparedSearch, Consumer<GalleryFile> mediaConsumer) {
+			searchResult.files().forEach(mediaConsumer);
+			return searchResult.nextCursor();
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.github.henkexbg.gallery.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.github.henkexbg.gallery.controller.MediaOffloadHandler.OffloadMode;
+
+/**
+ * Tests the headers produced by {@link MediaOffloadHandler}. No proxy is involved.
+ *
+ * @author Henrik
+ *
+ */
+public class MediaOffloadHandlerTest {
+
+	private static final String CACHE_HEADER = "private, max-age=31536000";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File originalsDir;
+
+	private File resizeDir;
+
+	private MediaOffloadHandler mediaOffloadHandler;
+
+	@Before
+	public void setUp() throws Exception {
+		originalsDir = temporaryFolder.newFolder("originals");
+		resizeDir = temporaryFolder.newFolder("resized");
+		mediaOffloadHandler = new MediaOffloadHandler();
+		ReflectionTestUtils.setField(mediaOffloadHandler, "mappingsString",
+				originalsDir.getPath() + "=/protected/originals," + resizeDir.getPath() + "=/protected/resized/");
+	}
+
+	@Test
+	public void testDisabledPerDefault() throws Exception {
+		mediaOffloadHandler.init();
+		assertFalse(mediaOffloadHandler.isEnabled());
+		assertNull(mediaOffloadHandler.createOffloadResponse(new File(originalsDir, "a.jpg"), "image/jpeg", CACHE_HEADER));
+	}
+
+	@Test
+	public void testXAccelRedirect() throws Exception {
+		initWithMode(OffloadMode.X_ACCEL_REDIRECT);
+		ResponseEntity<InputStreamResource> response = mediaOffloadHandler
+				.createOffloadResponse(new File(originalsDir, "2024/my image.jpg"), "image/jpeg", CACHE_HEADER);
+
+		assertNotNull(response);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertNull(response.getBody());
+		HttpHeaders headers = response.getHeaders();
+		assertEquals("/protected/originals/2024/my%20image.jpg", headers.getFirst(MediaOffloadHandler.X_ACCEL_REDIRECT_HEADER));
+		assertEquals("image/jpeg", headers.getFirst(HttpHeaders.CONTENT_TYPE));
+		assertEquals(CACHE_HEADER, headers.getCacheControl());
+		assertNull(headers.getFirst(HttpHeaders.CONTENT_LENGTH));
+	}
+
+	@Test
+	public void testXAccelRedirectResizeDir() throws Exception {
+		initWithMode(OffloadMode.X_ACCEL_REDIRECT);
+		ResponseEntity<InputStreamResource> response = mediaOffloadHandler
+				.createOffloadResponse(new File(resizeDir, "300x300/a.jpg"), "image/jpeg", CACHE_HEADER);
+
+		assertEquals("/protected/resized/300x300/a.jpg", response.getHeaders().getFirst(MediaOffloadHandler.X_ACCEL_REDIRECT_HEADER));
+	}
+
+	@Test
+	public void testXAccelRedirectUnmappedFileIsNotOffloaded() throws Exception {
+		initWithMode(OffloadMode.X_ACCEL_REDIRECT);
+		File siblingWithSamePrefix = new File(originalsDir.getPath() + "-other", "a.jpg");
+
+		assertNull(mediaOffloadHandler.createOffloadResponse(siblingWithSamePrefix, "image/jpeg", CACHE_HEADER));
+	}
+
+	@Test
+	public void testXSendfile() throws Exception {
+		initWithMode(OffloadMode.X_SENDFILE);
+		File unmappedFile = temporaryFolder.newFile("unmapped.mp4");
+		ResponseEntity<InputStreamResource> mappedResponse = mediaOffloadHandler
+				.createOffloadResponse(new File(originalsDir, "my video.mp4"), "video/mp4", CACHE_HEADER);
+		ResponseEntity<InputStreamResource> unmappedResponse = mediaOffloadHandler.createOffloadResponse(unmappedFile, "video/mp4",
+				CACHE_HEADER);
+
+		assertEquals("/protected/originals/my%20video.mp4", mappedResponse.getHeaders().getFirst(MediaOffloadHandler.X_SENDFILE_HEADER));
+		assertEquals(unmappedFile.getCanonicalPath(), unmappedResponse.getHeaders().getFirst(MediaOffloadHandler.X_SENDFILE_HEADER));
+		assertEquals("video/mp4", unmappedResponse.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE));
+	}
+
+	@Test
+	public void testXAccelRedirectEncodesNonAsciiAndPercent() throws Exception {
+		initWithMode(OffloadMode.X_ACCEL_REDIRECT);
+
+		assertEquals("/protected/originals/%C3%85re/100%25%20sure.jpg", getOffloadLocation(originalsDir, "Åre/100% sure.jpg"));
+	}
+
+	@Test
+	public void testXSendfileEncodesNonAsciiAndPercent() throws Exception {
+		initWithMode(OffloadMode.X_SENDFILE);
+		File unmappedDir = temporaryFolder.newFolder("unmapped");
+
+		assertEquals("/protected/originals/%C3%85re/100%25%20sure.jpg", getOffloadLocation(originalsDir, "Åre/100% sure.jpg"));
+		assertEquals(unmappedDir.getCanonicalPath() + "/%C3%85re/100%25.mp4", getOffloadLocation(unmappedDir, "Åre/100%.mp4"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMapping() throws Exception {
+		ReflectionTestUtils.setField(mediaOffloadHandler, "mappingsString", "/no/location");
+		initWithMode(OffloadMode.X_ACCEL_REDIRECT);
+	}
+
+	// Given as a string, so that the file name does not depend on the encoding of the file system
+	private String getOffloadLocation(File directory, String relativePath) throws Exception {
+		return ReflectionTestUtils.invokeMethod(mediaOffloadHandler, "getOffloadLocation", directory.getCanonicalPath() + "/" + relativePath);
+	}
+
+	private void initWithMode(OffloadMode offloadMode) throws Exception {
+		ReflectionTestUtils.setField(mediaOffloadHandler, "offloadMode", offloadMode);
+		mediaOffloadHandler.init();
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.github.henkexbg.gallery.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Tests caching of authentications and reloading of users in {@link CachingAuthenticationProvider}.
+ *
+ * @author Henrik
+ *
+ */
+public class CachingAuthenticationProviderTest {
+
+	private static final long TTL_SECONDS = 60;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final AtomicLong now = new AtomicLong(1_000_000);
+
+	private File usersFile;
+
+	@Before
+	public void setUp() throws Exception {
+		usersFile = temporaryFolder.newFile("users.properties");
+		writeUsersFile("password", 1_000_000);
+	}
+
+	@Test
+	public void testCacheHit() {
+		CachingAuthenticationProvider provider = createProvider(TTL_SECONDS);
+		provider.authenticate(createToken("password"));
+		// Any authentication not served from the cache now fails
+		removeAllUsers(provider);
+
+		Authentication result = provider.authenticate(createToken("password"));
+
+		assertTrue(result.isAuthenticated());
+		assertEquals("admin", result.getName());
+	}
+
+	@Test(expected = BadCredentialsException.class)
+	public void testWrongPasswordAfterCachedSuccess() {
+		CachingAuthenticationProvider provider = createProvider(TTL_SECONDS);
+		provider.authenticate(createToken("password"));
+
+		provider.authenticate(createToken("wrongPassword"));
+	}
+
+	@Test(expected = BadCredentialsException.class)
+	public void testCachedAuthenticationExpires() {
+		CachingAuthenticationProvider provider = createProvider(TTL_SECONDS);
+		provider.authenticate(createToken("password"));
+		removeAllUsers(provider);
+		now.addAndGet(TTL_SECONDS * 1000);
+
+		provider.authenticate(createToken("password"));
+	}
+
+	@Test
+	public void testChangedUsersFileInvalidatesCache() throws Exception {
+		CachingAuthenticationProvider provider = createProvider(TTL_SECONDS);
+		provider.authenticate(createToken("password"));
+		writeUsersFile("newPassword", 2_000_000);
+		now.addAndGet(TTL_SECONDS * 1000);
+
+		assertTrue(provider.authenticate(createToken("newPassword")).isAuthenticated());
+		assertBadCredentials(provider, "password");
+	}
+
+	@Test
+	public void testUsersFileCheckedAtMostOncePerSecondWithoutCaching() throws Exception {
+		CachingAuthenticationProvider provider = createProvider(0);
+		provider.authenticate(createToken("password"));
+		writeUsersFile("newPassword", 2_000_000);
+		now.addAndGet(500);
+
+		assertTrue(provider.authenticate(createToken("password")).isAuthenticated());
+
+		now.addAndGet(500);
+
+		assertTrue(provider.authenticate(createToken("newPassword")).isAuthenticated());
+		assertBadCredentials(provider, "password");
+	}
+
+	private CachingAuthenticationProvider createProvider(long ttlSeconds) {
+		CachingAuthenticationProvider provider = new CachingAuthenticationProvider(usersFile, ttlSeconds, 100);
+		provider.currentTimeMillis = now::get;
+		return provider;
+	}
+
+	private void writeUsersFile(String password, long lastModified) throws Exception {
+		Files.writeString(usersFile.toPath(), "admin={noop}%s,ROLE_ADMIN,enabled%n".formatted(password));
+		assertTrue(usersFile.setLastModified(lastModified));
+	}
+
+	private void removeAllUsers(CachingAuthenticationProvider provider) {
+		ReflectionTestUtils.setField(provider, "delegate", new DaoAuthenticationProvider(new InMemoryUserDetailsManager(new Properties())));
+	}
+
+	private UsernamePasswordAuthenticationToken createToken(String password) {
+		return UsernamePasswordAuthenticationToken.unauthenticated("admin", password);
+	}
+
+	private void assertBadCredentials(CachingAuthenticationProvider provider, String password) {
+		try {
+			provider.authenticate(createToken(password));
+		} catch (BadCredentialsException e) {
+			return;
+		}
+		throw new AssertionError("Expected authentication with %s to fail".formatted(password));
+	}
+
+}
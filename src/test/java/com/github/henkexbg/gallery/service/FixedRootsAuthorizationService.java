@@ -0,0 +1,78 @@
+package com.github.henkexbg.gallery.service;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.henkexbg.gallery.bean.UserInfo;
+import com.github.henkexbg.gallery.service.exception.NotAllowedException;
+
+/**
+ * Gives the current user access to a fixed set of root directories, for tests of services without Spring Security. Root directories are
+ * expected to be given as canonical files.
+ *
+ * @author Henrik
+ *
+ */
+public class FixedRootsAuthorizationService implements GalleryAuthorizationService {
+
+	private final Map<String, File> rootPaths;
+
+	private final List<File> allRootDirectories;
+
+	/**
+	 * @param rootPaths          Root directories of the current user per public root
+	 * @param allRootDirectories All root directories in the system, including those of other users
+	 */
+	public FixedRootsAuthorizationService(Map<String, File> rootPaths, List<File> allRootDirectories) {
+		this.rootPaths = rootPaths;
+		this.allRootDirectories = allRootDirectories;
+	}
+
+	@Override
+	public Map<String, File> getRootPathsForCurrentUser() {
+		return rootPaths;
+	}
+
+	@Override
+	public Map<String, String> getCanonicalRootPathsForCurrentUser() {
+		Map<String, String> canonicalRootPaths = new LinkedHashMap<>();
+		rootPaths.forEach((publicRoot, rootDir) -> canonicalRootPaths.put(publicRoot, rootDir.getPath()));
+		return canonicalRootPaths;
+	}
+
+	@Override
+	public List<File> getAllRootDirectoriesInSystem() {
+		return allRootDirectories;
+	}
+
+	@Override
+	public File getRealFileOrDir(String publicPath) throws NotAllowedException {
+		String[] rootAndRest = publicPath.split("/", 2);
+		File rootDir = rootPaths.get(rootAndRest[0]);
+		if (rootDir == null) {
+			throw new NotAllowedException("No access to " + publicPath);
+		}
+		return rootAndRest.length == 1 ? rootDir : new File(rootDir, rootAndRest[1]);
+	}
+
+	@Override
+	public boolean isAdmin() {
+		return false;
+	}
+
+	@Override
+	public UserInfo getCurrentUserInfo() {
+		return null;
+	}
+
+	@Override
+	public void loginAdminUser() {
+	}
+
+	@Override
+	public void logoutAdminUser() {
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.jdbi.v3.core.Jdbi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.henkexbg.gallery.bean.GeoCluster;
+import com.github.henkexbg.gallery.config.TestDatabase;
+import com.github.henkexbg.gallery.service.GallerySearchService.ChangedFile;
+import com.github.henkexbg.gallery.service.GallerySearchService.ExtractedFile;
+import com.github.henkexbg.gallery.strategy.impl.FilenameToSearchTermsStrategyImpl;
+
+/**
+ * Tests clustering media by location in {@link GallerySearchService}, against an H2 database.
+ *
+ * @author Henrik
+ *
+ */
+public class GallerySearchServiceGeoTest {
+
+	private static final double DELTA = 0.000001;
+
+	// With a cell size of 2.8125 degrees at zoom level 4, this is one cell in the south east of Australia
+	private static final double[][] SYDNEY_CELL_LOCATIONS = { { 150.0, -35.0 }, { 150.5, -35.2 }, { 151.0, -34.5 } };
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Jdbi jdbi;
+
+	private GallerySearchService gallerySearchService;
+
+	private GalleryService galleryService;
+
+	private File photosDir;
+
+	private File otherDir;
+
+	@Before
+	public void setUp() throws Exception {
+		jdbi = TestDatabase.create();
+		photosDir = temporaryFolder.newFolder("photos").getCanonicalFile();
+		otherDir = temporaryFolder.newFolder("other").getCanonicalFile();
+		galleryService = new GalleryService();
+		TagIndex tagIndex = new TagIndex();
+		tagIndex.jdbi = jdbi;
+		gallerySearchService = new GallerySearchService();
+		gallerySearchService.jdbi = jdbi;
+		gallerySearchService.tagIndex = tagIndex;
+		gallerySearchService.searchResultCache = new SearchResultCache();
+		gallerySearchService.filenameToSearchTermsStrategy = new FilenameToSearchTermsStrategyImpl();
+		gallerySearchService.galleryService = galleryService;
+		setRootsOfCurrentUser(Map.of("photos", photosDir));
+		List<File> rootDirectories = List.of(photosDir, otherDir);
+		gallerySearchService.upsertOneDirectory(photosDir, rootDirectories);
+		gallerySearchService.upsertOneDirectory(otherDir, rootDirectories);
+
+		for (int i = 0; i < SYDNEY_CELL_LOCATIONS.length; i++) {
+			writeMedia(photosDir, "sydney-" + i + ".jpg", SYDNEY_CELL_LOCATIONS[i][0], SYDNEY_CELL_LOCATIONS[i][1]);
+		}
+		writeMedia(photosDir, "melbourne.jpg", 145.0, -37.8);
+		writeMedia(photosDir, "berlin.jpg", 13.4, 52.5);
+		writeMedia(photosDir, "no-location.jpg", null, null);
+		// Written last, so it would have the highest ID in its cell
+		writeMedia(otherDir, "sydney-other.jpg", 150.2, -35.1);
+	}
+
+	@After
+	public void tearDown() {
+		TestDatabase.shutdown(jdbi);
+	}
+
+	@Test
+	public void testClustersWithinBoundingBox() throws Exception {
+		List<GeoCluster> clusters = gallerySearchService.findGeoClusters(140, -40, 160, -20, 4);
+
+		assertEquals(2, clusters.size());
+		GeoCluster sydneyCluster = clusters.getFirst();
+		assertEquals(3, sydneyCluster.count());
+		assertEquals(150.5, sydneyCluster.lon(), DELTA);
+		assertEquals(-34.9, sydneyCluster.lat(), DELTA);
+		assertEquals("photos/sydney-2.jpg", sydneyCluster.representative().getPublicPath());
+		GeoCluster melbourneCluster = clusters.get(1);
+		assertEquals(1, melbourneCluster.count());
+		assertEquals(145.0, melbourneCluster.lon(), DELTA);
+		assertEquals(-37.8, melbourneCluster.lat(), DELTA);
+		assertEquals("photos/melbourne.jpg", melbourneCluster.representative().getPublicPath());
+	}
+
+	@Test
+	public void testClustersOnlyWithinRootsOfCurrentUser() throws Exception {
+		setRootsOfCurrentUser(Map.of("other", otherDir));
+
+		List<GeoCluster> clusters = gallerySearchService.findGeoClusters(140, -40, 160, -20, 4);
+
+		assertEquals(1, clusters.size());
+		assertEquals(1, clusters.getFirst().count());
+		assertEquals("other/sydney-other.jpg", clusters.getFirst().representative().getPublicPath());
+	}
+
+	@Test
+	public void testSmallBoxAtHighZoomSeparatesCloseMedia() throws Exception {
+		List<GeoCluster> clusters = gallerySearchService.findGeoClusters(149, -36, 152, -34, 12);
+
+		assertEquals(List.of(1L, 1L, 1L), clusters.stream().map(GeoCluster::count).toList());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBoundingBox() throws Exception {
+		gallerySearchService.findGeoClusters(160, -40, 140, -20, 4);
+	}
+
+	private void setRootsOfCurrentUser(Map<String, File> rootPaths) {
+		GalleryAuthorizationService galleryAuthorizationService =
+				new FixedRootsAuthorizationService(rootPaths, List.of(photosDir, otherDir));
+		gallerySearchService.galleryAuthorizationService = galleryAuthorizationService;
+		galleryService.galleryAuthorizationService = galleryAuthorizationService;
+	}
+
+	private void writeMedia(File directory, String name, Double lon, Double lat) throws IOException {
+		File file = new File(directory, name);
+		Files.writeString(file.toPath(), name);
+		ChangedFile changedFile = new ChangedFile(file, file.getCanonicalPath(), directory.getCanonicalPath(), file.lastModified(),
+				file.length());
+		gallerySearchService.writeBatch(List.of(new ExtractedFile(changedFile, new MetadataExtractionService.FileMetaData(null, lat, lon),
+				"image/jpeg", false, null)));
+	}
+
+}
@@ -0,0 +1,208 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.MonthDay;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jdbi.v3.core.Jdbi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.henkexbg.gallery.bean.ListingCursor;
+import com.github.henkexbg.gallery.bean.SearchResult;
+import com.github.henkexbg.gallery.bean.TimelineEntry;
+import com.github.henkexbg.gallery.config.TestDatabase;
+import com.github.henkexbg.gallery.service.GallerySearchService.ChangedFile;
+import com.github.henkexbg.gallery.service.GallerySearchService.ExtractedFile;
+import com.github.henkexbg.gallery.service.GallerySearchService.SearchQuery;
+import com.github.henkexbg.gallery.service.GallerySearchService.SortOrder;
+import com.github.henkexbg.gallery.service.GallerySearchService.TimelineResolution;
+import com.github.henkexbg.gallery.strategy.impl.FilenameToSearchTermsStrategyImpl;
+
+/**
+ * Tests listing media by date in {@link GallerySearchService}, against an H2 database.
+ *
+ * @author Henrik
+ *
+ */
+public class GallerySearchServiceListingTest {
+
+	private static final MonthDay JULY_FIRST = MonthDay.of(7, 1);
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Jdbi jdbi;
+
+	private GallerySearchService gallerySearchService;
+
+	private File rootDir;
+
+	@Before
+	public void setUp() throws Exception {
+		jdbi = TestDatabase.create();
+		rootDir = temporaryFolder.newFolder("photos").getCanonicalFile();
+		GalleryAuthorizationService galleryAuthorizationService = new FixedRootsAuthorizationService(Map.of("photos", rootDir),
+				List.of(rootDir));
+		GalleryService galleryService = new GalleryService();
+		galleryService.galleryAuthorizationService = galleryAuthorizationService;
+		TagIndex tagIndex = new TagIndex();
+		tagIndex.jdbi = jdbi;
+		gallerySearchService = new GallerySearchService();
+		gallerySearchService.jdbi = jdbi;
+		gallerySearchService.tagIndex = tagIndex;
+		gallerySearchService.searchResultCache = new SearchResultCache();
+		gallerySearchService.filenameToSearchTermsStrategy = new FilenameToSearchTermsStrategyImpl();
+		gallerySearchService.galleryAuthorizationService = galleryAuthorizationService;
+		gallerySearchService.galleryService = galleryService;
+		gallerySearchService.upsertOneDirectory(rootDir, List.of(rootDir));
+	}
+
+	@After
+	public void tearDown() {
+		TestDatabase.shutdown(jdbi);
+	}
+
+	@Test
+	public void testPeriodCursorAscending() {
+		LocalDateTime periodStart = LocalDateTime.of(2024, 2, 1, 0, 0);
+
+		assertEquals(new ListingCursor(false, toInstant(periodStart), Long.MIN_VALUE),
+				GallerySearchService.createPeriodCursor(periodStart, TimelineResolution.MONTH, SortOrder.ASC));
+	}
+
+	@Test
+	public void testPeriodCursorDescending() {
+		assertEquals(new ListingCursor(true, toInstant(LocalDateTime.of(2024, 3, 1, 0, 0)), Long.MIN_VALUE),
+				GallerySearchService.createPeriodCursor(LocalDateTime.of(2024, 2, 1, 0, 0), TimelineResolution.MONTH, SortOrder.DESC));
+		assertEquals(new ListingCursor(true, toInstant(LocalDateTime.of(2025, 1, 1, 0, 0)), Long.MIN_VALUE),
+				GallerySearchService.createPeriodCursor(LocalDateTime.of(2024, 1, 1, 0, 0), TimelineResolution.YEAR, SortOrder.DESC));
+		assertEquals(new ListingCursor(true, toInstant(LocalDateTime.of(2024, 3, 1, 0, 0)), Long.MIN_VALUE),
+				GallerySearchService.createPeriodCursor(LocalDateTime.of(2024, 2, 29, 0, 0), TimelineResolution.DAY, SortOrder.DESC));
+	}
+
+	@Test
+	public void testTimelineCursorsSeekToPeriodBoundaries() throws Exception {
+		writeMedia("jan-last.jpg", LocalDateTime.of(2024, 1, 31, 23, 59, 59));
+		writeMedia("feb-first.jpg", LocalDateTime.of(2024, 2, 1, 0, 0));
+		writeMedia("feb-last.jpg", LocalDateTime.of(2024, 2, 29, 23, 59, 59));
+		writeMedia("mar-first.jpg", LocalDateTime.of(2024, 3, 1, 0, 0));
+
+		List<TimelineEntry> descending = gallerySearchService.findTimeline(createQuery(SortOrder.DESC, null), TimelineResolution.MONTH);
+		List<TimelineEntry> ascending = gallerySearchService.findTimeline(createQuery(SortOrder.ASC, null), TimelineResolution.MONTH);
+
+		assertEquals(List.of(toInstant(LocalDateTime.of(2024, 3, 1, 0, 0)), toInstant(LocalDateTime.of(2024, 2, 1, 0, 0)),
+				toInstant(LocalDateTime.of(2024, 1, 1, 0, 0))), descending.stream().map(TimelineEntry::start).toList());
+		assertEquals(2, descending.get(1).count());
+		assertEquals(List.of("feb-last.jpg", "feb-first.jpg", "jan-last.jpg"), listMedia(SortOrder.DESC, descending.get(1).cursor()));
+		assertEquals(List.of("mar-first.jpg", "feb-last.jpg", "feb-first.jpg", "jan-last.jpg"),
+				listMedia(SortOrder.DESC, descending.getFirst().cursor()));
+		assertEquals(List.of("feb-first.jpg", "feb-last.jpg", "mar-first.jpg"), listMedia(SortOrder.ASC, ascending.get(1).cursor()));
+		assertEquals(List.of("jan-last.jpg", "feb-first.jpg", "feb-last.jpg", "mar-first.jpg"),
+				listMedia(SortOrder.ASC, ascending.getFirst().cursor()));
+	}
+
+	@Test
+	public void testOnThisDayDescending() throws Exception {
+		writeOnThisDayMedia();
+
+		SearchResult searchResult = gallerySearchService.findOnThisDay(JULY_FIRST, null, SortOrder.DESC, null);
+
+		assertEquals(List.of("2024-evening.jpg", "2024-morning.jpg", "2023.jpg", "2020.jpg"), getNames(searchResult));
+		assertNull(searchResult.nextCursor());
+	}
+
+	@Test
+	public void testOnThisDayAscending() throws Exception {
+		writeOnThisDayMedia();
+
+		SearchResult searchResult = gallerySearchService.findOnThisDay(JULY_FIRST, null, SortOrder.ASC, null);
+
+		assertEquals(List.of("2020.jpg", "2023.jpg", "2024-morning.jpg", "2024-evening.jpg"), getNames(searchResult));
+	}
+
+	@Test
+	public void testOnThisDayPagesAcrossYears() throws Exception {
+		writeOnThisDayMedia();
+
+		assertEquals(List.of("2024-evening.jpg", "2024-morning.jpg", "2023.jpg", "2020.jpg"), listOnThisDayInPages(SortOrder.DESC, 1));
+		assertEquals(List.of("2020.jpg", "2023.jpg", "2024-morning.jpg", "2024-evening.jpg"), listOnThisDayInPages(SortOrder.ASC, 1));
+		assertEquals(List.of("2024-evening.jpg", "2024-morning.jpg", "2023.jpg", "2020.jpg"), listOnThisDayInPages(SortOrder.DESC, 3));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOnThisDayRejectsCursorForOtherSortOrder() throws Exception {
+		writeOnThisDayMedia();
+		String cursor = gallerySearchService.findOnThisDay(JULY_FIRST, 1, SortOrder.ASC, null).nextCursor();
+
+		gallerySearchService.findOnThisDay(JULY_FIRST, 1, SortOrder.DESC, cursor);
+	}
+
+	private void writeOnThisDayMedia() throws IOException {
+		writeMedia("2020.jpg", LocalDateTime.of(2020, 7, 1, 12, 0));
+		writeMedia("2023.jpg", LocalDateTime.of(2023, 7, 1, 0, 0));
+		writeMedia("2024-morning.jpg", LocalDateTime.of(2024, 7, 1, 8, 0));
+		writeMedia("2024-evening.jpg", LocalDateTime.of(2024, 7, 1, 23, 59, 59));
+		writeMedia("2024-day-before.jpg", LocalDateTime.of(2024, 6, 30, 23, 59, 59));
+		writeMedia("2024-day-after.jpg", LocalDateTime.of(2024, 7, 2, 0, 0));
+		writeMedia("2025-other-month.jpg", LocalDateTime.of(2025, 8, 1, 12, 0));
+		writeMedia("no-date.jpg", null);
+	}
+
+	private List<String> listOnThisDayInPages(SortOrder sortOrder, int pageSize) throws Exception {
+		List<String> names = new ArrayList<>();
+		String cursor = null;
+		do {
+			SearchResult searchResult = gallerySearchService.findOnThisDay(JULY_FIRST, pageSize, sortOrder, cursor);
+			assertTrue(searchResult.files().size() <= pageSize);
+			names.addAll(getNames(searchResult));
+			cursor = searchResult.nextCursor();
+		} while (cursor != null);
+		return names;
+	}
+
+	private List<String> getNames(SearchResult searchResult) {
+		return searchResult.files().stream().map(galleryFile -> galleryFile.getActualFile().getName()).toList();
+	}
+
+	private List<String> listMedia(SortOrder sortOrder, String cursor) throws Exception {
+		List<String> names = new ArrayList<>();
+		gallerySearchService.streamMedia(gallerySearchService.prepareSearch(createQuery(sortOrder, cursor)),
+				galleryFile -> names.add(galleryFile.getActualFile().getName()));
+		return names;
+	}
+
+	private SearchQuery createQuery(SortOrder sortOrder, String cursor) {
+		return new SearchQuery(null, null, false, null, null, sortOrder, cursor, null, null);
+	}
+
+	private void writeMedia(String name, LocalDateTime dateTaken) throws IOException {
+		File file = new File(rootDir, name);
+		Files.writeString(file.toPath(), name);
+		ChangedFile changedFile = new ChangedFile(file, file.getCanonicalPath(), rootDir.getCanonicalPath(), file.lastModified(),
+				file.length());
+		MetadataExtractionService.FileMetaData metadata =
+				new MetadataExtractionService.FileMetaData(dateTaken != null ? toInstant(dateTaken) : null, null, null);
+		gallerySearchService.writeBatch(List.of(new ExtractedFile(changedFile, metadata, "image/jpeg", false, null)));
+	}
+
+	// Dates taken are stored as local timestamps
+	private Instant toInstant(LocalDateTime localDateTime) {
+		return Timestamp.valueOf(localDateTime).toInstant();
+	}
+
+}
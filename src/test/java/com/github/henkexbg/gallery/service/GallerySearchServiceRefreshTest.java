@@ -0,0 +1,248 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.jdbi.v3.core.Jdbi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.henkexbg.gallery.config.TestDatabase;
+import com.github.henkexbg.gallery.service.GallerySearchService.ChangedFile;
+import com.github.henkexbg.gallery.service.GallerySearchService.DirectoryDelta;
+import com.github.henkexbg.gallery.service.GallerySearchService.ExtractedFile;
+import com.github.henkexbg.gallery.strategy.impl.FilenameToSearchTermsStrategyImpl;
+
+/**
+ * Tests detecting changes between the disk and the index, and refreshing the index, in {@link GallerySearchService}, against an H2
+ * database.
+ *
+ * @author Henrik
+ *
+ */
+public class GallerySearchServiceRefreshTest {
+
+	private static final Instant DATE_TAKEN = Instant.parse("2024-07-01T10:00:00Z");
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Jdbi jdbi;
+
+	private GallerySearchService gallerySearchService;
+
+	private File rootDir;
+
+	private File outsideDir;
+
+	private ExecutorService executorService;
+
+	// Traversing these fails, as if they could not be read
+	private Set<String> failingDirectoryNames = Set.of();
+
+	private final List<File> extractedFiles = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() throws Exception {
+		jdbi = TestDatabase.create();
+		rootDir = temporaryFolder.newFolder("photos").getCanonicalFile();
+		outsideDir = temporaryFolder.newFolder("elsewhere").getCanonicalFile();
+		GalleryService galleryService = new GalleryService();
+		galleryService.allowedFileExtensions = Set.of("jpg");
+		TagIndex tagIndex = new TagIndex();
+		tagIndex.jdbi = jdbi;
+		executorService = Executors.newVirtualThreadPerTaskExecutor();
+		gallerySearchService = new GallerySearchService() {
+
+			@Override
+			DirectoryDelta findDirectoryDelta(File directory) throws IOException {
+				if (failingDirectoryNames.contains(directory.getName())) {
+					throw new IOException("Could not list " + directory);
+				}
+				return super.findDirectoryDelta(directory);
+			}
+		};
+		gallerySearchService.jdbi = jdbi;
+		gallerySearchService.tagIndex = tagIndex;
+		gallerySearchService.searchResultCache = new SearchResultCache();
+		gallerySearchService.filenameToSearchTermsStrategy = new FilenameToSearchTermsStrategyImpl();
+		gallerySearchService.galleryService = galleryService;
+		gallerySearchService.galleryAuthorizationService = new FixedRootsAuthorizationService(Map.of("photos", rootDir), List.of(rootDir));
+		gallerySearchService.metadataExtractionService = new MetadataExtractionService() {
+
+			@Override
+			public Map<File, FileMetaData> getMetadata(List<File> files) {
+				extractedFiles.addAll(files);
+				return files.stream().collect(Collectors.toMap(file -> file, _ -> new FileMetaData(DATE_TAKEN, null, null)));
+			}
+		};
+		gallerySearchService.executorService = executorService;
+		gallerySearchService.init();
+		gallerySearchService.upsertOneDirectory(rootDir, List.of(rootDir));
+	}
+
+	@After
+	public void tearDown() {
+		gallerySearchService.destroy();
+		executorService.shutdownNow();
+		TestDatabase.shutdown(jdbi);
+	}
+
+	@Test
+	public void testDirectoryDelta() throws Exception {
+		File unchangedFile = writeFile(rootDir, "unchanged.jpg");
+		File modifiedFile = writeFile(rootDir, "modified.jpg");
+		File removedFile = writeFile(rootDir, "removed.jpg");
+		index(unchangedFile, modifiedFile, removedFile);
+		File unchangedDir = createDirectory(rootDir, "unchanged-dir");
+		File removedDir = createDirectory(rootDir, "removed-dir");
+		gallerySearchService.upsertOneDirectory(unchangedDir, List.of(rootDir));
+		gallerySearchService.upsertOneDirectory(removedDir, List.of(rootDir));
+
+		File newFile = writeFile(rootDir, "new.jpg");
+		writeFile(rootDir, "notes.txt");
+		assertTrue(modifiedFile.setLastModified(modifiedFile.lastModified() + 10_000));
+		Files.delete(removedFile.toPath());
+		Files.delete(removedDir.toPath());
+		createDirectory(rootDir, "new-dir");
+		File linkTarget = writeFile(outsideDir, "target.jpg");
+		Files.createSymbolicLink(new File(rootDir, "link.jpg").toPath(), linkTarget.toPath());
+
+		DirectoryDelta delta = gallerySearchService.findDirectoryDelta(rootDir);
+
+		// The symlinked file is indexed by the path of its target
+		assertEquals(Set.of(newFile.getPath(), modifiedFile.getPath(), linkTarget.getPath()),
+				delta.changedFiles().stream().map(ChangedFile::path).collect(Collectors.toSet()));
+		assertEquals(Set.of(rootDir.getPath()), delta.changedFiles().stream().map(ChangedFile::parentPath).collect(Collectors.toSet()));
+		assertEquals(modifiedFile.lastModified(), delta.changedFiles().stream().filter(c -> c.path().equals(modifiedFile.getPath()))
+				.findFirst().orElseThrow().lastModified());
+		assertEquals(Set.of("unchanged-dir", "new-dir"), getNames(delta.subdirectories()));
+		assertEquals(Set.of("new-dir"), getNames(delta.changedDirectories()));
+		assertEquals(Set.of(removedFile, removedDir), Set.copyOf(delta.vanished()));
+	}
+
+	@Test
+	public void testIndexedSymlinkedFileIsUpToDate() throws Exception {
+		File linkTarget = writeFile(outsideDir, "target.jpg");
+		Files.createSymbolicLink(new File(rootDir, "link.jpg").toPath(), linkTarget.toPath());
+		List<ChangedFile> changedFiles = gallerySearchService.findDirectoryDelta(rootDir).changedFiles();
+		gallerySearchService.writeBatch(changedFiles.stream().map(this::createExtractedFile).toList());
+
+		DirectoryDelta delta = gallerySearchService.findDirectoryDelta(rootDir);
+
+		// Neither extracted again, nor deleted as vanished
+		assertEquals(List.of(), delta.changedFiles());
+		assertEquals(List.of(), delta.vanished());
+	}
+
+	@Test
+	public void testIndexedDirectoryIsUpToDateUntilRemoved() throws Exception {
+		File unchangedFile = writeFile(rootDir, "unchanged.jpg");
+		index(unchangedFile);
+		File subdirectory = createDirectory(rootDir, "2024");
+		gallerySearchService.upsertOneDirectory(subdirectory, List.of(rootDir));
+
+		assertEquals(new DirectoryDelta(List.of(), List.of(subdirectory), List.of(), List.of()),
+				gallerySearchService.findDirectoryDelta(rootDir));
+
+		Files.delete(subdirectory.toPath());
+		Files.delete(unchangedFile.toPath());
+
+		assertEquals(Set.of(subdirectory, unchangedFile), Set.copyOf(gallerySearchService.findDirectoryDelta(rootDir).vanished()));
+	}
+
+	@Test
+	public void testFullRefreshWithNestedRootAndFailingDirectory() throws Exception {
+		File dir2024 = createDirectory(rootDir, "2024");
+		File nestedRoot = createDirectory(dir2024, "nested");
+		File failingDir = createDirectory(dir2024, "failing");
+		File belowFailingDir = createDirectory(failingDir, "below");
+		File dir2025 = createDirectory(rootDir, "2025");
+		List<File> indexedFiles = List.of(writeFile(rootDir, "a.jpg"), writeFile(dir2024, "b.jpg"), writeFile(nestedRoot, "c.jpg"),
+				writeFile(dir2025, "d.jpg"));
+		writeFile(failingDir, "e.jpg");
+		writeFile(belowFailingDir, "f.jpg");
+		gallerySearchService.galleryAuthorizationService = new FixedRootsAuthorizationService(
+				Map.of("photos", rootDir, "nested", nestedRoot), List.of(rootDir, nestedRoot));
+		failingDirectoryNames = Set.of("failing");
+
+		gallerySearchService.createOrUpdateAllDirectories(false);
+
+		List<String> expectedPaths = indexedFiles.stream().map(File::getPath).sorted().toList();
+		assertEquals(expectedPaths, findIndexedFilePaths());
+		assertEquals(expectedPaths, extractedFiles.stream().map(File::getPath).sorted().toList());
+		// The nested root is reached through the outer root, and is part of its subtree
+		assertEquals(List.of(findId(indexedFiles.get(2)), findId(nestedRoot), findId(dir2024), findId(rootDir)),
+				findAncestorIds(findId(indexedFiles.get(2))));
+		assertEquals(0, jdbi.withHandle(handle -> handle.createQuery("SELECT COUNT(*) FROM gallery_file WHERE path_on_disk = :path")
+				.bind("path", belowFailingDir.getPath()).mapTo(Integer.class).one()).intValue());
+
+		// Nothing has changed, so nothing is extracted again
+		gallerySearchService.createOrUpdateAllDirectories(false);
+
+		assertEquals(expectedPaths, findIndexedFilePaths());
+		assertEquals(indexedFiles.size(), extractedFiles.size());
+	}
+
+	private List<String> findIndexedFilePaths() {
+		return jdbi.withHandle(handle -> handle.createQuery("SELECT path_on_disk FROM gallery_file WHERE is_directory = FALSE")
+				.mapTo(String.class).list()).stream().sorted().toList();
+	}
+
+	private long findId(File file) {
+		return jdbi.withHandle(handle -> handle.createQuery("SELECT id FROM gallery_file WHERE path_on_disk = :path")
+				.bind("path", file.getPath()).mapTo(Long.class).one());
+	}
+
+	private List<Long> findAncestorIds(long fileId) {
+		return jdbi.withHandle(handle -> handle.createQuery(
+				"SELECT ancestor_id FROM gallery_file_ancestor WHERE descendant_id = :id ORDER BY depth")
+				.bind("id", fileId).mapTo(Long.class).list());
+	}
+
+	private void index(File... files) throws IOException {
+		List<ExtractedFile> extractedFiles = new ArrayList<>();
+		for (File file : files) {
+			extractedFiles.add(createExtractedFile(new ChangedFile(file, file.getCanonicalPath(), file.getParentFile().getCanonicalPath(),
+					file.lastModified(), file.length())));
+		}
+		gallerySearchService.writeBatch(extractedFiles);
+	}
+
+	private ExtractedFile createExtractedFile(ChangedFile changedFile) {
+		return new ExtractedFile(changedFile, new MetadataExtractionService.FileMetaData(null, null, null), "image/jpeg", false, null);
+	}
+
+	private File writeFile(File directory, String name) throws IOException {
+		File file = new File(directory, name);
+		Files.writeString(file.toPath(), name);
+		return file;
+	}
+
+	private File createDirectory(File parent, String name) throws IOException {
+		File directory = new File(parent, name);
+		Files.createDirectory(directory.toPath());
+		return directory.getCanonicalFile();
+	}
+
+	private Set<String> getNames(List<File> files) {
+		return files.stream().map(File::getName).collect(Collectors.toSet());
+	}
+
+}
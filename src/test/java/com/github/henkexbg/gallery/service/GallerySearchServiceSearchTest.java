@@ -0,0 +1,143 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.jdbi.v3.core.Jdbi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.github.henkexbg.gallery.bean.GalleryDirectory;
+import com.github.henkexbg.gallery.bean.SearchResult;
+import com.github.henkexbg.gallery.config.TestDatabase;
+import com.github.henkexbg.gallery.service.GallerySearchService.ChangedFile;
+import com.github.henkexbg.gallery.service.GallerySearchService.ExtractedFile;
+import com.github.henkexbg.gallery.service.GallerySearchService.PreparedSearch;
+import com.github.henkexbg.gallery.service.GallerySearchService.SearchQuery;
+import com.github.henkexbg.gallery.strategy.impl.FilenameToSearchTermsStrategyImpl;
+
+/**
+ * Tests searching by tags in {@link GallerySearchService}, against an H2 database, both with the matching files bound by ID and looked up
+ * via their tags.
+ *
+ * @author Henrik
+ *
+ */
+public class GallerySearchServiceSearchTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Jdbi jdbi;
+
+	private GallerySearchService gallerySearchService;
+
+	private File photosDir;
+
+	@Before
+	public void setUp() throws Exception {
+		jdbi = TestDatabase.create();
+		photosDir = temporaryFolder.newFolder("photos").getCanonicalFile();
+		File otherDir = temporaryFolder.newFolder("other").getCanonicalFile();
+		List<File> rootDirectories = List.of(photosDir, otherDir);
+		GalleryAuthorizationService galleryAuthorizationService = new FixedRootsAuthorizationService(Map.of("photos", photosDir),
+				rootDirectories);
+		GalleryService galleryService = new GalleryService();
+		galleryService.galleryAuthorizationService = galleryAuthorizationService;
+		TagIndex tagIndex = new TagIndex();
+		tagIndex.jdbi = jdbi;
+		ReflectionTestUtils.setField(tagIndex, "scopePaths", List.of(photosDir.getPath(), otherDir.getPath()));
+		gallerySearchService = new GallerySearchService();
+		gallerySearchService.jdbi = jdbi;
+		gallerySearchService.tagIndex = tagIndex;
+		gallerySearchService.searchResultCache = new SearchResultCache();
+		gallerySearchService.filenameToSearchTermsStrategy = new FilenameToSearchTermsStrategyImpl();
+		gallerySearchService.galleryAuthorizationService = galleryAuthorizationService;
+		gallerySearchService.galleryService = galleryService;
+		gallerySearchService.upsertOneDirectory(photosDir, rootDirectories);
+		gallerySearchService.upsertOneDirectory(otherDir, rootDirectories);
+
+		File stockholmDir = new File(photosDir, "stockholm");
+		Files.createDirectory(stockholmDir.toPath());
+		gallerySearchService.upsertOneDirectory(stockholmDir, rootDirectories);
+		writeMedia(stockholmDir, "harbour.jpg");
+		writeMedia(photosDir, "stockholm-1.jpg");
+		writeMedia(photosDir, "paris.jpg");
+		// Not within the roots of the current user
+		writeMedia(otherDir, "stockholm-2.jpg");
+	}
+
+	@After
+	public void tearDown() {
+		TestDatabase.shutdown(jdbi);
+	}
+
+	@Test
+	public void testMatchesOwnAndDirectoryTagsByFileIds() throws Exception {
+		PreparedSearch preparedSearch = gallerySearchService.prepareSearch(createQuery("stock", false));
+
+		// Only files within the roots of the current user are bound
+		assertEquals(2, preparedSearch.tagMatch().fileIds().length);
+		assertSearchResult(Set.of("stockholm"), Set.of("harbour.jpg", "stockholm-1.jpg"), createQuery("stock", false));
+	}
+
+	@Test
+	public void testMatchesOwnAndDirectoryTagsByTerms() throws Exception {
+		ReflectionTestUtils.setField(gallerySearchService, "maxBoundTagFileIds", 1);
+		PreparedSearch preparedSearch = gallerySearchService.prepareSearch(createQuery("stock", false));
+
+		assertNull(preparedSearch.tagMatch().fileIds());
+		assertEquals(List.of("stockholm"), preparedSearch.tagMatch().terms());
+		assertSearchResult(Set.of("stockholm"), Set.of("harbour.jpg", "stockholm-1.jpg"), createQuery("stock", false));
+	}
+
+	@Test
+	public void testFuzzySearchByTerms() throws Exception {
+		ReflectionTestUtils.setField(gallerySearchService, "maxBoundTagFileIds", 0);
+
+		assertSearchResult(Set.of("stockholm"), Set.of("harbour.jpg", "stockholm-1.jpg"), createQuery("stokholm", true));
+		assertSearchResult(Set.of(), Set.of(), createQuery("berlin", true));
+	}
+
+	@Test
+	public void testNoMatches() throws Exception {
+		PreparedSearch preparedSearch = gallerySearchService.prepareSearch(createQuery("berlin", false));
+
+		assertArrayEquals(new long[0], preparedSearch.tagMatch().fileIds());
+		assertSearchResult(Set.of(), Set.of(), createQuery("berlin", false));
+	}
+
+	private void assertSearchResult(Set<String> expectedDirectoryNames, Set<String> expectedMediaNames, SearchQuery searchQuery)
+			throws Exception {
+		SearchResult searchResult = gallerySearchService.search(searchQuery);
+		assertEquals(expectedDirectoryNames, searchResult.directories().stream().map(GalleryDirectory::getName).collect(Collectors.toSet()));
+		assertEquals(expectedMediaNames, searchResult.files().stream().map(f -> f.getActualFile().getName()).collect(Collectors.toSet()));
+	}
+
+	private SearchQuery createQuery(String searchTerm, boolean fuzzy) {
+		return new SearchQuery(null, searchTerm, fuzzy, null, null, null, null, null, null);
+	}
+
+	private void writeMedia(File directory, String name) throws IOException {
+		File file = new File(directory, name);
+		Files.writeString(file.toPath(), name);
+		ChangedFile changedFile = new ChangedFile(file, file.getCanonicalPath(), directory.getCanonicalPath(), file.lastModified(),
+				file.length());
+		gallerySearchService.writeBatch(List.of(new ExtractedFile(changedFile, new MetadataExtractionService.FileMetaData(null, null, null),
+				"image/jpeg", false, null)));
+	}
+
+}
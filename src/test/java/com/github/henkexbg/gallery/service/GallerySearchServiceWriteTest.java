@@ -0,0 +1,243 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import org.jdbi.v3.core.Jdbi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.henkexbg.gallery.bean.Location;
+import com.github.henkexbg.gallery.config.TestDatabase;
+import com.github.henkexbg.gallery.service.GallerySearchService.ChangedFile;
+import com.github.henkexbg.gallery.service.GallerySearchService.ExtractedFile;
+import com.github.henkexbg.gallery.strategy.impl.FilenameToSearchTermsStrategyImpl;
+
+/**
+ * Tests writing batches of indexed files to an H2 database in {@link GallerySearchService}.
+ *
+ * @author Henrik
+ *
+ */
+public class GallerySearchServiceWriteTest {
+
+	private static final Instant BEACH_DATE = Instant.parse("2024-07-01T10:00:00Z");
+
+	private static final Instant SNOW_DATE = Instant.parse("2024-12-24T15:00:00Z");
+
+	private static final Instant CITY_DATE = Instant.parse("2025-03-10T08:00:00Z");
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Jdbi jdbi;
+
+	private GallerySearchService gallerySearchService;
+
+	private File rootDir;
+
+	private File dir2024;
+
+	private File dir2025;
+
+	@Before
+	public void setUp() throws Exception {
+		jdbi = TestDatabase.create();
+		TagIndex tagIndex = new TagIndex();
+		tagIndex.jdbi = jdbi;
+		gallerySearchService = new GallerySearchService();
+		gallerySearchService.jdbi = jdbi;
+		gallerySearchService.tagIndex = tagIndex;
+		gallerySearchService.searchResultCache = new SearchResultCache();
+		gallerySearchService.filenameToSearchTermsStrategy = new FilenameToSearchTermsStrategyImpl();
+
+		rootDir = temporaryFolder.newFolder("photos").getCanonicalFile();
+		dir2024 = createDirectory(rootDir, "2024");
+		dir2025 = createDirectory(rootDir, "2025");
+		List<File> rootDirectories = List.of(rootDir);
+		gallerySearchService.upsertOneDirectory(rootDir, rootDirectories);
+		gallerySearchService.upsertOneDirectory(dir2024, rootDirectories);
+		gallerySearchService.upsertOneDirectory(dir2025, rootDirectories);
+	}
+
+	@After
+	public void tearDown() {
+		TestDatabase.shutdown(jdbi);
+	}
+
+	@Test
+	public void testWriteBatchAcrossDirectories() throws Exception {
+		ExtractedFile beach = createExtractedFile(dir2024, "beach-day.jpg", BEACH_DATE, null);
+		ExtractedFile snow = createExtractedFile(dir2024, "snow.jpg", SNOW_DATE, null);
+		ExtractedFile city = createExtractedFile(dir2025, "city.jpg", CITY_DATE, List.of(createLocation()));
+
+		gallerySearchService.writeBatch(List.of(beach, snow, city));
+
+		long beachId = findId(beach);
+		long cityId = findId(city);
+		assertEquals(3, jdbi.withHandle(handle -> handle.createQuery(
+				"SELECT COUNT(*) FROM gallery_file WHERE is_directory = FALSE").mapTo(Integer.class).one()).intValue());
+		assertEquals(findId(dir2024), jdbi.withHandle(handle -> handle.createQuery("SELECT parent_id FROM gallery_file WHERE id = :id")
+				.bind("id", beachId).mapTo(Long.class).one()).longValue());
+
+		assertEquals(Set.of("beach", "day"), findTags(beachId, "FILENAME"));
+		assertEquals(Set.of("city"), findTags(cityId, "FILENAME"));
+		assertEquals(Set.of("Katoomba", "Australia", "AU"), findTags(cityId, "LOCATION"));
+		assertEquals(Set.of(), findTags(beachId, "LOCATION"));
+
+		assertEquals(List.of(beachId, findId(dir2024), findId(rootDir)), findAncestorIds(beachId));
+		assertEquals(List.of(cityId, findId(dir2025), findId(rootDir)), findAncestorIds(cityId));
+
+		assertEquals(SNOW_DATE, findDateTaken(findId(dir2024)));
+		assertEquals(CITY_DATE, findDateTaken(findId(dir2025)));
+		assertEquals(CITY_DATE, findDateTaken(findId(rootDir)));
+	}
+
+	@Test
+	public void testRewriteReplacesTags() throws Exception {
+		ExtractedFile city = createExtractedFile(dir2025, "city.jpg", CITY_DATE, List.of(createLocation()));
+		gallerySearchService.writeBatch(List.of(city));
+		gallerySearchService.writeBatch(List.of(city));
+
+		long cityId = findId(city);
+		assertEquals(1, jdbi.withHandle(handle -> handle.createQuery(
+				"SELECT COUNT(*) FROM gallery_file WHERE is_directory = FALSE").mapTo(Integer.class).one()).intValue());
+		assertEquals(4, jdbi.withHandle(handle -> handle.createQuery("SELECT COUNT(*) FROM tag WHERE file_id = :id")
+				.bind("id", cityId).mapTo(Integer.class).one()).intValue());
+		assertEquals(3, findAncestorIds(cityId).size());
+	}
+
+	@Test
+	public void testSingleFileWrite() throws Exception {
+		ExtractedFile beach = createExtractedFile(dir2024, "beach-day.jpg", BEACH_DATE, null);
+
+		gallerySearchService.writeFiles(List.of(beach));
+
+		assertTrue(findId(beach) > 0);
+		assertEquals(BEACH_DATE, findDateTaken(findId(rootDir)));
+	}
+
+	@Test
+	public void testNestedRootDirectoryIsLinkedToOuterRoot() throws Exception {
+		File nestedRoot = createDirectory(dir2024, "nested");
+		gallerySearchService.upsertOneDirectory(nestedRoot, List.of(rootDir, nestedRoot));
+		ExtractedFile beach = createExtractedFile(nestedRoot, "beach.jpg", BEACH_DATE, null);
+		gallerySearchService.writeBatch(List.of(beach));
+
+		long beachId = findId(beach);
+		assertEquals(List.of(beachId, findId(nestedRoot), findId(dir2024), findId(rootDir)), findAncestorIds(beachId));
+		assertEquals(BEACH_DATE, findDateTaken(findId(rootDir)));
+	}
+
+	@Test
+	public void testReparentedDirectoryGetsNewAncestry() throws Exception {
+		File nestedRoot = createDirectory(dir2024, "nested");
+		gallerySearchService.upsertOneDirectory(nestedRoot, List.of(rootDir, nestedRoot));
+		ExtractedFile beach = createExtractedFile(nestedRoot, "beach.jpg", BEACH_DATE, null);
+		gallerySearchService.writeBatch(List.of(beach));
+		long beachId = findId(beach);
+		long nestedRootId = findId(nestedRoot);
+		// Stale ancestry, as if the directory had been below 2025 before
+		jdbi.useTransaction(handle -> gallerySearchService.upsertAncestry(handle, nestedRootId, findId(dir2025)));
+
+		gallerySearchService.upsertOneDirectory(nestedRoot, List.of(rootDir, nestedRoot));
+
+		assertEquals(List.of(beachId, nestedRootId, findId(dir2024), findId(rootDir)), findAncestorIds(beachId));
+		assertEquals(List.of(0, 1, 2, 3), jdbi.withHandle(handle -> handle.createQuery(
+				"SELECT depth FROM gallery_file_ancestor WHERE descendant_id = :id ORDER BY depth")
+				.bind("id", beachId).mapTo(Integer.class).list()));
+		assertEquals(List.of(nestedRootId, findId(dir2024), findId(rootDir)), findAncestorIds(nestedRootId));
+	}
+
+	@Test
+	public void testSymlinkedDirectoryIsLinkedToContainingDirectory() throws Exception {
+		File outsideDir = temporaryFolder.newFolder("elsewhere").getCanonicalFile();
+		File link = new File(dir2024, "linked");
+		Files.createSymbolicLink(link.toPath(), outsideDir.toPath());
+
+		gallerySearchService.upsertOneDirectory(link, List.of(rootDir));
+		ExtractedFile beach = createExtractedFile(link, "beach.jpg", BEACH_DATE, null);
+		gallerySearchService.writeBatch(List.of(beach));
+
+		// Indexed by the path of the target, but below the directory containing the link
+		long linkId = findId(outsideDir);
+		assertEquals(List.of(linkId, findId(dir2024), findId(rootDir)), findAncestorIds(linkId));
+		assertEquals(List.of(findId(beach), linkId, findId(dir2024), findId(rootDir)), findAncestorIds(findId(beach)));
+		assertEquals(BEACH_DATE, findDateTaken(findId(rootDir)));
+	}
+
+	@Test
+	public void testRootDirectoryWithoutIndexedParent() throws Exception {
+		assertEquals(List.of(findId(rootDir)), findAncestorIds(findId(rootDir)));
+		assertEquals(0, jdbi.withHandle(handle -> handle.createQuery(
+				"SELECT COUNT(*) FROM gallery_file WHERE parent_id IS NOT NULL AND id = :id")
+				.bind("id", findId(rootDir)).mapTo(Integer.class).one()).intValue());
+	}
+
+	private File createDirectory(File parent, String name) throws IOException {
+		File directory = new File(parent, name);
+		Files.createDirectory(directory.toPath());
+		return directory.getCanonicalFile();
+	}
+
+	private ExtractedFile createExtractedFile(File directory, String name, Instant dateTaken, List<Location> locations)
+			throws IOException {
+		File file = new File(directory, name);
+		Files.writeString(file.toPath(), name);
+		ChangedFile changedFile = new ChangedFile(file, file.getCanonicalPath(), directory.getCanonicalPath(), file.lastModified(),
+				file.length());
+		Double gpsLatitude = locations != null ? -33.7 : null;
+		Double gpsLongitude = locations != null ? 150.3 : null;
+		return new ExtractedFile(changedFile, new MetadataExtractionService.FileMetaData(dateTaken, gpsLatitude, gpsLongitude),
+				"image/jpeg", false, locations);
+	}
+
+	private Location createLocation() {
+		Location location = new Location();
+		location.setName("Katoomba");
+		location.setCountryIsoA2("AU");
+		location.setFeatureCode("PPL");
+		return location;
+	}
+
+	private long findId(ExtractedFile extractedFile) {
+		return findId(extractedFile.changedFile().path());
+	}
+
+	private long findId(File directory) {
+		return findId(directory.getPath());
+	}
+
+	private long findId(String path) {
+		return jdbi.withHandle(handle -> handle.createQuery("SELECT id FROM gallery_file WHERE path_on_disk = :path")
+				.bind("path", path).mapTo(Long.class).one());
+	}
+
+	private Set<String> findTags(long fileId, String source) {
+		return jdbi.withHandle(handle -> handle.createQuery("SELECT text FROM tag WHERE file_id = :id AND source = :source")
+				.bind("id", fileId).bind("source", source).mapTo(String.class).set());
+	}
+
+	private List<Long> findAncestorIds(long fileId) {
+		return jdbi.withHandle(handle -> handle.createQuery(
+				"SELECT ancestor_id FROM gallery_file_ancestor WHERE descendant_id = :id ORDER BY depth")
+				.bind("id", fileId).mapTo(Long.class).list());
+	}
+
+	private Instant findDateTaken(long id) {
+		return jdbi.withHandle(handle -> handle.createQuery("SELECT date_taken FROM gallery_file WHERE id = :id")
+				.bind("id", id).mapTo(Timestamp.class).one()).toInstant();
+	}
+
+}
@@ -0,0 +1,123 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.henkexbg.gallery.bean.GalleryFile;
+import com.github.henkexbg.gallery.util.GalleryFileUtils;
+
+/**
+ * Tests the versioned filenames of derivatives, such as resized images, and the removal of stale ones in {@link GalleryService}.
+ *
+ * @author Henrik
+ *
+ */
+public class GalleryServiceDerivativeTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private GalleryService galleryService;
+
+	private File originalsDir;
+
+	private int compositeImageCount = 0;
+
+	@Before
+	public void setUp() throws Exception {
+		originalsDir = temporaryFolder.newFolder("originals").getCanonicalFile();
+		galleryService = new GalleryService();
+		galleryService.resizeDir = temporaryFolder.newFolder("resized").getCanonicalFile();
+		galleryService.allowedFileExtensions = Set.of("jpg", "mp4");
+		galleryService.imageResizeService = new ImageResizeService() {
+
+			@Override
+			public void resizeImage(File origImage, File newImage, int width, int height) throws IOException {
+				newImage.getParentFile().mkdirs();
+				Files.writeString(newImage.toPath(), "resized " + origImage.getName());
+			}
+
+			@Override
+			public void generateCompositeImage(List<File> origImages, File newImage, int width, int height) throws IOException {
+				compositeImageCount++;
+				Files.writeString(newImage.toPath(), "composite of " + origImages.size());
+			}
+		};
+		galleryService.setUp();
+	}
+
+	@Test
+	public void testVersionedFilename() throws Exception {
+		File original = createOriginal("a.jpg", "original", 1_000_000);
+		String version = GalleryFileUtils.createFingerprint(1_000_000, original.length());
+
+		GalleryFile resizedImage = galleryService.getImageForRealFile(original, 100, 200);
+
+		assertEquals(version, resizedImage.getVersion());
+		assertEquals(galleryService.determineResizedImageFilename(original, version, 100, 200), resizedImage.getActualFile());
+		assertEquals(version + GalleryService.VERSION_SEPARATOR + "a.jpg", resizedImage.getActualFile().getName());
+		assertTrue(resizedImage.getActualFile().exists());
+	}
+
+	@Test
+	public void testChangedOriginalDeletesStaleDerivatives() throws Exception {
+		File original = createOriginal("a.jpg", "original", 1_000_000);
+		File oldDerivative = galleryService.getImageForRealFile(original, 100, 200).getActualFile();
+		File otherSizeDerivative = galleryService.getImageForRealFile(original, 300, 300).getActualFile();
+		File legacyDerivative = new File(oldDerivative.getParentFile(), "a.jpg");
+		Files.writeString(legacyDerivative.toPath(), "unversioned");
+		File otherOriginalDerivative = galleryService.getImageForRealFile(createOriginal("b.jpg", "other", 1_000_000), 100, 200)
+				.getActualFile();
+		createOriginal("a.jpg", "edited original", 2_000_000);
+
+		File newDerivative = galleryService.getImageForRealFile(original, 100, 200).getActualFile();
+
+		assertNotEquals(oldDerivative, newDerivative);
+		assertTrue(newDerivative.exists());
+		assertFalse(oldDerivative.exists());
+		assertFalse(legacyDerivative.exists());
+		assertTrue(otherSizeDerivative.exists());
+		assertTrue(otherOriginalDerivative.exists());
+	}
+
+	@Test
+	public void testDirectoryImageVersionOnlyChangesWithImages() throws Exception {
+		galleryService.directoryImageMaxAgeMinutes = 0;
+		File image = createOriginal("a.jpg", "original", 1_000_000);
+		createOriginal("b.jpg", "original", 1_500_000);
+
+		String version = galleryService.getImageForRealFile(originalsDir, 100, 100).getVersion();
+		// Checked again, as the max age has passed, but nothing has changed
+		Thread.sleep(5);
+		assertEquals(version, galleryService.getImageForRealFile(originalsDir, 100, 100).getVersion());
+		assertEquals(1, compositeImageCount);
+
+		createOriginal(image.getName(), "edited original", 2_000_000);
+		String newVersion = galleryService.getImageForRealFile(originalsDir, 100, 100).getVersion();
+
+		assertNotEquals(version, newVersion);
+		assertEquals(2, compositeImageCount);
+		assertEquals(GalleryFileUtils.createFingerprint(2_000_000, "composite of 2".length()), newVersion);
+	}
+
+	private File createOriginal(String name, String content, long lastModified) throws IOException {
+		File original = new File(originalsDir, name);
+		Files.writeString(original.toPath(), content);
+		assertTrue(original.setLastModified(lastModified));
+		return original;
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.henkexbg.gallery.service.GallerySearchService.FileAction;
+import com.github.henkexbg.gallery.service.GallerySearchService.FileAndAction;
+
+/**
+ * Tests the coalescing and overflow handling of {@link IndexUpdateQueue}.
+ *
+ * @author Henrik
+ *
+ */
+public class IndexUpdateQueueTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testLatestActionWins() throws Exception {
+		IndexUpdateQueue queue = new IndexUpdateQueue(10);
+		File file = new File("/data/photos/a.jpg");
+		queue.add(new FileAndAction(file, FileAction.UPDATE));
+		queue.add(new FileAndAction(file, FileAction.UPDATE));
+		queue.add(new FileAndAction(file, FileAction.DELETE));
+
+		IndexUpdateQueue.Batch batch = queue.takeAll();
+
+		assertEquals(1, batch.size());
+		assertEquals(List.of(new FileAndAction(file, FileAction.DELETE)), batch.actionsPerDirectory().get(new File("/data/photos")));
+		assertEquals(2, queue.getCoalesced());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testGroupedByDirectoryWithParentsFirst() throws Exception {
+		IndexUpdateQueue queue = new IndexUpdateQueue(10);
+		queue.add(new FileAndAction(new File("/data/photos/2024/a.jpg"), FileAction.UPDATE));
+		queue.add(new FileAndAction(new File("/data/photos/2024"), FileAction.UPDATE));
+		queue.add(new FileAndAction(new File("/data/photos/2024/b.jpg"), FileAction.UPDATE));
+
+		IndexUpdateQueue.Batch batch = queue.takeAll();
+
+		assertEquals(List.of(new File("/data/photos"), new File("/data/photos/2024")), List.copyOf(batch.actionsPerDirectory().keySet()));
+		assertEquals(2, batch.actionsPerDirectory().get(new File("/data/photos/2024")).size());
+	}
+
+	@Test
+	public void testOverflowRescansDirectory() throws Exception {
+		IndexUpdateQueue queue = new IndexUpdateQueue(1);
+		queue.add(new FileAndAction(new File("/data/photos/a.jpg"), FileAction.UPDATE));
+		queue.add(new FileAndAction(new File("/data/other/b.jpg"), FileAction.UPDATE));
+		queue.add(new FileAndAction(new File("/data/photos/a.jpg"), FileAction.DELETE));
+
+		IndexUpdateQueue.Batch batch = queue.takeAll();
+
+		assertEquals(1, batch.size());
+		assertEquals(List.of(new File("/data/other")), batch.rescanDirectories());
+		assertFalse(batch.fullRescan());
+		assertEquals(1, queue.getOverflowed());
+	}
+
+	@Test
+	public void testFullRescanWhenRescanDirectoriesOverflow() throws Exception {
+		IndexUpdateQueue queue = new IndexUpdateQueue(1);
+		queue.add(new FileAndAction(new File("/data/photos/a.jpg"), FileAction.UPDATE));
+		queue.add(new FileAndAction(new File("/data/other/b.jpg"), FileAction.UPDATE));
+		queue.add(new FileAndAction(new File("/data/third/c.jpg"), FileAction.UPDATE));
+
+		IndexUpdateQueue.Batch batch = queue.takeAll();
+
+		assertTrue(batch.fullRescan());
+		assertTrue(batch.rescanDirectories().isEmpty());
+	}
+
+	@Test
+	public void testRecreatedDirectoryIsRescanned() throws Exception {
+		IndexUpdateQueue queue = new IndexUpdateQueue(10);
+		File directory = temporaryFolder.newFolder("2024");
+		File file = temporaryFolder.newFile("a.jpg");
+		queue.add(new FileAndAction(directory, FileAction.DELETE));
+		queue.add(new FileAndAction(directory, FileAction.UPDATE));
+		queue.add(new FileAndAction(file, FileAction.DELETE));
+		queue.add(new FileAndAction(file, FileAction.UPDATE));
+
+		IndexUpdateQueue.Batch batch = queue.takeAll();
+
+		assertEquals(List.of(directory.getAbsoluteFile()), batch.rescanDirectories());
+		assertEquals(1, batch.size());
+		assertEquals(List.of(new FileAndAction(file, FileAction.UPDATE)),
+				batch.actionsPerDirectory().get(file.getAbsoluteFile().getParentFile()));
+		assertEquals(2, queue.getCoalesced());
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests passing items through the stages of {@link IndexingPipeline}.
+ *
+ * @author Henrik
+ *
+ */
+public class IndexingPipelineTest {
+
+	private IndexingPipeline pipeline;
+
+	private IndexingPipeline.Stage<Integer> squareStage;
+
+	private IndexingPipeline.Stage<Integer> collectStage;
+
+	private final List<Integer> collected = Collections.synchronizedList(new ArrayList<>());
+
+	private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() {
+		pipeline = new IndexingPipeline();
+		squareStage = pipeline.addStage("square", 4, 2, 1, 0, items -> {
+			int item = items.getFirst();
+			if (item < 0) {
+				throw new IllegalArgumentException("Negative: " + item);
+			}
+			collectStage.submit(item * item);
+		});
+		collectStage = pipeline.addStage("collect", 1, 2, 10, 50, items -> {
+			batchSizes.add(items.size());
+			collected.addAll(items);
+		});
+		pipeline.start();
+	}
+
+	@After
+	public void tearDown() {
+		pipeline.shutdown();
+	}
+
+	@Test
+	public void testAllItemsPassAllStages() throws Exception {
+		for (int i = 1; i <= 100; i++) {
+			squareStage.submit(i);
+		}
+		pipeline.awaitIdle();
+
+		assertEquals(100, collected.size());
+		assertEquals(338350, collected.stream().mapToInt(Integer::intValue).sum());
+		assertTrue(batchSizes.stream().allMatch(size -> size >= 1 && size <= 10));
+		assertTrue(pipeline.isIdle());
+	}
+
+	@Test
+	public void testFailedItemsAreCounted() throws Exception {
+		squareStage.submit(-1);
+		squareStage.submit(2);
+		pipeline.awaitIdle();
+
+		assertEquals(List.of(4), collected);
+		List<IndexingPipeline.StageStats> stats = pipeline.getStats();
+		assertEquals("square", stats.get(0).name());
+		assertEquals(1, stats.get(0).processed());
+		assertEquals(1, stats.get(0).failed());
+		assertEquals(0, stats.get(0).pending());
+		assertEquals(1, stats.get(1).processed());
+		assertEquals(2, stats.get(1).queueCapacity());
+	}
+
+}
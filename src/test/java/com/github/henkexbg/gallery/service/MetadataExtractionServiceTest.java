@@ -0,0 +1,53 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests parsing the batched JSON output of exiftool in {@link MetadataExtractionService}.
+ *
+ * @author Henrik
+ *
+ */
+public class MetadataExtractionServiceTest {
+
+	private final MetadataExtractionService metadataExtractionService = new MetadataExtractionService();
+
+	@Test
+	public void testParseResultsForManyFiles() throws Exception {
+		File withGps = new File("/data/photos/a.jpg");
+		File withoutGps = new File("/data/photos/b.jpg");
+		File unreadable = new File("/data/photos/c.jpg");
+		String output = """
+				[{
+				  "SourceFile": "%s",
+				  "CreateDate": "2023:05:06 13:28:34",
+				  "GPSLatitude": -33.4,
+				  "GPSLongitude": 151.3
+				},
+				{
+				  "SourceFile": "%s",
+				  "CreateDate": "0000:00:00 00:00:00"
+				}]
+				""".formatted(withGps.getAbsolutePath().replace('\\', '/'), withoutGps.getAbsolutePath().replace('\\', '/'));
+
+		Map<File, MetadataExtractionService.FileMetaData> metadataPerFile =
+				metadataExtractionService.parseResults(List.of(withGps, withoutGps, unreadable), new ObjectMapper().readTree(output));
+
+		assertEquals(2, metadataPerFile.size());
+		assertEquals(new MetadataExtractionService.FileMetaData(Instant.parse("2023-05-06T13:28:34Z"), -33.4, 151.3),
+				metadataPerFile.get(withGps));
+		assertEquals(new MetadataExtractionService.FileMetaData(null, null, null), metadataPerFile.get(withoutGps));
+		assertNull(metadataPerFile.get(unreadable));
+	}
+
+}
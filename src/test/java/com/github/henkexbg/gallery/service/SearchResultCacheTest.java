@@ -0,0 +1,114 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.github.henkexbg.gallery.bean.SearchResult;
+
+/**
+ * Tests the version based invalidation of {@link SearchResultCache}.
+ *
+ * @author Henrik
+ *
+ */
+public class SearchResultCacheTest {
+
+	private static final Map<String, String> ROOT_PATHS = Map.of("photos", "/data/photos");
+
+	private SearchResultCache searchResultCache;
+
+	@Before
+	public void setUp() {
+		searchResultCache = new SearchResultCache();
+		ReflectionTestUtils.setField(searchResultCache, "maxEntries", 2);
+	}
+
+	@Test
+	public void testHitWhileUnchanged() {
+		SearchResultCache.Key key = createKey("photos/2024");
+		SearchResult result = createResult();
+		long[] baseIds = { 2 };
+		searchResultCache.put(key, result, baseIds, searchResultCache.getVersions(baseIds));
+
+		assertSame(result, searchResultCache.get(key));
+		assertSame(result, searchResultCache.get(createKey("photos/2024")));
+		assertEquals(2, searchResultCache.getStats().hits());
+	}
+
+	@Test
+	public void testOnlyChangedSubtreeIsInvalidated() {
+		SearchResultCache.Key key2024 = createKey("photos/2024");
+		SearchResultCache.Key key2025 = createKey("photos/2025");
+		long[] baseIds2024 = { 2 };
+		long[] baseIds2025 = { 3 };
+		searchResultCache.put(key2024, createResult(), baseIds2024, searchResultCache.getVersions(baseIds2024));
+		searchResultCache.put(key2025, createResult(), baseIds2025, searchResultCache.getVersions(baseIds2025));
+
+		// A file in 2024 changed. Its ancestors are 2024 and the root
+		searchResultCache.invalidate(List.of(2L, 1L));
+
+		assertNull(searchResultCache.get(key2024));
+		assertEquals(1, searchResultCache.getStats().invalidated());
+		assertEquals(1, searchResultCache.getStats().entries());
+		assertEquals(0, searchResultCache.getStats().evictions());
+		searchResultCache.get(key2025);
+		assertEquals(1, searchResultCache.getStats().hits());
+	}
+
+	@Test
+	public void testWriteDuringSearchInvalidatesResult() {
+		SearchResultCache.Key key = createKey("photos/2024");
+		long[] baseIds = { 2 };
+		long[] versionsBeforeSearch = searchResultCache.getVersions(baseIds);
+		searchResultCache.invalidate(List.of(2L));
+		searchResultCache.put(key, createResult(), baseIds, versionsBeforeSearch);
+
+		assertNull(searchResultCache.get(key));
+	}
+
+	@Test
+	public void testClearInvalidatesResultOfOngoingSearch() {
+		SearchResultCache.Key key = createKey("photos/2024");
+		long[] baseIds = { 2 };
+		long[] versionsBeforeSearch = searchResultCache.getVersions(baseIds);
+		searchResultCache.clear();
+		searchResultCache.put(key, createResult(), baseIds, versionsBeforeSearch);
+
+		assertNull(searchResultCache.get(key));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		SearchResultCache.Key key1 = createKey("photos/1");
+		SearchResultCache.Key key2 = createKey("photos/2");
+		SearchResultCache.Key key3 = createKey("photos/3");
+		long[] baseIds = { 1 };
+		searchResultCache.put(key1, createResult(), baseIds, searchResultCache.getVersions(baseIds));
+		searchResultCache.put(key2, createResult(), baseIds, searchResultCache.getVersions(baseIds));
+		searchResultCache.get(key1);
+		searchResultCache.put(key3, createResult(), baseIds, searchResultCache.getVersions(baseIds));
+
+		assertNull(searchResultCache.get(key2));
+		assertEquals(1, searchResultCache.getStats().evictions());
+		assertEquals(2, searchResultCache.getStats().entries());
+	}
+
+	private SearchResultCache.Key createKey(String publicPath) {
+		return new SearchResultCache.Key(ROOT_PATHS, new GallerySearchService.SearchQuery(publicPath, null, false, null, null, null, null,
+				null, null));
+	}
+
+	private SearchResult createResult() {
+		return new SearchResult(Collections.emptyList(), Collections.emptyList(), null, null);
+	}
+
+}
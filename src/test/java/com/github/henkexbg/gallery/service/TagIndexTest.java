@@ -0,0 +1,115 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.github.henkexbg.gallery.bean.TagSuggestion;
+import com.github.henkexbg.gallery.service.TagIndex.TermMatch;
+
+/**
+ * Tests the term dictionary, and scoping of searches and suggestions, in {@link TagIndex}.
+ *
+ * @author Henrik
+ *
+ */
+public class TagIndexTest {
+
+	private static final String ALL_ROOT = "/data";
+
+	private static final String FAMILY_ROOT = "/data/family";
+
+	private TagIndex tagIndex;
+
+	@Before
+	public void setUp() {
+		tagIndex = new TagIndex();
+		// Longest first, as set when root directories are loaded
+		ReflectionTestUtils.setField(tagIndex, "scopePaths", List.of(FAMILY_ROOT, ALL_ROOT));
+		tagIndex.setTerms(1, "/data/family/a.jpg", List.of("Stockholm", "Sweden"));
+		tagIndex.setTerms(2, "/data/family/b.jpg", List.of("Stockholm", "Sweden"));
+		tagIndex.setTerms(3, "/data/work/c.jpg", List.of("Stockport", "stockholm"));
+		tagIndex.setTerms(4, "/data/work/d.jpg", List.of("Stockport"));
+		tagIndex.setTerms(5, "/data/work/e.jpg", List.of("Stockport"));
+	}
+
+	@Test
+	public void testSuggestionsAreRankedByCount() {
+		List<TagSuggestion> suggestions = tagIndex.suggest("STO", List.of(ALL_ROOT), 10);
+
+		assertEquals(List.of(new TagSuggestion("Stockholm", 3), new TagSuggestion("Stockport", 3)), suggestions);
+		assertEquals(List.of(new TagSuggestion("Stockholm", 3)), tagIndex.suggest("sto", List.of(ALL_ROOT), 1));
+	}
+
+	@Test
+	public void testSuggestionsAreRestrictedToRoots() {
+		List<TagSuggestion> suggestions = tagIndex.suggest("sto", List.of(FAMILY_ROOT), 10);
+
+		assertEquals(List.of(new TagSuggestion("Stockholm", 2)), suggestions);
+		assertTrue(tagIndex.suggest("sto", List.of("/data/other"), 10).isEmpty());
+	}
+
+	@Test
+	public void testUpdatedAndRemovedFilesAreNotCounted() {
+		tagIndex.setTerms(3, "/data/work/c.jpg", List.of("Sweden"));
+		tagIndex.removeFiles(List.of(4L));
+
+		assertEquals(List.of(new TagSuggestion("Stockholm", 2), new TagSuggestion("Stockport", 1)),
+				tagIndex.suggest("sto", List.of(ALL_ROOT), 10));
+		assertArrayEquals(new long[] { 1, 2, 3 }, findFileIdsByPrefixes("swe"));
+	}
+
+	@Test
+	public void testSearchesAreRestrictedToScopesOfBaseDirectories() {
+		TermMatch termMatch = tagIndex.findByPrefixes(List.of("sto"), List.of(FAMILY_ROOT), Integer.MAX_VALUE);
+
+		assertEquals(List.of("stockholm"), termMatch.terms());
+		assertArrayEquals(new long[] { 1, 2 }, termMatch.fileIds());
+		// Within the scope of the closest root containing the directory
+		assertArrayEquals(new long[] { 3, 4, 5 },
+				tagIndex.findByPrefixes(List.of("sto"), List.of("/data/work"), Integer.MAX_VALUE).fileIds());
+		assertArrayEquals(new long[] { 1, 2 }, tagIndex.findByFuzzyTerms(List.of("holm"), List.of(FAMILY_ROOT), Integer.MAX_VALUE).fileIds());
+		assertArrayEquals(new long[0], tagIndex.findByPrefixes(List.of("sto"), List.of("/other"), Integer.MAX_VALUE).fileIds());
+	}
+
+	@Test
+	public void testOnlyTermsAreReturnedIfTooManyFilesMatch() {
+		assertArrayEquals(new long[] { 1, 2 }, tagIndex.findByPrefixes(List.of("sto"), List.of(FAMILY_ROOT), 2).fileIds());
+
+		TermMatch termMatch = tagIndex.findByPrefixes(List.of("sto"), List.of(ALL_ROOT), 4);
+
+		assertEquals(List.of("stockholm", "stockport"), termMatch.terms());
+		assertNull(termMatch.fileIds());
+	}
+
+	@Test
+	public void testFuzzyTermsMatchSubstringsAndTypos() {
+		assertArrayEquals(new long[0], findFileIdsByPrefixes("holm"));
+		assertArrayEquals(new long[] { 1, 2, 3 }, findFileIdsByFuzzyTerms("holm"));
+		assertArrayEquals(new long[] { 1, 2, 3 }, findFileIdsByFuzzyTerms("Stokholm"));
+		assertArrayEquals(new long[] { 1, 2 }, findFileIdsByFuzzyTerms("swedn"));
+	}
+
+	@Test
+	public void testRemovedTermsAreNotFoundByTrigrams() {
+		tagIndex.removeFiles(List.of(3L, 4L, 5L));
+
+		assertArrayEquals(new long[0], findFileIdsByFuzzyTerms("port"));
+	}
+
+	private long[] findFileIdsByPrefixes(String term) {
+		return tagIndex.findByPrefixes(List.of(term), List.of(ALL_ROOT), Integer.MAX_VALUE).fileIds();
+	}
+
+	private long[] findFileIdsByFuzzyTerms(String term) {
+		return tagIndex.findByFuzzyTerms(List.of(term), List.of(ALL_ROOT), Integer.MAX_VALUE).fileIds();
+	}
+
+}
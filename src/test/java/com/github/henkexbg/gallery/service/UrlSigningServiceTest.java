@@ -0,0 +1,118 @@
+package com.github.henkexbg.gallery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Tests creating and verifying signed URLs in {@link UrlSigningService}.
+ *
+ * @author Henrik
+ *
+ */
+public class UrlSigningServiceTest {
+
+	private static final long VALIDITY_SECONDS = 3600;
+
+	private UrlSigningService urlSigningService;
+
+	@Before
+	public void setUp() {
+		urlSigningService = createUrlSigningService("secret", VALIDITY_SECONDS);
+	}
+
+	@Test
+	public void testValidSignature() {
+		Map<String, String> parameters = parseQuery(urlSigningService.createSignedQuery("image:42"));
+		long expires = Long.parseLong(parameters.get(UrlSigningService.EXPIRES_PARAMETER));
+
+		assertTrue(urlSigningService.isValid("image:42", expires, parameters.get(UrlSigningService.SIGNATURE_PARAMETER)));
+		// The same URL for the same resource within a validity period, so that it can be cached
+		assertEquals(parameters, parseQuery(urlSigningService.createSignedQuery("image:42")));
+	}
+
+	@Test
+	public void testTamperedSignature() {
+		Map<String, String> parameters = parseQuery(urlSigningService.createSignedQuery("image:42"));
+		long expires = Long.parseLong(parameters.get(UrlSigningService.EXPIRES_PARAMETER));
+		String signature = parameters.get(UrlSigningService.SIGNATURE_PARAMETER);
+		String tamperedSignature = (signature.charAt(0) == 'A' ? 'B' : 'A') + signature.substring(1);
+
+		assertFalse(urlSigningService.isValid("image:42", expires, tamperedSignature));
+		assertFalse(urlSigningService.isValid("image:42", expires + VALIDITY_SECONDS, signature));
+		assertFalse(urlSigningService.isValid("image:42", expires, null));
+		assertFalse(createUrlSigningService("otherSecret", VALIDITY_SECONDS).isValid("image:42", expires, signature));
+	}
+
+	@Test
+	public void testExpiredSignature() {
+		long expires = System.currentTimeMillis() / 1000 - 1;
+		String signature = ReflectionTestUtils.invokeMethod(urlSigningService, "sign", "image:42", expires);
+
+		assertFalse(urlSigningService.isValid("image:42", expires, signature));
+		assertEquals(0, urlSigningService.getRemainingSeconds(expires));
+	}
+
+	@Test
+	public void testSignatureForOtherResource() {
+		Map<String, String> parameters = parseQuery(urlSigningService.createSignedQuery("image:42"));
+		long expires = Long.parseLong(parameters.get(UrlSigningService.EXPIRES_PARAMETER));
+		String signature = parameters.get(UrlSigningService.SIGNATURE_PARAMETER);
+
+		assertFalse(urlSigningService.isValid("image:43", expires, signature));
+		assertFalse(urlSigningService.isValid("video:42", expires, signature));
+		assertNotEquals(signature, parseQuery(urlSigningService.createSignedQuery("image:43")).get(UrlSigningService.SIGNATURE_PARAMETER));
+	}
+
+	@Test
+	public void testExpiryWithinValidityPeriods() {
+		long nowSeconds = System.currentTimeMillis() / 1000;
+		long expires = Long.parseLong(parseQuery(urlSigningService.createSignedQuery("image:42")).get(UrlSigningService.EXPIRES_PARAMETER));
+
+		assertEquals(0, expires % VALIDITY_SECONDS);
+		assertTrue(expires - nowSeconds >= VALIDITY_SECONDS);
+		assertTrue(expires - nowSeconds <= 2 * VALIDITY_SECONDS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNonPositiveValiditySeconds() {
+		createUrlSigningService("secret", 0);
+	}
+
+	@Test
+	public void testDisabled() {
+		UrlSigningService disabledUrlSigningService = createUrlSigningService("secret", VALIDITY_SECONDS);
+		ReflectionTestUtils.setField(disabledUrlSigningService, "enabled", false);
+		Map<String, String> parameters = parseQuery(disabledUrlSigningService.createSignedQuery("image:42"));
+
+		assertFalse(disabledUrlSigningService.isValid("image:42", Long.parseLong(parameters.get(UrlSigningService.EXPIRES_PARAMETER)),
+				parameters.get(UrlSigningService.SIGNATURE_PARAMETER)));
+	}
+
+	private UrlSigningService createUrlSigningService(String secret, long validitySeconds) {
+		UrlSigningService service = new UrlSigningService();
+		ReflectionTestUtils.setField(service, "enabled", true);
+		ReflectionTestUtils.setField(service, "secret", secret);
+		ReflectionTestUtils.setField(service, "validitySeconds", validitySeconds);
+		service.init();
+		return service;
+	}
+
+	private Map<String, String> parseQuery(String query) {
+		Map<String, String> parameters = new HashMap<>();
+		for (String parameter : query.split("&")) {
+			String[] nameAndValue = parameter.split("=", 2);
+			parameters.put(nameAndValue[0], nameAndValue[1]);
+		}
+		return parameters;
+	}
+
+}
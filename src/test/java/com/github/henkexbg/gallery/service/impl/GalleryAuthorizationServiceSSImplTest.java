@@ -291,4 +291,49 @@ public class GalleryAuthorizationServiceSSImplTest {
 		assertTrue(authorities.stream().anyMatch(a -> a.getAuthority().equals(grd1.getRole())));
 		assertTrue(authorities.stream().anyMatch(a -> a.getAuthority().equals(grd2.getRole())));
 	}
+
+	@Test
+	@WithMockUser(username = "test", roles = { "USER", "TEST" })
+	public void testGetRealFileOrDirNotAllowedSiblingWithSamePrefix() throws Exception {
+		List<GalleryRootDir> grds = new ArrayList<>();
+		GalleryRootDir grd1 = new GalleryRootDir();
+		grd1.setDir(new File("/test/test1"));
+		grd1.setName("test1-rd");
+		grd1.setRole("ROLE_TEST");
+		grds.add(grd1);
+		galleryAuthorizationServiceSSImpl.onGalleryRootDirsUpdated(grds);
+		String relativePath = "/../test10/image.jpeg";
+		try {
+			galleryAuthorizationServiceSSImpl.getRealFileOrDir(grd1.getName() + relativePath);
+			fail("NotAllowedException should have been thrown");
+		} catch (NotAllowedException nae) {
+		}
+	}
+
+	@Test
+	@WithMockUser(username = "test", roles = { "USER", "TEST" })
+	public void testRootPathsUpdatedAfterRootDirsUpdated() throws Exception {
+		List<GalleryRootDir> grds = new ArrayList<>();
+		GalleryRootDir grd1 = new GalleryRootDir();
+		grd1.setDir(new File("/test/test1"));
+		grd1.setName("test1-rd");
+		grd1.setRole("ROLE_TEST");
+		grds.add(grd1);
+		galleryAuthorizationServiceSSImpl.onGalleryRootDirsUpdated(grds);
+		assertEquals(1, galleryAuthorizationServiceSSImpl.getRootPathsForCurrentUser().size(),
+				"Response did not contain exactly one root path");
+
+		GalleryRootDir grd2 = new GalleryRootDir();
+		grd2.setDir(new File("/test/test2"));
+		grd2.setName("test2-rd");
+		grd2.setRole("ROLE_USER");
+		grds.add(grd2);
+		galleryAuthorizationServiceSSImpl.onGalleryRootDirsUpdated(grds);
+		Map<String, String> canonicalRootPaths = galleryAuthorizationServiceSSImpl.getCanonicalRootPathsForCurrentUser();
+
+		assertEquals(2, galleryAuthorizationServiceSSImpl.getRootPathsForCurrentUser().size(),
+				"Response did not contain exactly two root paths");
+		assertEquals(grd2.getDir().getCanonicalPath(), canonicalRootPaths.get(grd2.getName()),
+				"Response did not contain the right canonical root path");
+	}
 }